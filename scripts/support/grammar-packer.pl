@@ -24,7 +24,6 @@ my %opts = (
 getopts("m:T:", \%opts);
 
 my $JOSHUA = $ENV{JOSHUA} or die "you must defined \$JOSHUA";
-my $CAT    = "$JOSHUA/scripts/training/scat";
 
 sub usage {
   print "Usage: grammar-packer.pl [-m MEM] [-T /path/to/tmp] input-grammar [output-dir=grammar.packed]\n";
@@ -39,22 +38,13 @@ if (! -e $grammar) {
   exit 1;
 }
 
-# Sort the grammar.
-my $sorted_grammar = "grammar.sorted.gz";
-if (system("$CAT $grammar | sort -k3,3 --buffer-size=$opts{m} -T $opts{T} | gzip -9n > $sorted_grammar")) {
-  print STDERR "* FATAL: Couldn't sort the grammar (not enough memory? short on tmp space?)\n";
-  exit 2;
-}
-$grammar = $sorted_grammar;
-
-# Do the packing using the config.
-my $cmd = "java -Xmx$opts{m} -cp $JOSHUA/class joshua.tools.GrammarPacker -p $output_dir -g $grammar";
+# Do the packing using the config. The packer sorts the grammar itself, spilling sorted runs to the
+# temp directory.
+my $cmd = "java -Xmx$opts{m} -cp $JOSHUA/class joshua.tools.GrammarPacker -p $output_dir -g $grammar -T $opts{T}";
 print STDERR "Packing with $cmd\n";
 my $retval = system($cmd);
 
-if ($retval == 0) {
-  unlink($sorted_grammar);
-} else {
+if ($retval != 0) {
   print STDERR "* FATAL: Couldn't pack the grammar.\n";
   exit 1;
 }
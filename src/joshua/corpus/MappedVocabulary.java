@@ -0,0 +1,340 @@
+package joshua.corpus;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.logging.Logger;
+
+import joshua.util.FormatUtils;
+import joshua.util.MurmurHash;
+
+/**
+ * A read-only vocabulary stored in a binary file that is memory-mapped rather than read. It holds
+ * the words with ids 1..size(), and is what {@link Vocabulary#map(String)} uses as the base of the
+ * vocabulary of a packed grammar. Words are decoded only when asked for, and looked up through a
+ * perfect hash, so opening a vocabulary of millions of words costs neither the time nor the memory
+ * of building millions of Strings and map entries.
+ *
+ * The file layout (big-endian) is:
+ *
+ * <pre>
+ * int magic, int size, int num_buckets, int table_size, int num_nonterminals
+ * int[size + 1]        offsets of the UTF-8 bytes of each word in the string table, by id
+ * int[num_buckets]     displacement of each hash bucket
+ * int[table_size]      id found in each slot of the hash table (0 if empty)
+ * int[num_nonterminals] ids of the nonterminals
+ * byte[]               string table
+ * </pre>
+ *
+ * The string table is in id order: packed grammars fix the ids before the vocabulary is written,
+ * and the hash index makes a lexicographic order unnecessary for lookups.
+ */
+public class MappedVocabulary {
+
+  private static final Logger logger = Logger.getLogger(MappedVocabulary.class.getName());
+
+  /** The name of the file inside a packed grammar directory. */
+  public static final String FILE_NAME = "vocabulary.mapped";
+
+  private static final int MAGIC = 0x4a565931; // "JVY1"
+
+  private static final int HEADER_SIZE = 5 * 4;
+
+  /* Average number of words per bucket, and the fraction of the table that is filled. */
+  private static final int BUCKET_SIZE = 4;
+  private static final double LOAD_FACTOR = 0.8;
+
+  private final int size;
+  private final int numBuckets;
+  private final int tableSize;
+
+  private final IntBuffer offsets;
+  private final IntBuffer displacements;
+  private final IntBuffer slots;
+  private final int[] nonterminals;
+  private final ByteBuffer strings;
+
+  /* Words decoded so far. Races only ever store equal Strings. */
+  private final String[] decoded;
+
+  private MappedVocabulary(ByteBuffer buffer) throws IOException {
+    if (buffer.getInt(0) != MAGIC)
+      throw new IOException("Not a mapped vocabulary file.");
+    size = buffer.getInt(4);
+    numBuckets = buffer.getInt(8);
+    tableSize = buffer.getInt(12);
+    int num_nonterminals = buffer.getInt(16);
+
+    int position = HEADER_SIZE;
+    offsets = slice(buffer, position, size + 1);
+    position += 4 * (size + 1);
+    displacements = slice(buffer, position, numBuckets);
+    position += 4 * numBuckets;
+    slots = slice(buffer, position, tableSize);
+    position += 4 * tableSize;
+    nonterminals = new int[num_nonterminals];
+    slice(buffer, position, num_nonterminals).get(nonterminals);
+    position += 4 * num_nonterminals;
+    buffer.position(position);
+    strings = buffer.slice();
+
+    decoded = new String[size + 1];
+  }
+
+  private static IntBuffer slice(ByteBuffer buffer, int position, int length) {
+    ByteBuffer duplicate = buffer.duplicate();
+    duplicate.position(position);
+    duplicate.limit(position + 4 * length);
+    return duplicate.slice().asIntBuffer();
+  }
+
+  /**
+   * Maps a vocabulary file into memory.
+   *
+   * @param file_name
+   * @throws IOException
+   */
+  public static MappedVocabulary open(String file_name) throws IOException {
+    FileInputStream stream = new FileInputStream(new File(file_name));
+    try {
+      FileChannel channel = stream.getChannel();
+      MappedByteBuffer buffer = channel.map(MapMode.READ_ONLY, 0, channel.size());
+      MappedVocabulary vocabulary = new MappedVocabulary(buffer);
+      logger.info("Mapped vocabulary: " + vocabulary.size() + " tokens.");
+      return vocabulary;
+    } finally {
+      stream.close();
+    }
+  }
+
+  /**
+   * Returns the number of words, which have ids 1..size().
+   */
+  public int size() {
+    return size;
+  }
+
+  /**
+   * Returns the word with the given (positive) id.
+   */
+  public String word(int id) {
+    String word = decoded[id];
+    if (word == null) {
+      int from = offsets.get(id - 1);
+      int length = offsets.get(id) - from;
+      byte[] bytes = new byte[length];
+      ByteBuffer view = strings.duplicate();
+      view.position(from);
+      view.get(bytes);
+      word = decode(bytes);
+      decoded[id] = word;
+    }
+    return word;
+  }
+
+  /**
+   * Returns the (positive) id of the word, or 0 if it isn't in this vocabulary.
+   */
+  public int id(String word) {
+    byte[] bytes = encode(word);
+    long hash = MurmurHash.hash64(bytes, bytes.length);
+    int id = slots.get(slot(hash, displacements.get(bucket(hash, numBuckets)), tableSize));
+    return (id != 0 && matches(id, bytes)) ? id : 0;
+  }
+
+  private boolean matches(int id, byte[] bytes) {
+    int from = offsets.get(id - 1);
+    if (offsets.get(id) - from != bytes.length)
+      return false;
+    for (int i = 0; i < bytes.length; i++)
+      if (strings.get(from + i) != bytes[i])
+        return false;
+    return true;
+  }
+
+  /**
+   * Returns the ids of all nonterminals.
+   */
+  public int[] getNonterminals() {
+    return nonterminals.clone();
+  }
+
+  /**
+   * Returns a view of the words in id order (the word with id i is at index i - 1). Words are
+   * decoded as they are accessed.
+   */
+  public List<String> words() {
+    return new AbstractList<String>() {
+      @Override
+      public String get(int index) {
+        return word(index + 1);
+      }
+
+      @Override
+      public int size() {
+        return size;
+      }
+    };
+  }
+
+  /**
+   * Writes the words of the current vocabulary (ids 1..Vocabulary.size() - 1) as a mapped
+   * vocabulary file.
+   *
+   * @param file_name
+   * @throws IOException
+   */
+  public static void write(String file_name) throws IOException {
+    int size = Vocabulary.size() - 1;
+    byte[][] words = new byte[size + 1][];
+    List<Integer> nonterminals = new ArrayList<Integer>();
+    for (int id = 1; id <= size; id++) {
+      String word = Vocabulary.word(id);
+      words[id] = encode(word);
+      if (FormatUtils.isNonterminal(word))
+        nonterminals.add(id);
+    }
+
+    int num_buckets = Math.max(1, size / BUCKET_SIZE);
+    int table_size = Math.max(1, (int) (size / LOAD_FACTOR) + 1);
+    int[] displacements = new int[num_buckets];
+    int[] slots = new int[table_size];
+    while (!buildIndex(words, displacements, slots)) {
+      table_size = table_size + table_size / 8 + 1;
+      slots = new int[table_size];
+      logger.info("Retrying perfect hash with " + table_size + " slots.");
+    }
+
+    DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(
+        file_name)));
+    out.writeInt(MAGIC);
+    out.writeInt(size);
+    out.writeInt(num_buckets);
+    out.writeInt(table_size);
+    out.writeInt(nonterminals.size());
+    int offset = 0;
+    out.writeInt(offset);
+    for (int id = 1; id <= size; id++) {
+      offset += words[id].length;
+      out.writeInt(offset);
+    }
+    for (int d : displacements)
+      out.writeInt(d);
+    for (int id : slots)
+      out.writeInt(id);
+    for (int id : nonterminals)
+      out.writeInt(id);
+    for (int id = 1; id <= size; id++)
+      out.write(words[id]);
+    out.close();
+    logger.info("Writing mapped vocabulary: " + size + " tokens.");
+  }
+
+  /*
+   * Hash and displace: words are grouped into buckets by hash, and then, largest bucket first, each
+   * bucket looks for the smallest displacement that sends all its words to free slots.
+   */
+  private static boolean buildIndex(byte[][] words, int[] displacements, int[] slots) {
+    final int num_buckets = displacements.length;
+    int size = words.length - 1;
+    long[] hashes = new long[size + 1];
+    int[] bucket_sizes = new int[num_buckets];
+    for (int id = 1; id <= size; id++) {
+      hashes[id] = MurmurHash.hash64(words[id], words[id].length);
+      bucket_sizes[bucket(hashes[id], num_buckets)]++;
+    }
+
+    // Group the ids by bucket.
+    int[] bucket_start = new int[num_buckets + 1];
+    for (int b = 0; b < num_buckets; b++)
+      bucket_start[b + 1] = bucket_start[b] + bucket_sizes[b];
+    int[] fill = Arrays.copyOf(bucket_start, num_buckets);
+    int[] grouped = new int[size];
+    for (int id = 1; id <= size; id++)
+      grouped[fill[bucket(hashes[id], num_buckets)]++] = id;
+
+    Integer[] order = new Integer[num_buckets];
+    for (int b = 0; b < num_buckets; b++)
+      order[b] = b;
+    final int[] sizes = bucket_sizes;
+    Arrays.sort(order, new Comparator<Integer>() {
+      public int compare(Integer a, Integer b) {
+        return sizes[b] - sizes[a];
+      }
+    });
+
+    Arrays.fill(slots, 0);
+    int[] chosen = new int[BUCKET_SIZE * 8];
+    for (int b : order) {
+      int from = bucket_start[b];
+      int length = bucket_start[b + 1] - from;
+      if (length == 0)
+        break;
+      if (length > chosen.length)
+        chosen = new int[length];
+      boolean placed = false;
+      for (int d = 0; d < (1 << 20) && !placed; d++) {
+        placed = true;
+        for (int i = 0; i < length && placed; i++) {
+          int slot = slot(hashes[grouped[from + i]], d, slots.length);
+          if (slots[slot] != 0)
+            placed = false;
+          for (int j = 0; j < i && placed; j++)
+            if (chosen[j] == slot)
+              placed = false;
+          chosen[i] = slot;
+        }
+        if (placed) {
+          displacements[b] = d;
+          for (int i = 0; i < length; i++)
+            slots[chosen[i]] = grouped[from + i];
+        }
+      }
+      if (!placed)
+        return false;
+    }
+    return true;
+  }
+
+  private static int bucket(long hash, int num_buckets) {
+    return (int) ((hash >>> 1) % num_buckets);
+  }
+
+  private static int slot(long hash, int displacement, int table_size) {
+    long h = hash + displacement * 0x9E3779B97F4A7C15L;
+    h ^= h >>> 33;
+    h *= 0xff51afd7ed558ccdL;
+    h ^= h >>> 33;
+    return (int) ((h >>> 1) % table_size);
+  }
+
+  private static byte[] encode(String word) {
+    try {
+      return word.getBytes("UTF-8");
+    } catch (UnsupportedEncodingException e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+  private static String decode(byte[] bytes) {
+    try {
+      return new String(bytes, "UTF-8");
+    } catch (UnsupportedEncodingException e) {
+      throw new RuntimeException(e);
+    }
+  }
+}
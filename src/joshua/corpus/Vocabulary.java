@@ -10,10 +10,11 @@ import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.UnsupportedEncodingException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
 import java.util.Iterator;
 import java.util.List;
-import java.util.Map;
-import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.logging.Logger;
 
 import joshua.decoder.ff.lm.NGramLanguageModel;
@@ -24,6 +25,14 @@ import joshua.util.MurmurHash;
  * Static singular vocabulary class. Supports vocabulary freezing and (de-)serialization into a
  * vocabulary file.
  * 
+ * Lookups never lock: words are kept in an array that is only ever appended to and published
+ * through a volatile reference, and ids are found through a concurrent map. Only adding a new word
+ * takes the lock, so decoding threads that look up known words (or OOV markers created earlier) do
+ * not contend with each other.
+ * 
+ * The vocabulary may also start from a {@link MappedVocabulary} (see {@link #map(String)}), which
+ * then holds the lowest ids; words added afterwards get ids above them.
+ * 
  * @author Juri Ganitkevitch
  */
 
@@ -33,11 +42,21 @@ public class Vocabulary {
 
   private static ArrayList<NGramLanguageModel> lms;
 
-  private static TreeMap<Long, Integer> hashToId;
-  private static ArrayList<String> idToString;
-  private static TreeMap<Long, String> hashToString;
+  /* A memory-mapped vocabulary holding ids 1..first-1, or null. */
+  private static volatile MappedVocabulary mapped;
+  private static volatile int first;
+
+  /*
+   * Words with (absolute) ids first..size-1, at index id - first. Entries are never changed once
+   * published.
+   */
+  private static volatile String[] idToString;
+  private static volatile int size;
+
+  /* Ids by word, signed (negative for nonterminals). */
+  private static volatile ConcurrentHashMap<String, Integer> stringToId;
 
-  private static final Integer lock = new Integer(0);
+  private static final Object lock = new Object();
 
   private static final int UNKNOWN_ID;
   private static final String UNKNOWN_WORD;
@@ -62,9 +81,10 @@ public class Vocabulary {
       lms.add(lm);
       // Notify it of all the existing words.
       boolean collision = false;
-      for (int i = idToString.size() - 1; i > 0; i--)
-        collision = collision || lm.registerWord(idToString.get(i), i);
-      return collision;
+      if (mapped != null)
+        collision = lm.registerWords(mapped.words(), 1);
+      List<String> added = Arrays.asList(Arrays.copyOf(idToString, size - first));
+      return lm.registerWords(added, first) || collision;
     }
   }
 
@@ -93,7 +113,56 @@ public class Vocabulary {
         }
       }
       vocab_stream.close();
-      return (size + 1 == idToString.size());
+      return (size + 1 == Vocabulary.size);
+    }
+  }
+
+  /**
+   * Uses a memory-mapped vocabulary file (see {@link MappedVocabulary}) as the vocabulary. Like
+   * {@link #read}, this deletes any additions to the vocabulary made before. Words in the file are
+   * not materialized, and the language models are handed all of them in one call.
+   * 
+   * @param file_name
+   * @throws IOException
+   */
+  public static void map(String file_name) throws IOException {
+    synchronized (lock) {
+      clear();
+      MappedVocabulary vocabulary = MappedVocabulary.open(file_name);
+      mapped = vocabulary;
+      first = vocabulary.size() + 1;
+      size = first;
+      for (NGramLanguageModel lm : lms)
+        lm.registerWords(vocabulary.words(), 1);
+    }
+  }
+
+  /**
+   * Reads a vocabulary file as an extension of the current vocabulary. Unlike {@link #read}, this
+   * does not clear the vocabulary: words already present keep their ids and new words are added.
+   * The returned array maps the (absolute) ids used in the file to absolute ids in the current
+   * vocabulary.
+   * 
+   * @param file_name
+   * @return a mapping from the file's ids to current ids
+   * @throws IOException
+   */
+  public static int[] readExtension(String file_name) throws IOException {
+    synchronized (lock) {
+      DataInputStream vocab_stream =
+          new DataInputStream(new BufferedInputStream(new FileInputStream(new File(file_name))));
+      int size = vocab_stream.readInt();
+      logger.info("Reading vocabulary extension: " + size + " tokens.");
+      int[] mapping = new int[size + 1];
+      for (int i = 0; i < size; i++) {
+        int file_id = vocab_stream.readInt();
+        String token = vocab_stream.readUTF();
+        if (file_id >= mapping.length)
+          mapping = Arrays.copyOf(mapping, file_id + 1);
+        mapping[file_id] = Math.abs(id(token));
+      }
+      vocab_stream.close();
+      return mapping;
     }
   }
 
@@ -102,90 +171,140 @@ public class Vocabulary {
       File vocab_file = new File(file_name);
       DataOutputStream vocab_stream =
           new DataOutputStream(new BufferedOutputStream(new FileOutputStream(vocab_file)));
-      vocab_stream.writeInt(idToString.size() - 1);
-      logger.info("Writing vocabulary: " + (idToString.size() - 1) + " tokens.");
-      for (int i = 1; i < idToString.size(); i++) {
+      vocab_stream.writeInt(size - 1);
+      logger.info("Writing vocabulary: " + (size - 1) + " tokens.");
+      for (int i = 1; i < size; i++) {
         vocab_stream.writeInt(i);
-        vocab_stream.writeUTF(idToString.get(i));
+        vocab_stream.writeUTF(word(i));
       }
       vocab_stream.close();
     }
   }
 
+  /**
+   * Renumbers the vocabulary in the order of the words' 64-bit MurmurHash values, so that the ids
+   * don't depend on the order in which words were added.
+   */
   public static void freeze() {
     synchronized (lock) {
-      int current_id = 1;
-
-      TreeMap<Long, Integer> hash_to_id = new TreeMap<Long, Integer>();
-      ArrayList<String> id_to_string = new ArrayList<String>(idToString.size() + 1);
-      id_to_string.add(UNKNOWN_ID, UNKNOWN_WORD);
+      final String[] words = new String[size];
+      final long[] hashes = new long[size];
+      Integer[] order = new Integer[size - 1];
+      for (int i = 1; i < size; i++) {
+        words[i] = word(i);
+        hashes[i] = hash(words[i]);
+        order[i - 1] = i;
+      }
+      Arrays.sort(order, new Comparator<Integer>() {
+        public int compare(Integer a, Integer b) {
+          return (hashes[a] < hashes[b]) ? -1 : ((hashes[a] == hashes[b]) ? 0 : 1);
+        }
+      });
 
-      Map.Entry<Long, Integer> walker = hashToId.firstEntry();
-      while (walker != null) {
-        String word = hashToString.get(walker.getKey());
-        hash_to_id.put(walker.getKey(), (walker.getValue() < 0 ? -current_id : current_id));
-        id_to_string.add(current_id, word);
+      String[] id_to_string = new String[Math.max(16, size)];
+      ConcurrentHashMap<String, Integer> string_to_id = new ConcurrentHashMap<String, Integer>(
+          2 * size);
+      int current_id = 1;
+      for (int old_id : order) {
+        String word = words[old_id];
+        id_to_string[current_id - 1] = word;
+        string_to_id.put(word, (nt(word) ? -current_id : current_id));
         current_id++;
-        walker = hashToId.higherEntry(walker.getKey());
       }
+      mapped = null;
+      first = 1;
       idToString = id_to_string;
-      hashToId = hash_to_id;
+      stringToId = string_to_id;
+    }
+  }
+
+  private static long hash(String token) {
+    try {
+      return MurmurHash.hash64(token);
+    } catch (UnsupportedEncodingException e) {
+      e.printStackTrace();
+      return 0;
     }
   }
 
   public static int id(String token) {
+    Integer id = stringToId.get(token);
+    if (id != null)
+      return id;
+
+    MappedVocabulary base = mapped;
+    if (base != null) {
+      int mapped_id = base.id(token);
+      if (mapped_id != 0)
+        return nt(token) ? -mapped_id : mapped_id;
+    }
+
     synchronized (lock) {
-      long hash = 0;
-      try {
-        hash = MurmurHash.hash64(token);
-      } catch (UnsupportedEncodingException e) {
-        e.printStackTrace();
-      }
-      String hash_word = hashToString.get(hash);
-      if (hash_word != null) {
-        if (!token.equals(hash_word)) {
-          logger.warning("MurmurHash for the following symbols collides: '" + hash_word + "', '"
-              + token + "'");
-        }
-        return hashToId.get(hash);
-      } else {
-        int id = idToString.size() * (nt(token) ? -1 : 1);
-
-        // register this (token,id) mapping with each language
-        // model, so that they can map it to their own private
-        // vocabularies
-        for (NGramLanguageModel lm : lms)
-          lm.registerWord(token, Math.abs(id));
-
-        idToString.add(token);
-        hashToString.put(hash, token);
-        hashToId.put(hash, id);
+      id = stringToId.get(token);
+      if (id != null)
         return id;
-      }
+
+      int index = size;
+      int new_id = index * (nt(token) ? -1 : 1);
+
+      // register this (token,id) mapping with each language
+      // model, so that they can map it to their own private
+      // vocabularies
+      for (NGramLanguageModel lm : lms)
+        lm.registerWord(token, index);
+
+      // Append the word, then publish it: first the array and size, then the id, so that anyone
+      // who finds the id can also find the word.
+      String[] words = idToString;
+      if (index - first == words.length)
+        words = Arrays.copyOf(words, 2 * words.length);
+      words[index - first] = token;
+      idToString = words;
+      size = index + 1;
+      stringToId.put(token, new_id);
+      return new_id;
     }
   }
 
   public static boolean hasId(int id) {
-    synchronized (lock) {
-      id = Math.abs(id);
-      return (id < idToString.size());
-    }
+    id = Math.abs(id);
+    return (id < size);
   }
 
   public static int[] addAll(String sentence) {
     return addAll(sentence.split("\\s+"));
   }
   
+  /**
+   * Interns all tokens, taking the lock at most once (from the first new token on), so that bulk
+   * loaders don't contend for it token by token. Ids are assigned in the order of the tokens.
+   */
   public static int[] addAll(String[] tokens) {
     int[] ids = new int[tokens.length];
-    for (int i = 0; i < tokens.length; i++)
-      ids[i] = id(tokens[i]);
+    int i = 0;
+    for (; i < tokens.length; i++) {
+      Integer id = stringToId.get(tokens[i]);
+      if (id == null)
+        break;
+      ids[i] = id;
+    }
+    if (i < tokens.length) {
+      synchronized (lock) {
+        for (; i < tokens.length; i++)
+          ids[i] = id(tokens[i]);
+      }
+    }
     return ids;
   }
 
   public static String word(int id) {
     id = Math.abs(id);
-    return idToString.get(id);
+    if (id >= first) {
+      if (id >= size)
+        throw new IndexOutOfBoundsException("Index: " + id + ", Size: " + size);
+      return idToString[id - first];
+    }
+    return (id == UNKNOWN_ID) ? UNKNOWN_WORD : mapped.word(id);
   }
 
   public static String getWords(int[] ids) {
@@ -214,9 +333,16 @@ public class Vocabulary {
   public static List<Integer> getNonterminalIndices()
   {
     List<Integer> result = new ArrayList<Integer>();
-    for(int i = 0; i < idToString.size(); i++)
+    MappedVocabulary base = mapped;
+    if (base != null)
+      for (int id : base.getNonterminals())
+        result.add(id);
+    String[] words = idToString;
+    int from = first;
+    int num_words = size;
+    for(int i = from; i < num_words; i++)
     {
-      String word = idToString.get(i);
+      String word = words[i - from];
       if(isNonterminal(word)){  
         result.add(i);
       }
@@ -246,9 +372,7 @@ public class Vocabulary {
   }
 
   public static int size() {
-    synchronized (lock) {
-      return idToString.size();
-    }
+    return size;
   }
 
   public static int getTargetNonterminalIndex(int id) {
@@ -256,11 +380,11 @@ public class Vocabulary {
   }
 
   private static void clear() {
-    hashToId = new TreeMap<Long, Integer>();
-    hashToString = new TreeMap<Long, String>();
-    idToString = new ArrayList<String>();
-
-    idToString.add(UNKNOWN_ID, UNKNOWN_WORD);
+    mapped = null;
+    first = UNKNOWN_ID + 1;
+    idToString = new String[16];
+    size = first;
+    stringToId = new ConcurrentHashMap<String, Integer>();
   }
 
   /**
@@ -308,6 +432,9 @@ public class Vocabulary {
   }
 
   public static Iterator<String> wordIterator() {
-    return idToString.iterator();
+    List<String> words = new ArrayList<String>(size);
+    for (int i = 0; i < size; i++)
+      words.add(word(i));
+    return words.iterator();
   }
 }
@@ -5,6 +5,7 @@ import java.io.File;
 import java.io.IOException;
 import java.io.FileNotFoundException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashSet;
 import java.util.List;
 import java.util.concurrent.ArrayBlockingQueue;
@@ -31,6 +32,8 @@ import joshua.decoder.ff.tm.Grammar;
 import joshua.decoder.ff.tm.GrammarFactory;
 import joshua.decoder.ff.tm.hash_based.MemoryBasedBatchGrammar;
 import joshua.decoder.ff.tm.packed.PackedGrammar;
+import joshua.decoder.hypergraph.ForestMinRiskDecoder;
+import joshua.decoder.hypergraph.HyperGraphWriter;
 import joshua.decoder.io.TranslationRequest;
 import joshua.decoder.segment_file.Sentence;
 import joshua.util.FileUtility;
@@ -82,6 +85,9 @@ public class Decoder {
 
   private BlockingQueue<DecoderThread> threadPool = null;
 
+  /* Where the decoder threads write their hypergraphs, if asked to ("write-hypergraphs"). */
+  private HyperGraphWriter hypergraphWriter = null;
+
   // ===============================================================
   // Constructors
   // ===============================================================
@@ -324,6 +330,14 @@ public class Decoder {
         e.printStackTrace();
       }
     }
+
+    if (hypergraphWriter != null) {
+      try {
+        hypergraphWriter.close();
+      } catch (IOException e) {
+        e.printStackTrace();
+      }
+    }
   }
 
   public static void writeConfigFile(double[] newWeights, String template, String outputFile,
@@ -436,6 +450,14 @@ public class Decoder {
       // Initialize the features: requires that LM model has been initialized.
       this.initializeFeatureFunctions();
 
+      // MBR decoding reads the words of n-gram language model states, which KenLM doesn't expose.
+      if (joshuaConfiguration.mbr
+          && ForestMinRiskDecoder.findLanguageModel(this.featureFunctions) == null) {
+        System.err.println("* FATAL: mbr needs an n-gram language model other than KenLM"
+            + " (e.g., berkeleylm)");
+        System.exit(1);
+      }
+
       // Sort the TM grammars (needed to do cube pruning)
       if (joshuaConfiguration.amortized_sorting) {
         logger.info("Grammar sorting happening lazily on-demand.");
@@ -451,10 +473,13 @@ public class Decoder {
             (System.currentTimeMillis() - pre_sort_time) / 1000));
       }
 
+      if (!joshuaConfiguration.hypergraphFile.equals(""))
+        this.hypergraphWriter = new HyperGraphWriter(joshuaConfiguration.hypergraphFile);
+
       // Create the threads
       for (int i = 0; i < joshuaConfiguration.num_parallel_decoders; i++) {
         this.threadPool.put(new DecoderThread(this.grammarFactories, Decoder.weights,
-            this.featureFunctions, joshuaConfiguration));
+            this.featureFunctions, hypergraphWriter, joshuaConfiguration));
       }
 
     } catch (IOException e) {
@@ -521,7 +546,7 @@ public class Decoder {
       // Records which PhraseModelFF's have been instantiated (one is needed for each owner).
       HashSet<String> ownersSeen = new HashSet<String>();
 
-      // tm = {thrax/hiero,packed,samt} OWNER LIMIT FILE
+      // tm = {thrax/hiero,packed,samt} OWNER LIMIT FILE [OVERLAY...]
       for (String tmLine : joshuaConfiguration.tms) {
         String tokens[] = tmLine.split("\\s+");
         String format = tokens[0];
@@ -531,8 +556,10 @@ public class Decoder {
 
         GrammarFactory grammar = null;
         if (format.equals("packed") || new File(file).isDirectory()) {
+          // Any further packed directories are overlaid on top of the first one.
+          List<String> overlays = Arrays.asList(tokens).subList(4, tokens.length);
           try {
-            grammar = new PackedGrammar(file, span_limit, owner,joshuaConfiguration);
+            grammar = new PackedGrammar(file, overlays, span_limit, owner, joshuaConfiguration);
           } catch (FileNotFoundException e) {
             System.err.println(String.format("Couldn't load packed grammar from '%s'", file));
             System.err.println("Perhaps it doesn't exist, or it may be an old packed file format.");
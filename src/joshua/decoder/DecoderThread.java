@@ -11,11 +11,15 @@ import joshua.decoder.ff.FeatureVector;
 import joshua.decoder.ff.SourceDependentFF;
 import joshua.decoder.ff.tm.Grammar;
 import joshua.decoder.ff.tm.GrammarFactory;
+import joshua.decoder.ff.tm.OOVGrammar;
 import joshua.decoder.hypergraph.ForestWalker;
 import joshua.decoder.hypergraph.GrammarBuilderWalkerFunction;
 import joshua.decoder.hypergraph.HyperGraph;
+import joshua.decoder.hypergraph.HyperGraphPruning;
+import joshua.decoder.hypergraph.HyperGraphWriter;
 import joshua.decoder.segment_file.Sentence;
 import joshua.corpus.Vocabulary;
+import joshua.util.Cache;
 
 /**
  * This class handles decoding of individual Sentence objects (which can represent plain sentences
@@ -39,16 +43,24 @@ public class DecoderThread extends Thread {
   private final List<GrammarFactory> grammarFactories;
   private final List<FeatureFunction> featureFunctions;
 
+  /* Estimated costs of OOV rules, reused across this thread's sentences. */
+  private final Cache<Long, Float> oovCosts = new Cache<Long, Float>(OOVGrammar.COST_CACHE_SIZE);
+
+  /* Where to write the hypergraphs, or null. */
+  private final HyperGraphWriter hypergraphWriter;
+
   private static final Logger logger = Logger.getLogger(DecoderThread.class.getName());
 
   // ===============================================================
   // Constructor
   // ===============================================================
   public DecoderThread(List<GrammarFactory> grammarFactories, FeatureVector weights,
-      List<FeatureFunction> featureFunctions,JoshuaConfiguration joshuaConfiguration) throws IOException {
+      List<FeatureFunction> featureFunctions, HyperGraphWriter hypergraphWriter,
+      JoshuaConfiguration joshuaConfiguration) throws IOException {
 
     this.joshuaConfiguration = joshuaConfiguration;
     this.grammarFactories = grammarFactories;
+    this.hypergraphWriter = hypergraphWriter;
 
     this.featureFunctions = new ArrayList<FeatureFunction>();
     for (FeatureFunction ff : featureFunctions) {
@@ -98,7 +110,7 @@ public class DecoderThread extends Thread {
 
     /* Seeding: the chart only sees the grammars, not the factories */
     Chart chart = new Chart(sentence, this.featureFunctions, grammars,
-        joshuaConfiguration.goal_symbol,joshuaConfiguration);
+        joshuaConfiguration.goal_symbol, oovCosts, joshuaConfiguration);
 
     /* Parsing */
     HyperGraph hypergraph = null;
@@ -109,6 +121,10 @@ public class DecoderThread extends Thread {
       hypergraph = null;
     }
 
+    /* Forest pruning, before the hypergraph is kept for output */
+    if (hypergraph != null && sentence.forestPruningThreshold() > 0)
+      new HyperGraphPruning(sentence.forestPruningThreshold()).pruningHG(hypergraph);
+
     float seconds = (System.currentTimeMillis() - startTime) / 1000.0f;
     logger.info(String.format("translation of sentence %d took %.3f seconds [thread %d]",
         sentence.id(), seconds, getId()));
@@ -117,7 +133,8 @@ public class DecoderThread extends Thread {
 
     /* Return the translation unless we're doing synchronous parsing. */
     if (!joshuaConfiguration.parse || hypergraph == null) {
-      return new Translation(sentence, hypergraph, featureFunctions, joshuaConfiguration);
+      return new Translation(sentence, hypergraph, featureFunctions, hypergraphWriter,
+          joshuaConfiguration);
     }
 
     /*****************************************************************************************/
@@ -136,7 +153,8 @@ public class DecoderThread extends Thread {
     /* Step 2. Create a new chart and parse with the instantiated grammar. */
     Grammar[] newGrammarArray = new Grammar[] { newGrammar };
     Sentence targetSentence = new Sentence(sentence.target(), sentence.id(), joshuaConfiguration);
-    chart = new Chart(targetSentence, featureFunctions, newGrammarArray, "GOAL",joshuaConfiguration);
+    chart = new Chart(targetSentence, featureFunctions, newGrammarArray, "GOAL", oovCosts,
+        joshuaConfiguration);
     int goalSymbol = GrammarBuilderWalkerFunction.goalSymbol(hypergraph);
     String goalSymbolString = Vocabulary.word(goalSymbol);
     logger.info(String.format("Sentence %d: goal symbol is %s (%d).", sentence.id(),
@@ -153,7 +171,8 @@ public class DecoderThread extends Thread {
     logger.info(String.format("Memory used after sentence %d is %.1f MB", sentence.id(), (Runtime
         .getRuntime().totalMemory() - Runtime.getRuntime().freeMemory()) / 1000000.0));
 
-    return new Translation(sentence, englishParse, featureFunctions, joshuaConfiguration); // or do something else
+    return new Translation(sentence, englishParse, featureFunctions, hypergraphWriter,
+        joshuaConfiguration); // or do something else
   }
 
   private Grammar getGrammarFromHyperGraph(String goal, HyperGraph hg) {
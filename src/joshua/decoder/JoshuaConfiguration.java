@@ -54,9 +54,39 @@ public class JoshuaConfiguration {
   /* Dynamic sentence-level filtering. */
   public boolean filter_grammar = false;
 
+  /*
+   * If true, grammars are matched together through a single dot chart over a merged trie, instead
+   * of one dot chart per grammar. Regular-expression grammars always keep their own dot chart.
+   */
+  public boolean fuse_grammars = false;
+
+  /* The number of threads used to load text grammars. */
+  public int grammar_load_threads = 1;
+
   /* The cube pruning pop limit. Set to 0 for exhaustive pruning. */
   public int pop_limit = 100;
 
+  /*
+   * If positive, cube pruning stops early in a span once the candidates, scored with an outside
+   * estimate of the rest of the sentence, fall this far below the estimate of the whole sentence.
+   * 0 disables the outside estimates.
+   */
+  public float future_cost_beam = 0.0f;
+
+  /*
+   * If true, the feature values of each hyperedge are stored as it is scored, and k-best
+   * extraction adds them up instead of recomputing them. This costs memory during decoding.
+   */
+  public boolean store_edge_features = false;
+
+  /*
+   * If positive, each sentence's hypergraph is pruned after decoding, before it is written out or
+   * k-best lists are extracted from it: hyperedges whose posterior probability is below this are
+   * removed (see HyperGraphPruning). This is the default; a sentence can set its own threshold in
+   * its seg tag (see Sentence).
+   */
+  public double forest_pruning_threshold = 0.0;
+
   /* Maximum sentence length. Sentences longer than this are truncated. */
   public int maxlen = 200;
 
@@ -84,7 +114,8 @@ public class JoshuaConfiguration {
    * - %f the list of feature values (as name=value pairs) 
    * - %c the model cost
    * - %w the weight vector 
-   * - %a the alignments between source and target words (currently unimplemented) 
+   * - %a the alignments between source and target words (requires rules with alignments, e.g.,
+   *      a grammar packed with -a) 
    * - %d a verbose, many-line version of the derivation
    */
   public String outputFormat = "%i ||| %s ||| %f ||| %c";
@@ -95,6 +126,9 @@ public class JoshuaConfiguration {
   // disk hg
   public String hypergraphFilePattern = "";
 
+  // a single file to which the hypergraphs of all sentences are written in binary form
+  public String hypergraphFile = "";
+
   // hypergraph visualization
   public boolean visualize_hypergraph = false;
 
@@ -102,6 +136,14 @@ public class JoshuaConfiguration {
   public boolean useGoogleLinearCorpusGain = false;
   public double[] linearCorpusGainThetas = null;
 
+  /*
+   * If true, the output is the minimum Bayes risk (linear BLEU) hypothesis of the forest instead of
+   * the k-best list, with the posterior distribution of the model scores times mbr_scale. The gain
+   * uses googleBLEUWeights if useGoogleLinearCorpusGain is set.
+   */
+  public boolean mbr = false;
+  public float mbr_scale = 1.0f;
+
   /*
    * When true, _OOV is appended to all words that are passed through (useful for something like
    * transliteration on the target side
@@ -166,7 +208,12 @@ public class JoshuaConfiguration {
     use_pos_labels = false;
     true_oovs_only = false;
     filter_grammar = false;
+    fuse_grammars = false;
+    grammar_load_threads = 1;
     pop_limit = 100;
+    future_cost_beam = 0.0f;
+    store_edge_features = false;
+    forest_pruning_threshold = 0.0;
     maxlen = 200;
     use_unique_nbest = false;
     include_align_index = false;
@@ -174,9 +221,12 @@ public class JoshuaConfiguration {
     outputFormat = "%i ||| %s ||| %f ||| %c";
     num_parallel_decoders = 1;
     hypergraphFilePattern = "";
+    hypergraphFile = "";
     visualize_hypergraph = false;
     useGoogleLinearCorpusGain = false;
     linearCorpusGainThetas = null;
+    mbr = false;
+    mbr_scale = 1.0f;
     mark_oovs = true;
     // oracleFile = null;
     parse = false; // perform synchronous parsing
@@ -267,6 +317,10 @@ public class JoshuaConfiguration {
             logger
                 .finest(String.format("  hypergraph dump file format: %s", hypergraphFilePattern));
 
+          } else if (parameter.equals(normalize_key("write-hypergraphs"))) {
+            hypergraphFile = fds[1].trim();
+            logger.finest(String.format("  binary hypergraph file: %s", hypergraphFile));
+
           } else if (parameter.equals(normalize_key("default-non-terminal"))) {
             default_non_terminal = "[" + fds[1].trim() + "]";
             // default_non_terminal = fds[1].trim();
@@ -293,6 +347,14 @@ public class JoshuaConfiguration {
           } else if (parameter.equals(normalize_key("filter-grammar"))) {
             filter_grammar = Boolean.parseBoolean(fds[1]);
 
+          } else if (parameter.equals(normalize_key("fuse-grammars"))) {
+            fuse_grammars = Boolean.parseBoolean(fds[1]);
+            logger.finest(String.format("fuse-grammars: %s", fuse_grammars));
+
+          } else if (parameter.equals(normalize_key("grammar-load-threads"))) {
+            grammar_load_threads = Integer.parseInt(fds[1]);
+            logger.finest(String.format("grammar-load-threads: %s", grammar_load_threads));
+
           } else if (parameter.equals(normalize_key("amortize"))) {
             amortized_sorting = Boolean.parseBoolean(fds[1]);
 
@@ -336,6 +398,18 @@ public class JoshuaConfiguration {
             pop_limit = Integer.valueOf(fds[1]);
             logger.finest(String.format("pop-limit: %s", pop_limit));
 
+          } else if (parameter.equals(normalize_key("future-cost-beam"))) {
+            future_cost_beam = Float.parseFloat(fds[1]);
+            logger.finest(String.format("future-cost-beam: %s", future_cost_beam));
+
+          } else if (parameter.equals(normalize_key("store-edge-features"))) {
+            store_edge_features = Boolean.parseBoolean(fds[1]);
+            logger.finest(String.format("store-edge-features: %s", store_edge_features));
+
+          } else if (parameter.equals(normalize_key("forest-pruning-threshold"))) {
+            forest_pruning_threshold = Double.parseDouble(fds[1]);
+            logger.finest(String.format("forest-pruning-threshold: %s", forest_pruning_threshold));
+
           } else if (parameter.equals(normalize_key("useGoogleLinearCorpusGain"))) {
             useGoogleLinearCorpusGain = new Boolean(fds[1].trim());
             logger
@@ -353,6 +427,14 @@ public class JoshuaConfiguration {
 
             logger.finest(String.format("googleBLEUWeights: %s", linearCorpusGainThetas));
 
+          } else if (parameter.equals(normalize_key("mbr"))) {
+            mbr = Boolean.parseBoolean(fds[1]);
+            logger.finest(String.format("mbr: %s", mbr));
+
+          } else if (parameter.equals(normalize_key("mbr-scale"))) {
+            mbr_scale = Float.parseFloat(fds[1]);
+            logger.finest(String.format("mbr-scale: %s", mbr_scale));
+
           } else if (parameter.equals(normalize_key("server-port"))) {
             server_port = Integer.parseInt(fds[1]);
             logger.info(String.format("    server-port: %d", server_port));
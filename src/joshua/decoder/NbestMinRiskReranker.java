@@ -2,16 +2,17 @@ package joshua.decoder;
 
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.LinkedList;
 import java.util.List;
-import java.util.Map.Entry;
 import java.util.Scanner;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
-import java.util.concurrent.PriorityBlockingQueue;
-import java.util.concurrent.TimeUnit;
+import java.util.concurrent.Future;
 
-import joshua.util.Ngram;
 import joshua.util.Regex;
 
 
@@ -39,9 +40,6 @@ public class NbestMinRiskReranker {
 
   static boolean useGoogleLinearCorpusGain = false;
 
-  final PriorityBlockingQueue<RankerResult> resultsQueue =
-      new PriorityBlockingQueue<RankerResult>();
-
   public NbestMinRiskReranker(boolean produceRerankedNbest, double scalingFactor) {
     this.produceRerankedNbest = produceRerankedNbest;
     this.scalingFactor = scalingFactor;
@@ -64,37 +62,61 @@ public class NbestMinRiskReranker {
       }
     } 
 
-    List<String> hypsItself = new ArrayList<String>();
-    // ArrayList<String> l_feat_scores = new ArrayList<String>();
-    List<Double> baselineScores = new ArrayList<Double>(); // linear combination of all baseline
-                                                           // features
-    List<HashMap<String, Integer>> ngramTbls = new ArrayList<HashMap<String, Integer>>();
-    List<Integer> sentLens = new ArrayList<Integer>();
-
-    for (String hyp : nbest) {
-      String[] fds = Regex.threeBarsWithSpace.split(hyp);
+    int size = nbest.size();
+    String[] hypsItself = new String[size];
+    double[] baselineScores = new double[size]; // linear combination of all baseline features
+    int[] sentLens = new int[size];
+
+    /*
+     * The n-grams of each hypothesis, as sorted arrays of n-gram ids with their counts. The ids are
+     * local to this sentence.
+     */
+    NgramTable ngramTable = new NgramTable();
+    int[][] ngramIDs = new int[size][];
+    int[][] ngramCounts = new int[size][];
+    int[] buffer = new int[16];
+
+    for (int i = 0; i < size; i++) {
+      String[] fds = Regex.threeBarsWithSpace.split(nbest.get(i));
       int tSentID = Integer.parseInt(fds[0]);
       if (sentID != tSentID) {
         throw new RuntimeException("sentence_id does not match");
       }
       String hypothesis = (fds.length >= 4) ? fds[1] : "";
-      hypsItself.add(hypothesis);
+      hypsItself[i] = hypothesis;
 
       String[] words = Regex.spaces.split(hypothesis);
-      sentLens.add(words.length);
-
-      HashMap<String, Integer> ngramTbl = new HashMap<String, Integer>();
-      Ngram.getNgrams(ngramTbl, 1, bleuOrder, words);
-      ngramTbls.add(ngramTbl);
-
-      // l_feat_scores.add(fds[2]);
+      sentLens[i] = words.length;
+
+      int numNgrams = 0;
+      if (buffer.length < words.length * bleuOrder)
+        buffer = new int[words.length * bleuOrder];
+      for (int start = 0; start < words.length; start++) {
+        int prefix = -1;
+        for (int end = start; end < start + bleuOrder && end < words.length; end++) {
+          prefix = ngramTable.id(prefix, ngramTable.word(words[end]));
+          buffer[numNgrams++] = prefix;
+        }
+      }
+      Arrays.sort(buffer, 0, numNgrams);
+      int distinct = 0;
+      for (int k = 0; k < numNgrams; k++)
+        if (k == 0 || buffer[k] != buffer[k - 1])
+          distinct++;
+      ngramIDs[i] = new int[distinct];
+      ngramCounts[i] = new int[distinct];
+      int d = -1;
+      for (int k = 0; k < numNgrams; k++) {
+        if (k == 0 || buffer[k] != buffer[k - 1])
+          ngramIDs[i][++d] = buffer[k];
+        ngramCounts[i][d]++;
+      }
 
       // The value of finalIndex is expected to be 3,
       // unless the hyp_itself is empty,
       // in which case finalIndex will be 2.
       int finalIndex = fds.length - 1;
-      baselineScores.add(Double.parseDouble(fds[finalIndex]));
-
+      baselineScores[i] = Double.parseDouble(fds[finalIndex]);
     }
 
     // step-1: get normalized distribution
@@ -104,42 +126,27 @@ public class NbestMinRiskReranker {
      * */
     computeNormalizedProbs(baselineScores, scalingFactor);
 
-    List<Double> normalizedProbs = baselineScores;
+    double[] normalizedProbs = baselineScores;
 
-    // === required by google linear corpus gain
-    HashMap<String, Double> posteriorCountsTbl = null;
+    // step-2: rerank the nbest
+    double[] gains;
     if (useGoogleLinearCorpusGain) {
-      posteriorCountsTbl = new HashMap<String, Double>();
-      getGooglePosteriorCounts(ngramTbls, normalizedProbs, posteriorCountsTbl);
+      double[] posteriorCounts =
+          getGooglePosteriorCounts(ngramIDs, normalizedProbs, ngramTable.size());
+      gains = new double[size];
+      for (int i = 0; i < size; i++)
+        gains[i] = computeExpectedLinearCorpusGain(sentLens[i], ngramIDs[i], ngramCounts[i],
+            posteriorCounts, ngramTable);
+    } else {
+      gains = computeExpectedGains(sentLens, ngramIDs, ngramCounts, normalizedProbs, ngramTable);
     }
 
-
-    // step-2: rerank the nbest
-    /**
-     * TODO: zhifei: now the re-ranking takes O(n^2) where n is the size of the nbest. But, we can
-     * significantly speed up this (leadding to O(n)) by first estimating a model on nbest, and then
-     * rerank the nbest using the estimated model.
-     * */
     double bestGain = -1000000000;// set as worst gain
     String bestHyp = null;
-    List<Double> gains = new ArrayList<Double>();
-    for (int i = 0; i < hypsItself.size(); i++) {
-      String curHyp = hypsItself.get(i);
-      int curHypLen = sentLens.get(i);
-      HashMap<String, Integer> curHypNgramTbl = ngramTbls.get(i);
-      // double cur_gain = computeGain(cur_hyp, l_hyp_itself, l_normalized_probs);
-      double curGain = 0;
-      if (useGoogleLinearCorpusGain) {
-        curGain = computeExpectedLinearCorpusGain(curHypLen, curHypNgramTbl, posteriorCountsTbl);
-      } else {
-        curGain =
-            computeExpectedGain(curHypLen, curHypNgramTbl, ngramTbls, sentLens, normalizedProbs);
-      }
-
-      gains.add(curGain);
-      if (i == 0 || curGain > bestGain) { // maximize
-        bestGain = curGain;
-        bestHyp = curHyp;
+    for (int i = 0; i < size; i++) {
+      if (i == 0 || gains[i] > bestGain) { // maximize
+        bestGain = gains[i];
+        bestHyp = hypsItself[i];
       }
     }
 
@@ -167,6 +174,15 @@ public class NbestMinRiskReranker {
    * */
   // get a normalized distributeion and put it back to nbestLogProbs
   static public void computeNormalizedProbs(List<Double> nbestLogProbs, double scalingFactor) {
+    double[] probs = new double[nbestLogProbs.size()];
+    for (int i = 0; i < probs.length; i++)
+      probs[i] = nbestLogProbs.get(i);
+    computeNormalizedProbs(probs, scalingFactor);
+    for (int i = 0; i < probs.length; i++)
+      nbestLogProbs.set(i, probs[i]);
+  }
+
+  static public void computeNormalizedProbs(double[] nbestLogProbs, double scalingFactor) {
 
     // === get noralization constant, remember features, remember the combined linear score
     double normalizationConstant = Double.NEGATIVE_INFINITY;// log-semiring
@@ -178,18 +194,17 @@ public class NbestMinRiskReranker {
 
     // === get normalized prob for each hyp
     double tSum = 0;
-    for (int i = 0; i < nbestLogProbs.size(); i++) {
+    for (int i = 0; i < nbestLogProbs.length; i++) {
 
-      double normalizedProb =
-          Math.exp(nbestLogProbs.get(i) * scalingFactor - normalizationConstant);
+      double normalizedProb = Math.exp(nbestLogProbs[i] * scalingFactor - normalizationConstant);
       tSum += normalizedProb;
-      nbestLogProbs.set(i, normalizedProb);
 
       if (Double.isNaN(normalizedProb)) {
         throw new RuntimeException("prob is NaN, must be wrong\nnbest_logps.get(i): "
-            + nbestLogProbs.get(i) + "; scaling_factor: " + scalingFactor
+            + nbestLogProbs[i] + "; scaling_factor: " + scalingFactor
             + "; normalization_constant:" + normalizationConstant);
       }
+      nbestLogProbs[i] = normalizedProb;
       // logger.info("probability: " + normalized_prob);
     }
 
@@ -201,6 +216,58 @@ public class NbestMinRiskReranker {
   }
 
 
+  /**
+   * Computes the expected gain of every hypothesis: Gain(e) = negative risk = \sum_{e'} G(e,
+   * e')P(e'), with sentence BLEU as G. The n-gram matches of two hypotheses are counted by merging
+   * their sorted n-gram arrays. With clipping, the matches are symmetric, so each pair is counted
+   * once for both directions. The terms of each sum are added in the order of the n-best list.
+   */
+  double[] computeExpectedGains(int[] sentLens, int[][] ngramIDs, int[][] ngramCounts,
+      double[] nbestProbs, NgramTable ngramTable) {
+    int size = sentLens.length;
+    double[] gains = new double[size];
+    int[] numNgramMatch = new int[bleuOrder];
+    for (int cur = 0; cur < size; cur++) {
+      for (int other = cur; other < size; other++) {
+        countMatches(ngramIDs[cur], ngramCounts[cur], ngramIDs[other], ngramCounts[other],
+            ngramTable, numNgramMatch);
+        gains[cur] += nbestProbs[other]
+            * BLEU.computeBleu(sentLens[cur], sentLens[other], numNgramMatch, bleuOrder);
+        if (other != cur) {
+          if (!doNgramClip)
+            countMatches(ngramIDs[other], ngramCounts[other], ngramIDs[cur], ngramCounts[cur],
+                ngramTable, numNgramMatch);
+          gains[other] += nbestProbs[cur]
+              * BLEU.computeBleu(sentLens[other], sentLens[cur], numNgramMatch, bleuOrder);
+        }
+      }
+    }
+    return gains;
+  }
+
+  /*
+   * Counts the n-grams of a hypothesis that are found in a second one, by order, clipped to their
+   * count there if doNgramClip is set.
+   */
+  private static void countMatches(int[] hypIDs, int[] hypCounts, int[] refIDs, int[] refCounts,
+      NgramTable ngramTable, int[] numNgramMatch) {
+    Arrays.fill(numNgramMatch, 0);
+    int h = 0;
+    int r = 0;
+    while (h < hypIDs.length && r < refIDs.length) {
+      if (hypIDs[h] < refIDs[r]) {
+        h++;
+      } else if (hypIDs[h] > refIDs[r]) {
+        r++;
+      } else {
+        numNgramMatch[ngramTable.order(hypIDs[h]) - 1] +=
+            doNgramClip ? Math.min(refCounts[r], hypCounts[h]) : hypCounts[h];
+        h++;
+        r++;
+      }
+    }
+  }
+
   // Gain(e) = negative risk = \sum_{e'} G(e, e')P(e')
   // curHyp: e
   // trueHyp: e'
@@ -240,24 +307,25 @@ public class NbestMinRiskReranker {
     return gain;
   }
 
-  void getGooglePosteriorCounts(List<HashMap<String, Integer>> ngramTbls,
-      List<Double> normalizedProbs, HashMap<String, Double> posteriorCountsTbl) {
-    // TODO
+  /* The posterior probability of each n-gram: the total probability of the hypotheses with it. */
+  double[] getGooglePosteriorCounts(int[][] ngramIDs, double[] normalizedProbs, int numNgrams) {
+    double[] posteriorCounts = new double[numNgrams];
+    for (int i = 0; i < ngramIDs.length; i++)
+      for (int id : ngramIDs[i])
+        posteriorCounts[id] += normalizedProbs[i];
+    return posteriorCounts;
   }
 
-  double computeExpectedLinearCorpusGain(int curHypLen, HashMap<String, Integer> curHypNgramTbl,
-      HashMap<String, Double> posteriorCountsTbl) {
+  double computeExpectedLinearCorpusGain(int curHypLen, int[] curHypNgramIDs,
+      int[] curHypNgramCounts, double[] posteriorCounts, NgramTable ngramTable) {
     // TODO
     double[] thetas = {-1, 1, 1, 1, 1};
 
     double res = 0;
     res += thetas[0] * curHypLen;
-    for (Entry<String, Integer> entry : curHypNgramTbl.entrySet()) {
-      String key = entry.getKey();
-      String[] tem = Regex.spaces.split(key);
-
-      double post_prob = posteriorCountsTbl.get(key);
-      res += entry.getValue() * post_prob * thetas[tem.length];
+    for (int k = 0; k < curHypNgramIDs.length; k++) {
+      int id = curHypNgramIDs[k];
+      res += curHypNgramCounts[k] * posteriorCounts[id] * thetas[ngramTable.order(id)];
     }
     return res;
   }
@@ -342,40 +410,44 @@ public class NbestMinRiskReranker {
 
     } else {
 
+      /*
+       * Sentences are reranked in a thread pool, and their results are printed in order as soon as
+       * they are done. At most a few sentences per thread are read ahead, so the input is streamed.
+       */
       ExecutorService threadPool = Executors.newFixedThreadPool(numThreads);
+      LinkedList<Future<String>> pending = new LinkedList<Future<String>>();
 
-      while (scanner.hasNextLine()) {
-        String line = scanner.nextLine();
-        String[] fds = Regex.threeBarsWithSpace.split(line);
-        int newSentID = Integer.parseInt(fds[0]);
-        if (oldSentID != -1 && oldSentID != newSentID) {
+      try {
+        while (scanner.hasNextLine()) {
+          String line = scanner.nextLine();
+          String[] fds = Regex.threeBarsWithSpace.split(line);
+          int newSentID = Integer.parseInt(fds[0]);
+          if (oldSentID != -1 && oldSentID != newSentID) {
 
-          threadPool.execute(mbrReranker.new RankerTask(nbest, oldSentID));
+            pending.add(threadPool.submit(mbrReranker.new RankerTask(nbest, oldSentID)));
+            while (pending.size() > 2 * numThreads)
+              System.out.println(pending.removeFirst().get());
 
-          nbest.clear();
+            nbest.clear();
+          }
+          oldSentID = newSentID;
+          nbest.add(line);
         }
-        oldSentID = newSentID;
-        nbest.add(line);
-      }
-
-      // last nbest
-      threadPool.execute(mbrReranker.new RankerTask(nbest, oldSentID));
-      nbest.clear();
-
-      threadPool.shutdown();
 
-      try {
-        threadPool.awaitTermination(Integer.MAX_VALUE, TimeUnit.SECONDS);
-
-        while (!mbrReranker.resultsQueue.isEmpty()) {
-          RankerResult result = mbrReranker.resultsQueue.remove();
-          String best_hyp = result.toString();
-          System.out.println(best_hyp);
-        }
+        // last nbest
+        if (oldSentID >= 0)
+          pending.add(threadPool.submit(mbrReranker.new RankerTask(nbest, oldSentID)));
+        nbest.clear();
 
+        while (!pending.isEmpty())
+          System.out.println(pending.removeFirst().get());
 
       } catch (InterruptedException e) {
         e.printStackTrace();
+      } catch (ExecutionException e) {
+        throw new RuntimeException(e.getCause());
+      } finally {
+        threadPool.shutdown();
       }
 
     }
@@ -384,7 +456,7 @@ public class NbestMinRiskReranker {
         + (System.currentTimeMillis() - startTime) / 1000.0);
   }
 
-  private class RankerTask implements Runnable {
+  private class RankerTask implements Callable<String> {
 
     final List<String> nbest;
     final int sentID;
@@ -394,28 +466,85 @@ public class NbestMinRiskReranker {
       this.sentID = sentID;
     }
 
-    public void run() {
-      String result = processOneSent(nbest, sentID);
-      resultsQueue.add(new RankerResult(result, sentID));
+    public String call() {
+      return processOneSent(nbest, sentID);
     }
 
   }
 
-  private static class RankerResult implements Comparable<RankerResult> {
-    final String result;
-    final Integer sentenceNumber;
+  /*
+   * Assigns ids to the words and n-grams of the hypotheses of one sentence. An n-gram is identified
+   * by the id of its prefix and its last word, so ids are assigned without building n-gram strings,
+   * with a primitive open-addressing table.
+   */
+  static class NgramTable {
+    private final HashMap<String, Integer> words = new HashMap<String, Integer>();
+
+    private long[] keys = new long[1024];
+    private int[] values = new int[1024];
+    private int[] orders = new int[512];
+    private int size = 0;
+
+    NgramTable() {
+      Arrays.fill(values, -1);
+    }
 
-    RankerResult(String result, int sentenceNumber) {
-      this.result = result;
-      this.sentenceNumber = sentenceNumber;
+    int word(String word) {
+      Integer id = words.get(word);
+      if (id == null) {
+        id = words.size();
+        words.put(word, id);
+      }
+      return id;
     }
 
-    public int compareTo(RankerResult o) {
-      return sentenceNumber.compareTo(o.sentenceNumber);
+    /* Returns the id of the n-gram made of the n-gram prefix (or -1) followed by the word. */
+    int id(int prefix, int word) {
+      long key = ((long) (prefix + 1) << 32) | word;
+      int slot = slot(key);
+      if (values[slot] == -1) {
+        if (2 * (size + 1) > keys.length) {
+          grow();
+          slot = slot(key);
+        }
+        if (size == orders.length)
+          orders = Arrays.copyOf(orders, 2 * size);
+        orders[size] = (prefix == -1) ? 1 : orders[prefix] + 1;
+        keys[slot] = key;
+        values[slot] = size++;
+      }
+      return values[slot];
     }
 
-    public String toString() {
-      return result;
+    int order(int id) {
+      return orders[id];
+    }
+
+    int size() {
+      return size;
+    }
+
+    private int slot(long key) {
+      int mask = keys.length - 1;
+      long mixed = key * 0x9E3779B97F4A7C15L;
+      int slot = (int) (mixed >>> 40) & mask;
+      while (values[slot] != -1 && keys[slot] != key)
+        slot = (slot + 1) & mask;
+      return slot;
+    }
+
+    private void grow() {
+      long[] oldKeys = keys;
+      int[] oldValues = values;
+      keys = new long[2 * oldKeys.length];
+      values = new int[keys.length];
+      Arrays.fill(values, -1);
+      for (int i = 0; i < oldKeys.length; i++)
+        if (oldValues[i] != -1) {
+          int slot = slot(oldKeys[i]);
+          keys[slot] = oldKeys[i];
+          values[slot] = oldValues[i];
+        }
     }
   }
 }
@@ -0,0 +1,113 @@
+package joshua.decoder;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The output format of the decoder (the "output-format" parameter), compiled once into a list of
+ * pieces: literal text and fields such as %s and %f. An output line is written by appending each
+ * piece in turn to a {@link StringBuilder}, so that no intermediate strings are built and fields
+ * that do not appear in the format are never computed.
+ * <p>
+ * The fields are:
+ *
+ * <pre>
+ * %s  the hypothesis
+ * %S  the hypothesis, denormalized
+ * %i  the sentence id
+ * %f  the feature values
+ * %c  the model cost
+ * %t  the hypothesis as a tree
+ * %e  the source side of the derivation
+ * %a  the word alignment
+ * %d  the derivation, one rule per line
+ * </pre>
+ *
+ * A % followed by any other character is literal text.
+ */
+public class OutputFormat {
+
+  public enum Field {
+    HYPOTHESIS('s'),
+    DENORMALIZED_HYPOTHESIS('S'),
+    SENTENCE_ID('i'),
+    FEATURES('f'),
+    MODEL_COST('c'),
+    TREE('t'),
+    SOURCE('e'),
+    ALIGNMENT('a'),
+    DERIVATION('d');
+
+    private final char code;
+
+    private Field(char code) {
+      this.code = code;
+    }
+
+    static Field forCode(char code) {
+      for (Field field : values())
+        if (field.code == code)
+          return field;
+      return null;
+    }
+  }
+
+  /**
+   * Appends the values of the fields of one output line.
+   */
+  public interface Values {
+    void append(Field field, StringBuilder sb);
+  }
+
+  /* The pieces of the format, in order: a field, or literal text if the field is null. */
+  private final Field[] fields;
+  private final String[] literals;
+
+  public OutputFormat(String format) {
+    List<Field> fields = new ArrayList<Field>();
+    List<String> literals = new ArrayList<String>();
+    StringBuilder literal = new StringBuilder();
+    for (int i = 0; i < format.length(); i++) {
+      char c = format.charAt(i);
+      Field field = (c == '%' && i + 1 < format.length()) ? Field.forCode(format.charAt(i + 1))
+          : null;
+      if (field == null) {
+        literal.append(c);
+        continue;
+      }
+      if (literal.length() > 0) {
+        fields.add(null);
+        literals.add(literal.toString());
+        literal.setLength(0);
+      }
+      fields.add(field);
+      literals.add(null);
+      i++;
+    }
+    if (literal.length() > 0) {
+      fields.add(null);
+      literals.add(literal.toString());
+    }
+    this.fields = fields.toArray(new Field[fields.size()]);
+    this.literals = literals.toArray(new String[literals.size()]);
+  }
+
+  public boolean contains(Field field) {
+    for (Field f : fields)
+      if (f == field)
+        return true;
+    return false;
+  }
+
+  /**
+   * Appends one output line (without a newline) to sb.
+   */
+  public void append(Values values, StringBuilder sb) {
+    for (int i = 0; i < fields.length; i++) {
+      if (fields[i] == null)
+        sb.append(literals[i]);
+      else
+        values.append(fields[i], sb);
+    }
+  }
+}
@@ -7,7 +7,9 @@ import java.util.List;
 
 import joshua.decoder.ff.FeatureFunction;
 import joshua.decoder.ff.lm.KenLMFF;
+import joshua.decoder.hypergraph.ForestMinRiskDecoder;
 import joshua.decoder.hypergraph.HyperGraph;
+import joshua.decoder.hypergraph.HyperGraphWriter;
 import joshua.decoder.hypergraph.KBestExtractor;
 import joshua.decoder.segment_file.Sentence;
 
@@ -30,6 +32,16 @@ public class Translation {
 
   public Translation(Sentence source, HyperGraph hypergraph,
       List<FeatureFunction> featureFunctions, JoshuaConfiguration joshuaConfiguration) {
+    this(source, hypergraph, featureFunctions, null, joshuaConfiguration);
+  }
+
+  /**
+   * @param hypergraphWriter if not null, the hypergraph is also written there (see
+   *          "write-hypergraphs")
+   */
+  public Translation(Sentence source, HyperGraph hypergraph,
+      List<FeatureFunction> featureFunctions, HyperGraphWriter hypergraphWriter,
+      JoshuaConfiguration joshuaConfiguration) {
     this.source = source;
 
     StringWriter sw = new StringWriter();
@@ -41,6 +53,9 @@ public class Translation {
           hypergraph.dump(String.format(joshuaConfiguration.hypergraphFilePattern, source.id()));
         }
 
+        if (hypergraphWriter != null)
+          hypergraphWriter.write(hypergraph);
+
         long startTime = System.currentTimeMillis();
 
         KBestExtractor kBestExtractor = new KBestExtractor(source, featureFunctions,
@@ -49,7 +64,14 @@ public class Translation {
         // We must put this weight as zero, otherwise we get an error when we try to retrieve it
         // without checking
         Decoder.weights.put("BLEU", 0);
-        kBestExtractor.lazyKBestExtractOnHG(hypergraph, joshuaConfiguration.topN, out);
+        if (joshuaConfiguration.mbr) {
+          // Output the minimum Bayes risk hypothesis instead of the k-best list
+          HyperGraph mbrDerivation = ForestMinRiskDecoder.create(featureFunctions,
+              joshuaConfiguration).decode(hypergraph);
+          kBestExtractor.lazyKBestExtractOnHG(mbrDerivation, 1, out);
+        } else {
+          kBestExtractor.lazyKBestExtractOnHG(hypergraph, joshuaConfiguration.topN, out);
+        }
 
         if (joshuaConfiguration.rescoreForest) {
           Decoder.weights.put("BLEU", joshuaConfiguration.rescoreForestWeight);
@@ -60,17 +82,26 @@ public class Translation {
         }
 
         float seconds = (float) (System.currentTimeMillis() - startTime) / 1000.0f;
-        System.err.println(String.format("[%d] %d-best extraction took %.3f seconds", id(),
-            joshuaConfiguration.topN, seconds));
+        if (joshuaConfiguration.mbr)
+          System.err.println(String.format("[%d] MBR decoding took %.3f seconds", id(), seconds));
+        else
+          System.err.println(String.format("[%d] %d-best extraction took %.3f seconds", id(),
+              joshuaConfiguration.topN, seconds));
 
       } else {
 
         // There is no output for the given input (e.g. blank line)
-        String outputString = joshuaConfiguration.outputFormat.replace("%s", "").replace("%e", "")
-            .replace("%S", "").replace("%t", "").replace("%i", Integer.toString(source.id()))
-            .replace("%f", "").replace("%c", "0.000");
-
-        out.write(outputString);
+        StringBuilder outputString = new StringBuilder();
+        new OutputFormat(joshuaConfiguration.outputFormat).append(new OutputFormat.Values() {
+          public void append(OutputFormat.Field field, StringBuilder sb) {
+            if (field == OutputFormat.Field.SENTENCE_ID)
+              sb.append(id());
+            else if (field == OutputFormat.Field.MODEL_COST)
+              sb.append("0.000");
+          }
+        }, outputString);
+
+        out.append(outputString);
         out.newLine();
       }
 
@@ -8,6 +8,7 @@ import java.util.Map;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
+import joshua.decoder.ff.FeatureDelta;
 import joshua.decoder.ff.FeatureFunction;
 import joshua.decoder.ff.state_maintenance.DPState;
 import joshua.decoder.ff.tm.Rule;
@@ -69,7 +70,8 @@ class Cell {
    * itself has many hyperedges only "goal bin" should call this function
    */
   // note that the input bin is bin[0][n], not the goal bin
-  boolean transitToGoal(Cell bin, List<FeatureFunction> featureFunctions, int sentenceLength) {
+  boolean transitToGoal(Cell bin, List<FeatureFunction> featureFunctions, int sentenceLength,
+      boolean storeFeatures) {
     this.sortedNodes = new ArrayList<HGNode>();
     HGNode goalItem = null;
 
@@ -79,14 +81,19 @@ class Cell {
         List<HGNode> antNodes = new ArrayList<HGNode>();
         antNodes.add(antNode);
 
-        float finalTransitionLogP = ComputeNodeResult.computeFinalCost(featureFunctions, antNodes,
-            0, sentenceLength, null, this.chart.segmentID);
+        FeatureDelta.Builder delta = storeFeatures ? new FeatureDelta.Builder() : null;
+        float finalTransitionLogP = (delta == null) ? ComputeNodeResult.computeFinalCost(
+            featureFunctions, antNodes, 0, sentenceLength, null, this.chart.segmentID)
+            : ComputeNodeResult.computeFinalCost(featureFunctions, antNodes, 0, sentenceLength,
+                null, this.chart.segmentID, delta);
 
         List<HGNode> previousItems = new ArrayList<HGNode>();
         previousItems.add(antNode);
 
         HyperEdge dt = new HyperEdge(null, logP + finalTransitionLogP, finalTransitionLogP,
             previousItems, null);
+        if (delta != null)
+          dt.setFeatureDelta(delta.build());
 
         if (null == goalItem) {
           goalItem = new HGNode(0, sentenceLength + 1, this.goalSymID, null, dt, logP
@@ -159,6 +166,7 @@ class Cell {
      */
 
     HyperEdge hyperEdge = new HyperEdge(rule, finalizedTotalLogP, transitionLogP, ants, srcPath);
+    hyperEdge.setFeatureDelta(result.getFeatureDelta());
     newNode = new HGNode(i, j, rule.getLHS(), dpStates, hyperEdge, pruningEstimate);
 
     /**
@@ -1,7 +1,6 @@
 package joshua.decoder.chart_parser;
 
 import java.util.ArrayList;
-import java.util.Collection;
 import java.util.HashSet;
 import java.util.List;
 import java.util.PriorityQueue;
@@ -16,18 +15,17 @@ import joshua.decoder.chart_parser.DotChart.DotNode;
 import joshua.decoder.ff.FeatureFunction;
 import joshua.decoder.ff.SourceDependentFF;
 import joshua.decoder.ff.tm.Grammar;
+import joshua.decoder.ff.tm.MergedTrie;
+import joshua.decoder.ff.tm.OOVGrammar;
 import joshua.decoder.ff.tm.Rule;
-import joshua.decoder.ff.tm.BilingualRule;
 import joshua.decoder.ff.tm.RuleCollection;
 import joshua.decoder.ff.tm.Trie;
-import joshua.decoder.ff.tm.hash_based.MemoryBasedBatchGrammar;
 import joshua.decoder.hypergraph.HGNode;
 import joshua.decoder.hypergraph.HyperGraph;
 import joshua.decoder.segment_file.ParsedSentence;
 import joshua.decoder.segment_file.Sentence;
-import joshua.lattice.Arc;
 import joshua.lattice.Lattice;
-import joshua.lattice.Node;
+import joshua.util.Cache;
 import joshua.util.ChartSpan;
 
 /**
@@ -71,7 +69,7 @@ public class Chart {
   private int sourceLength;
   private List<FeatureFunction> featureFunctions;
   private Grammar[] grammars;
-  private DotChart[] dotcharts; // each grammar should have a dotchart associated with it
+  private DotChart[] dotcharts; // each grammar has a dotchart associated with it, possibly shared
   private Cell goalBin;
   private int goalSymbolID = -1;
   private Lattice<Integer> inputLattice;
@@ -81,6 +79,9 @@ public class Chart {
 
   private ManualConstraintsHandler manualConstraintsHandler;
 
+  /* Outside estimates for the spans of the sentence, if "future-cost-beam" is set. */
+  private FutureCostTable futureCosts = null;
+
   // ===============================================================
   // Static fields
   // ===============================================================
@@ -105,6 +106,15 @@ public class Chart {
 
   public Chart(Sentence sentence, List<FeatureFunction> featureFunctions, Grammar[] grammars,
       String goalSymbol, JoshuaConfiguration joshuaConfiguration) {
+    this(sentence, featureFunctions, grammars, goalSymbol, null, joshuaConfiguration);
+  }
+
+  /**
+   * Creates a chart whose OOV rules take their estimated costs from, and add them to, the given
+   * cache (see {@link OOVGrammar}). A decoder thread passes the same cache for all its sentences.
+   */
+  public Chart(Sentence sentence, List<FeatureFunction> featureFunctions, Grammar[] grammars,
+      String goalSymbol, Cache<Long, Float> oovCosts, JoshuaConfiguration joshuaConfiguration) {
     this.joshuaConfiguration = joshuaConfiguration;
     this.inputLattice = sentence.intLattice();
     this.sourceLength = inputLattice.size() - 1;
@@ -125,14 +135,11 @@ public class Chart {
     this.grammars = new Grammar[grammars.length + 1];
     for (int i = 0; i < grammars.length; i++)
       this.grammars[i] = grammars[i];
-    MemoryBasedBatchGrammar oovGrammar = new MemoryBasedBatchGrammar("oov", joshuaConfiguration);
-    this.grammars[this.grammars.length - 1] = oovGrammar;
+    this.grammars[this.grammars.length - 1] = new OOVGrammar(inputLattice, parseTree, grammars,
+        featureFunctions, oovCosts, joshuaConfiguration);
 
     // each grammar will have a dot chart
-    this.dotcharts = new DotChart[this.grammars.length];
-    for (int i = 0; i < this.grammars.length; i++)
-      this.dotcharts[i] = new DotChart(this.inputLattice, this.grammars[i], this,
-          NonterminalMatcher.createNonterminalMatcher(logger,joshuaConfiguration),this.grammars[i].isRegexpGrammar());
+    this.dotcharts = createDotCharts();
 
     // Begin to do initialization work
 
@@ -140,80 +147,15 @@ public class Chart {
     manualConstraintsHandler = new ManualConstraintsHandler(this, grammars[grammars.length - 1],
         sentence.constraints());
 
-    /*
-     * Add OOV rules; This should be called after the manual constraints have been set up.
-     */
-    for (Node<Integer> node : inputLattice) {
-      for (Arc<Integer> arc : node.getOutgoingArcs()) {
-        // create a rule, but do not add into the grammar trie
-        // TODO: which grammar should we use to create an OOV rule?
-        int sourceWord = arc.getLabel();
-        if (sourceWord == Vocabulary.id(Vocabulary.START_SYM)
-            || sourceWord == Vocabulary.id(Vocabulary.STOP_SYM))
-          continue;
-
-        // Determine if word is actual OOV.
-        if (joshuaConfiguration.true_oovs_only) {
-          boolean true_oov = true;
-          for (Grammar g : grammars) {
-            if (g.getTrieRoot().match(sourceWord) != null
-                && g.getTrieRoot().match(sourceWord).hasRules()) {
-              true_oov = false;
-              break;
-            }
-          }
-          if (!true_oov)
-            continue;
-        }
-
-        final int targetWord;
-        if (joshuaConfiguration.mark_oovs) {
-          targetWord = Vocabulary.id(Vocabulary.word(sourceWord) + "_OOV");
-        } else {
-          targetWord = sourceWord;
-        }
-
-        int defaultNTIndex = Vocabulary.id(joshuaConfiguration.default_non_terminal.replaceAll(
-            "\\[\\]", ""));
-
-        List<BilingualRule> oovRules = new ArrayList<BilingualRule>();
-        int[] sourceWords = { sourceWord };
-        int[] targetWords = { targetWord };
-        if (parseTree != null
-            && (joshuaConfiguration.constrain_parse || joshuaConfiguration.use_pos_labels)) {
-          Collection<Integer> labels = parseTree.getConstituentLabels(node.getNumber() - 1,
-              node.getNumber());
-          for (int label : labels) {
-            BilingualRule oovRule = new BilingualRule(label, sourceWords, targetWords, "", 0);
-            oovRules.add(oovRule);
-            oovGrammar.addRule(oovRule);
-            oovRule.estimateRuleCost(featureFunctions);
-          }
-
-        }
-        // Always add default OOV rule, as parse labels might not match with glue grammar.
-        BilingualRule oovRule = new BilingualRule(defaultNTIndex, sourceWords, targetWords, "", 0);
-        oovRules.add(oovRule);
-        oovGrammar.addRule(oovRule);
-        oovRule.estimateRuleCost(featureFunctions);
-
-        if (manualConstraintsHandler.containHardRuleConstraint(node.getNumber(), arc.getHead()
-            .getNumber())) {
-          // do not add the oov axiom
-          logger.fine("Using hard rule constraint for span " + node.getNumber() + ", "
-              + arc.getHead().getNumber());
-        }
-      }
-    }
-
-    // Grammars must be sorted.
-    oovGrammar.sortGrammar(this.featureFunctions);
-
     /* Find the SourceDependent feature and give it access to the sentence. */
     for (FeatureFunction ff : this.featureFunctions)
       if (ff instanceof SourceDependentFF)
         ((SourceDependentFF) ff).setSource(sentence);
 
+    if (joshuaConfiguration.future_cost_beam > 0)
+      futureCosts = new FutureCostTable(inputLattice, this.grammars, this.featureFunctions,
+          segmentID);
+
     logger.fine("Finished seeding chart.");
   }
 
@@ -237,6 +179,31 @@ public class Chart {
   // The primary method for filling in the chart
   // ===============================================================
 
+  /**
+   * Creates the dot charts. Normally there is one per grammar. If grammar fusion is enabled, all
+   * grammars that don't use regular-expression matching share a single dot chart over a
+   * {@link MergedTrie}, so prefixes common to several grammars are only matched once.
+   */
+  private DotChart[] createDotCharts() {
+    List<DotChart> charts = new ArrayList<DotChart>();
+    List<Grammar> fused = new ArrayList<Grammar>();
+    for (Grammar grammar : this.grammars) {
+      if (joshuaConfiguration.fuse_grammars && !grammar.isRegexpGrammar())
+        fused.add(grammar);
+      else
+        charts.add(new DotChart(this.inputLattice, grammar, this,
+            NonterminalMatcher.createNonterminalMatcher(logger, joshuaConfiguration),
+            grammar.isRegexpGrammar()));
+    }
+    if (fused.size() == 1)
+      charts.add(new DotChart(this.inputLattice, fused.get(0), this,
+          NonterminalMatcher.createNonterminalMatcher(logger, joshuaConfiguration), false));
+    else if (fused.size() > 1)
+      charts.add(new DotChart(this.inputLattice, fused.toArray(new Grammar[fused.size()]), this,
+          NonterminalMatcher.createNonterminalMatcher(logger, joshuaConfiguration)));
+    return charts.toArray(new DotChart[charts.size()]);
+  }
+
   /**
    * Construct the hypergraph with the help from DotChart.
    */
@@ -272,74 +239,43 @@ public class Chart {
     HashSet<CubePruneState> visitedStates = new HashSet<CubePruneState>();
 
     // seed it with the beginning states
-    // for each applicable grammar
-    for (int g = 0; g < grammars.length; g++) {
-      if (!grammars[g].hasRuleForSpan(i, j, inputLattice.distance(i, j))
-          || null == dotcharts[g].getDotCell(i, j))
+    // for each applicable dot chart
+    for (DotChart dotchart : dotcharts) {
+      if (!dotchart.hasRuleForSpan(i, j, inputLattice.distance(i, j))
+          || null == dotchart.getDotCell(i, j))
         continue;
       // for each rule with applicable rules
-      for (DotNode dotNode : dotcharts[g].getDotCell(i, j).getDotNodes()) {
-        RuleCollection ruleCollection = dotNode.getApplicableRules();
-        if (ruleCollection == null)
-          continue;
-
-        // Create the Cell if necessary.
-        if (cells.get(i, j) == null)
-          cells.set(i, j, new Cell(this, goalSymbolID));
-
-        /*
-         * TODO: This causes the whole list of rules to be copied, which is unnecessary when there
-         * are not actually any constraints in play.
-         */
-        // List<Rule> sortedAndFilteredRules = manualConstraintsHandler.filterRules(i, j,
-        // ruleCollection.getSortedRules(this.featureFunctions));
-        List<Rule> rules = ruleCollection.getSortedRules(this.featureFunctions);
-        SourcePath sourcePath = dotNode.getSourcePath();
-
-        if (null == rules || rules.size() <= 0)
-          continue;
-
-        int arity = ruleCollection.getArity();
-
-        // Rules that have no nonterminals in them so far
-        // are added to the chart with no pruning
-        if (arity == 0) {
-          for (Rule rule : rules) {
-            ComputeNodeResult result = new ComputeNodeResult(this.featureFunctions, rule, null, i,
-                j, sourcePath, this.segmentID);
-            if (stateConstraint == null || stateConstraint.isLegal(result.getDPStates()))
-              cells.get(i, j).addHyperEdgeInCell(result, rule, i, j, null, sourcePath, true);
+      for (DotNode dotNode : dotchart.getDotCell(i, j).getDotNodes()) {
+        if (dotNode.getTrieNode() instanceof MergedTrie) {
+          // Rules are taken from each grammar separately. The dot chart has already dropped the
+          // grammars whose span limit excludes (i,j).
+          MergedTrie trieNode = (MergedTrie) dotNode.getTrieNode();
+          for (int g = 0; g < trieNode.size(); g++) {
+            if (trieNode.getTrie(g) != null)
+              addCandidates(i, j, dotNode, trieNode.getTrie(g).getRuleCollection(),
+                  stateConstraint, candidates, visitedStates);
           }
         } else {
-
-          Rule bestRule = rules.get(0);
-
-          List<HGNode> currentAntNodes = new ArrayList<HGNode>();
-          List<SuperNode> superNodes = dotNode.getAntSuperNodes();
-          for (SuperNode si : superNodes) {
-            // TODO: si.nodes must be sorted
-            currentAntNodes.add(si.nodes.get(0));
-          }
-
-          ComputeNodeResult result = new ComputeNodeResult(featureFunctions, bestRule,
-              currentAntNodes, i, j, sourcePath, this.segmentID);
-
-          int[] ranks = new int[1 + superNodes.size()];
-          for (int r = 0; r < ranks.length; r++)
-            ranks[r] = 1;
-
-          CubePruneState bestState = new CubePruneState(result, ranks, rules, currentAntNodes);
-
-          bestState.setDotNode(dotNode);
-          candidates.add(bestState);
-          visitedStates.add(bestState);
+          addCandidates(i, j, dotNode, dotNode.getApplicableRules(), stateConstraint, candidates,
+              visitedStates);
         }
       }
     }
 
+    /*
+     * With outside estimates, candidates that fall too far below the estimate of the whole sentence
+     * end the search early. Candidates come off the heap best first, so none of the remaining ones
+     * would do better. The best candidate of a span is always kept.
+     */
+    float threshold = Float.NEGATIVE_INFINITY;
+    if (futureCosts != null)
+      threshold = futureCosts.total() - joshuaConfiguration.future_cost_beam;
+
     int popLimit = joshuaConfiguration.pop_limit;
     int popCount = 0;
     while (candidates.size() > 0 && ((++popCount <= popLimit) || popLimit == 0)) {
+      if (popCount > 1 && candidates.peek().computeNodeResult.getPruningEstimate() < threshold)
+        break;
       CubePruneState state = candidates.poll();
 
       DotNode dotNode = state.getDotNode();
@@ -380,8 +316,8 @@ public class Chart {
           nextAntNodes.add(superNodes.get(x).nodes.get(newRanks[x + 1] - 1));
 
         /* Create the next state. */
-        CubePruneState nextState = new CubePruneState(new ComputeNodeResult(featureFunctions,
-            nextRule, nextAntNodes, i, j, sourcePath, this.segmentID), newRanks, rules,
+        CubePruneState nextState = new CubePruneState(computeNode(nextRule,
+            nextAntNodes, i, j, sourcePath), newRanks, rules,
             nextAntNodes);
         nextState.setDotNode(dotNode);
 
@@ -395,6 +331,68 @@ public class Chart {
     }
   }
 
+  /**
+   * Seeds the cube pruning candidates with the rules of one rule collection at a dot node. Rules
+   * without nonterminals are added to the chart directly.
+   */
+  private void addCandidates(int i, int j, DotNode dotNode, RuleCollection ruleCollection,
+      StateConstraint stateConstraint, PriorityQueue<CubePruneState> candidates,
+      HashSet<CubePruneState> visitedStates) {
+    if (ruleCollection == null)
+      return;
+
+    // Create the Cell if necessary.
+    if (cells.get(i, j) == null)
+      cells.set(i, j, new Cell(this, goalSymbolID));
+
+    /*
+     * TODO: This causes the whole list of rules to be copied, which is unnecessary when there
+     * are not actually any constraints in play.
+     */
+    // List<Rule> sortedAndFilteredRules = manualConstraintsHandler.filterRules(i, j,
+    // ruleCollection.getSortedRules(this.featureFunctions));
+    List<Rule> rules = ruleCollection.getSortedRules(this.featureFunctions);
+    SourcePath sourcePath = dotNode.getSourcePath();
+
+    if (null == rules || rules.size() <= 0)
+      return;
+
+    int arity = ruleCollection.getArity();
+
+    // Rules that have no nonterminals in them so far
+    // are added to the chart with no pruning
+    if (arity == 0) {
+      for (Rule rule : rules) {
+        ComputeNodeResult result = computeNode(rule, null, i, j, sourcePath);
+        if (stateConstraint == null || stateConstraint.isLegal(result.getDPStates()))
+          cells.get(i, j).addHyperEdgeInCell(result, rule, i, j, null, sourcePath, true);
+      }
+    } else {
+
+      Rule bestRule = rules.get(0);
+
+      List<HGNode> currentAntNodes = new ArrayList<HGNode>();
+      List<SuperNode> superNodes = dotNode.getAntSuperNodes();
+      for (SuperNode si : superNodes) {
+        // TODO: si.nodes must be sorted
+        currentAntNodes.add(si.nodes.get(0));
+      }
+
+      ComputeNodeResult result = computeNode(bestRule, currentAntNodes, i, j,
+          sourcePath);
+
+      int[] ranks = new int[1 + superNodes.size()];
+      for (int r = 0; r < ranks.length; r++)
+        ranks[r] = 1;
+
+      CubePruneState bestState = new CubePruneState(result, ranks, rules, currentAntNodes);
+
+      bestState.setDotNode(dotNode);
+      candidates.add(bestState);
+      visitedStates.add(bestState);
+    }
+  }
+
   /**
    * This function performs the main work of decoding.
    * 
@@ -419,13 +417,13 @@ public class Chart {
          * nonterminals.
          */
         logger.finest("Expanding cell");
-        for (int k = 0; k < this.grammars.length; k++) {
+        for (DotChart dotchart : this.dotcharts) {
           /**
            * Each dotChart can act individually (without consulting other dotCharts) because it
            * either consumes the source input or the complete nonTerminals, which are both
            * grammar-independent.
            **/
-          this.dotcharts[k].expandDotCell(i, j);
+          dotchart.expandDotCell(i, j);
         }
 
         /* 2. The regular CKY part: add completed items onto the chart via cube pruning. */
@@ -440,9 +438,9 @@ public class Chart {
         // superIterms in
         // chart_cell(i,j)
         logger.finest("Initializing new dot-items that start from complete items in this cell");
-        for (int k = 0; k < this.grammars.length; k++) {
-          if (this.grammars[k].hasRuleForSpan(i, j, inputLattice.distance(i, j))) {
-            this.dotcharts[k].startDotItems(i, j);
+        for (DotChart dotchart : this.dotcharts) {
+          if (dotchart.hasRuleForSpan(i, j, inputLattice.distance(i, j))) {
+            dotchart.startDotItems(i, j);
           }
         }
 
@@ -462,7 +460,7 @@ public class Chart {
     // transition_final: setup a goal item, which may have many deductions
     if (null == this.cells.get(0, sourceLength)
         || !this.goalBin.transitToGoal(this.cells.get(0, sourceLength), this.featureFunctions,
-            this.sourceLength)) {
+            this.sourceLength, joshuaConfiguration.store_edge_features)) {
       logger.severe("No complete item in the Cell[0," + sourceLength + "]; possible reasons: "
           + "(1) your grammar does not have any valid derivation for the source sentence; "
           + "(2) too aggressive pruning.");
@@ -530,8 +528,8 @@ public class Chart {
           List<Rule> rules = childNode.getRuleCollection().getSortedRules(this.featureFunctions);
 
           for (Rule rule : rules) { // for each unary rules
-            ComputeNodeResult states = new ComputeNodeResult(this.featureFunctions, rule,
-                antecedents, i, j, new SourcePath(), this.segmentID);
+            ComputeNodeResult states = computeNode(rule, antecedents, i, j,
+                new SourcePath());
             HGNode resNode = chartBin.addHyperEdgeInCell(states, rule, i, j, antecedents,
                 new SourcePath(), true);
 
@@ -549,6 +547,17 @@ public class Chart {
     return qtyAdditionsToQueue;
   }
 
+  /*
+   * Scores the application of a rule over (i, j), with the span's outside estimate and, if asked
+   * for, recording the edge's feature values for k-best extraction.
+   */
+  private ComputeNodeResult computeNode(Rule rule, List<HGNode> tailNodes, int i, int j,
+      SourcePath sourcePath) {
+    float outsideEstimate = (futureCosts == null) ? 0.0f : futureCosts.outside(i, j);
+    return new ComputeNodeResult(this.featureFunctions, rule, tailNodes, i, j, sourcePath,
+        this.segmentID, outsideEstimate, joshuaConfiguration.store_edge_features);
+  }
+
   /**
    * This functions add to the hypergraph rules with zero arity (i.e., terminal rules).
    */
@@ -560,8 +569,7 @@ public class Chart {
     // System.err.println(String.format("ADDAXIOM(%d,%d,%s,%s", i, j, rule,
     // srcPath));
 
-    this.cells.get(i, j).addHyperEdgeInCell(
-        new ComputeNodeResult(this.featureFunctions, rule, null, i, j, srcPath, segmentID), rule,
-        i, j, null, srcPath, false);
+    this.cells.get(i, j).addHyperEdgeInCell(computeNode(rule, null, i, j, srcPath), rule, i, j,
+        null, srcPath, false);
   }
 }
@@ -4,6 +4,7 @@ import java.util.ArrayList;
 import java.util.List;
 
 import joshua.decoder.ff.StatefulFF;
+import joshua.decoder.ff.FeatureDelta;
 import joshua.decoder.ff.FeatureFunction;
 import joshua.decoder.ff.FeatureVector;
 import joshua.decoder.ff.state_maintenance.DPState;
@@ -33,6 +34,9 @@ public class ComputeNodeResult {
   // The StateComputer objects themselves serve as keys.
   List<DPState> dpStates;
 
+  // The unweighted feature values of the transition, if they were asked for.
+  private FeatureDelta featureDelta;
+
   /**
    * Computes the new state(s) that are produced when applying the given rule to the list of tail
    * nodes. Also computes a range of costs of doing so (the transition cost, the total (Viterbi)
@@ -40,6 +44,17 @@ public class ComputeNodeResult {
    */
   public ComputeNodeResult(List<FeatureFunction> featureFunctions, Rule rule,
       List<HGNode> tailNodes, int i, int j, SourcePath sourcePath, int sentID) {
+    this(featureFunctions, rule, tailNodes, i, j, sourcePath, sentID, 0.0f, false);
+  }
+
+  /**
+   * As above, adding an estimate of the cost of the input outside the span (i, j) to the pruning
+   * estimate (see {@link FutureCostTable}), and, if storeFeatures is set, recording the unweighted
+   * feature values (see {@link #getFeatureDelta()}).
+   */
+  public ComputeNodeResult(List<FeatureFunction> featureFunctions, Rule rule,
+      List<HGNode> tailNodes, int i, int j, SourcePath sourcePath, int sentID,
+      float outsideEstimate, boolean storeFeatures) {
 
     // The total Viterbi cost of this edge. This is the Viterbi cost of the tail nodes, plus
     // whatever costs we incur applying this rule to create a new hyperedge.
@@ -63,16 +78,24 @@ public class ComputeNodeResult {
     float transitionCost = 0.0f;
 
     // The future cost estimate is a heuristic estimate of the outside cost of this edge.
-    float futureCostEstimate = 0.0f;
+    float futureCostEstimate = outsideEstimate;
     
     /*
      * We now iterate over all the feature functions, computing their cost and their expected future
      * cost.
      */
+    FeatureDelta.Builder delta = storeFeatures ? new FeatureDelta.Builder() : null;
     for (FeatureFunction feature : featureFunctions) {
-      FeatureFunction.ScoreAccumulator acc = feature.new ScoreAccumulator(); 
-      DPState newState = feature.compute(rule, tailNodes, i, j, sourcePath, sentID, acc);
-      transitionCost += acc.getScore();
+      DPState newState;
+      if (delta == null) {
+        FeatureFunction.ScoreAccumulator acc = feature.new ScoreAccumulator();
+        newState = feature.compute(rule, tailNodes, i, j, sourcePath, sentID, acc);
+        transitionCost += acc.getScore();
+      } else {
+        FeatureFunction.RecordingAccumulator acc = feature.new RecordingAccumulator(delta);
+        newState = feature.compute(rule, tailNodes, i, j, sourcePath, sentID, acc);
+        transitionCost += acc.getScore();
+      }
 
       if (feature.isStateful()) {
         futureCostEstimate += feature.estimateFutureCost(rule, newState, sentID);
@@ -91,6 +114,7 @@ public class ComputeNodeResult {
     this.viterbiCost = viterbiCost;
     this.transitionCost = transitionCost;
     this.dpStates = allDPStates;
+    this.featureDelta = (delta == null) ? null : delta.build();
   }
 
   /**
@@ -106,6 +130,22 @@ public class ComputeNodeResult {
     return cost;
   }
 
+  /**
+   * As above, also recording the unweighted feature values of the final transition into delta.
+   */
+  public static float computeFinalCost(List<FeatureFunction> featureFunctions,
+      List<HGNode> tailNodes, int i, int j, SourcePath sourcePath, int sentID,
+      FeatureDelta.Builder delta) {
+
+    float cost = 0;
+    for (FeatureFunction ff : featureFunctions) {
+      FeatureFunction.RecordingAccumulator acc = ff.new RecordingAccumulator(delta);
+      ff.computeFinal(tailNodes.get(0), i, j, sourcePath, sentID, acc);
+      cost += acc.getScore();
+    }
+    return cost;
+  }
+
 
   /**
    * This function is called in the hypergraph code for doing k-best extraction. It computes and
@@ -136,6 +176,13 @@ public class ComputeNodeResult {
     return this.pruningCostEstimate;
   }
 
+  /**
+   * Returns the unweighted feature values fired by the transition, or null if they weren't recorded.
+   */
+  public FeatureDelta getFeatureDelta() {
+    return this.featureDelta;
+  }
+
   float getViterbiCost() {
     return this.viterbiCost;
   }
@@ -69,6 +69,9 @@ public class CubePruneState implements Comparable<CubePruneState> {
         return false;
     if (getDotNode() != state.getDotNode())
       return false;
+    // A dot node over merged grammar tries seeds one state per grammar.
+    if (rules != state.rules)
+      return false;
 
     return true;
   }
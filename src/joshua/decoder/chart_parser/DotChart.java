@@ -2,15 +2,22 @@ package joshua.decoder.chart_parser;
 
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import joshua.corpus.Vocabulary;
 import joshua.decoder.ff.tm.Grammar;
+import joshua.decoder.ff.tm.MergedTrie;
+import joshua.decoder.ff.tm.RegexpMatcher;
 import joshua.decoder.ff.tm.Rule;
 import joshua.decoder.ff.tm.RuleCollection;
 import joshua.decoder.ff.tm.Trie;
+import joshua.decoder.ff.tm.hash_based.MemoryBasedTrie;
 import joshua.lattice.Arc;
 import joshua.lattice.Lattice;
 import joshua.lattice.Node;
@@ -29,7 +36,8 @@ import joshua.util.ChartSpan;
  * Once a rule is completed, it is entered into the {@link DotChart}. {@link DotCell} objects are
  * used to group completed DotNodes over a span.
  * 
- * There is a separate DotChart for every grammar.
+ * There is normally a separate DotChart for every grammar. Alternatively, several grammars can
+ * share one DotChart that walks a {@link MergedTrie} over all of them.
  * 
  * @author Zhifei Li, <zhifei.work@gmail.com>
  * @author Matt Post <post@cs.jhu.edu>
@@ -60,9 +68,19 @@ class DotChart {
   private Chart dotChart;
 
   /**
-   * Translation grammar which contains the translation rules.
+   * Translation grammars which contain the translation rules. There is more than one if the
+   * grammars are walked together through a {@link MergedTrie}.
    */
-  private Grammar pGrammar;
+  private Grammar[] grammars;
+
+  /* The root of the trie walked by this chart. */
+  private Trie trieRoot;
+
+  /*
+   * If the grammars are merged, the indices of those with rules for each span (i,j). Dot items
+   * over a span drop the constituents of the other grammars.
+   */
+  private ChartSpan<BitSet> spanGrammars;
 
   /* Length of input sentence. */
   private final int sentLen;
@@ -72,6 +90,19 @@ class DotChart {
 
   /* If enabled, rule terminals are treated as regular expressions. */
   private final boolean regexpMatching;
+
+  /* Regular expression matches of input words at trie nodes, for the current sentence. */
+  private HashMap<Trie, HashMap<Integer, List<Trie>>> regexpMatches;
+
+  /*
+   * If nonterminals only match arcs with the same label, combinations of dot nodes and completed
+   * items are first checked against these sets (indexed by ntIndex): the nonterminal labels below
+   * each trie node, and the left-hand sides over each span of the main chart.
+   */
+  private final boolean exactMatching;
+  private final HashMap<Integer, Integer> ntIndex;
+  private final HashMap<Trie, BitSet> ntChildren;
+  private final ChartSpan<CompletedCell> completedCells;
   /*
    * nonTerminalMatcher determines the behavior of nonterminal matching: strict or soft-syntactic
    * matching
@@ -106,15 +137,43 @@ class DotChart {
 
   public DotChart(Lattice<Integer> input, Grammar grammar, Chart chart,
       NonterminalMatcher nonTerminalMatcher, boolean regExpMatching) {
+    this(input, new Grammar[] { grammar }, grammar.getTrieRoot(), chart, nonTerminalMatcher,
+        regExpMatching);
+  }
+
+  /**
+   * Constructs a single dot chart shared by several grammars, whose tries are matched in lockstep.
+   * Regular-expression grammars can't be merged this way.
+   * 
+   * @param input A lattice which represents an input sentence.
+   * @param grammars The translation grammars.
+   * @param chart A CKY+ style chart in which completed span entries are stored.
+   */
+  public DotChart(Lattice<Integer> input, Grammar[] grammars, Chart chart,
+      NonterminalMatcher nonTerminalMatcher) {
+    this(input, grammars, new MergedTrie(grammars), chart, nonTerminalMatcher, false);
+  }
+
+  private DotChart(Lattice<Integer> input, Grammar[] grammars, Trie trieRoot, Chart chart,
+      NonterminalMatcher nonTerminalMatcher, boolean regExpMatching) {
 
     this.dotChart = chart;
-    this.pGrammar = grammar;
+    this.grammars = grammars;
+    this.trieRoot = trieRoot;
     this.input = input;
     this.sentLen = input.size();
 
     this.dotcells = new ChartSpan<DotCell>(sentLen, null);
     this.nonTerminalMatcher = nonTerminalMatcher;
     this.regexpMatching = regExpMatching;
+    this.exactMatching = nonTerminalMatcher.matchesExactLabelsOnly();
+    this.ntIndex = new HashMap<Integer, Integer>();
+    this.ntChildren = new HashMap<Trie, BitSet>();
+    this.completedCells = new ChartSpan<CompletedCell>(sentLen, null);
+    if (trieRoot instanceof MergedTrie)
+      this.spanGrammars = new ChartSpan<BitSet>(sentLen, null);
+    if (regExpMatching)
+      this.regexpMatches = new HashMap<Trie, HashMap<Integer, List<Trie>>>();
 
     // seeding the dotChart
     seed();
@@ -140,15 +199,49 @@ class DotChart {
    */
   void seed() {
     for (int j = 0; j <= sentLen - 1; j++) {
-      if (pGrammar.hasRuleForSpan(j, j, input.distance(j, j))) {
-        if (null == pGrammar.getTrieRoot()) {
+      if (hasRuleForSpan(j, j, input.distance(j, j))) {
+        if (null == trieRoot) {
           throw new RuntimeException("trie root is null");
         }
-        addDotItem(pGrammar.getTrieRoot(), j, j, null, null, new SourcePath());
+        addDotItem(trieRoot, j, j, null, null, new SourcePath());
       }
     }
   }
 
+  /**
+   * Returns the grammars whose rules this chart matches. If there is more than one, the trie nodes
+   * are {@link MergedTrie}s whose constituents are in the same order.
+   */
+  Grammar[] getGrammars() {
+    return grammars;
+  }
+
+  /**
+   * Whether any of the chart's grammars has rules for the given span.
+   */
+  boolean hasRuleForSpan(int startIndex, int endIndex, int pathLength) {
+    for (Grammar grammar : grammars)
+      if (grammar.hasRuleForSpan(startIndex, endIndex, pathLength))
+        return true;
+    return false;
+  }
+
+  /**
+   * Returns the indices of the grammars that have rules for the span (i,j).
+   */
+  private BitSet getSpanGrammars(int i, int j) {
+    BitSet active = spanGrammars.get(i, j);
+    if (active == null) {
+      active = new BitSet(grammars.length);
+      int pathLength = input.distance(i, j);
+      for (int g = 0; g < grammars.length; g++)
+        if (grammars[g].hasRuleForSpan(i, j, pathLength))
+          active.set(g);
+      spanGrammars.set(i, j, active);
+    }
+    return active;
+  }
+
   /**
    * This function computes all possible expansions of all rules over the provided span (i,j). By
    * expansions, we mean the moving of the dot forward (from left to right) over a nonterminal or
@@ -226,7 +319,7 @@ class DotChart {
           if (!(child_tnodes == null || child_tnodes.isEmpty())) {
             for (Trie child_tnode : child_tnodes) {
               if (null != child_tnode) {
-                addDotItem(child_tnode, i, j - 1 + arc_len, dotNode.antSuperNodes, null,
+                addDotItem(child_tnode, i, j - 1 + arc_len, dotNode.antecedents, null,
                     dotNode.srcPath.extend(arc));
 
 
@@ -271,21 +364,23 @@ class DotChart {
     }
 
     // complete super-items (items over the same span with different LHSs)
-    List<SuperNode> superNodes = new ArrayList<SuperNode>(this.dotChart.getCell(k, j)
-        .getSortedSuperItems().values());
+    CompletedCell completed = getCompletedCell(k, j);
 
     /* For every partially complete item over (i,k) */
     for (DotNode dotNode : dotcells.get(i, k).dotNodes) {
-      /* For every completed nonterminal in the main chart */
-      for (SuperNode superNode : superNodes) {
-
-
-        // String arcWord = Vocabulary.word(superNode.lhs);
-        // logger.info("DotChart.extendDotItemsWithProvedItems: " + arcWord);
-        // Assert.assertTrue(arcWord.endsWith("]"));
-        // Assert.assertTrue(arcWord.startsWith("["));
-
+      /* Skip dot nodes that can't take any of the completed nonterminals. */
+      BitSet wanted = null;
+      if (exactMatching) {
+        wanted = getNonterminalChildren(dotNode.trieNode);
+        if (!wanted.intersects(completed.lhsSet))
+          continue;
+      }
 
+      /* For every completed nonterminal in the main chart */
+      for (int s = 0; s < completed.superNodes.length; s++) {
+        if (wanted != null && !wanted.get(completed.lhsIndex[s]))
+          continue;
+        SuperNode superNode = completed.superNodes[s];
 
         /*
          * Regular Expression matching allows for a regular-expression style rules in the grammar,
@@ -296,14 +391,11 @@ class DotChart {
         List<Trie> child_tnodes = nonTerminalMatcher.produceMatchingChildTNodesNonterminalLevel(
             dotNode, superNode);
 
-
         if (!child_tnodes.isEmpty()) {
-
-
           for (Trie child_tnode : child_tnodes) {
             if (child_tnode != null) {
               if ((!skipUnary) || (child_tnode.hasExtensions())) {
-                addDotItem(child_tnode, i, j, dotNode.getAntSuperNodes(), superNode, dotNode
+                addDotItem(child_tnode, i, j, dotNode.antecedents, superNode, dotNode
                     .getSourcePath().extendNonTerminal());
               }
             }
@@ -313,6 +405,55 @@ class DotChart {
     }
   }
 
+  /**
+   * Returns the completed items of the main chart over (k,j), along with the set of their
+   * left-hand sides. This must only be called once the cell is complete, which is the case for
+   * every cell a dot node is extended with.
+   */
+  private CompletedCell getCompletedCell(int k, int j) {
+    CompletedCell completed = completedCells.get(k, j);
+    if (completed == null) {
+      completed = new CompletedCell(this.dotChart.getCell(k, j).getSortedSuperItems().values());
+      completedCells.set(k, j, completed);
+    }
+    return completed;
+  }
+
+  /**
+   * Returns the (dense) index of a nonterminal label, assigning one if needed.
+   */
+  private int ntIndex(int label) {
+    Integer index = ntIndex.get(label);
+    if (index == null) {
+      index = ntIndex.size();
+      ntIndex.put(label, index);
+    }
+    return index;
+  }
+
+  /**
+   * Returns the set of nonterminal labels that extend a trie node.
+   */
+  private BitSet getNonterminalChildren(Trie node) {
+    BitSet labels = ntChildren.get(node);
+    if (labels == null) {
+      labels = new BitSet();
+      if (node instanceof MergedTrie) {
+        // Don't build the merged children; combine the constituents' sets instead.
+        MergedTrie merged = (MergedTrie) node;
+        for (int g = 0; g < merged.size(); g++)
+          if (merged.getTrie(g) != null)
+            labels.or(getNonterminalChildren(merged.getTrie(g)));
+      } else if (node.hasExtensions()) {
+        Iterator<Integer> nonterminals = node.getNonterminalExtensionIterator();
+        while (nonterminals.hasNext())
+          labels.set(ntIndex(nonterminals.next()));
+      }
+      ntChildren.put(node, labels);
+    }
+    return labels;
+  }
+
   /*
    * We introduced the ability to have regular expressions in rules for matching against terminals.
    * For example, you could have the rule
@@ -320,26 +461,27 @@ class DotChart {
    * <pre> [X] ||| l?s herman?s ||| siblings </pre>
    * 
    * When this is enabled for a grammar, we need to test against *all* (positive) outgoing arcs of
-   * the grammar trie node to see if any of them match, and then return the whole set. This is quite
-   * expensive, which is why you should only enable regular expressions for small grammars.
+   * the grammar trie node to see if any of them match, and then return the whole set. The labels
+   * of each node are compiled once (at load time for in-memory grammars) into a RegexpMatcher, and
+   * the matches of each word at each node are remembered for the rest of the sentence.
    */
 
-  private ArrayList<Trie> matchAll(DotNode dotNode, int wordID) {
-    ArrayList<Trie> trieList = new ArrayList<Trie>();
-    HashMap<Integer, ? extends Trie> childrenTbl = dotNode.trieNode.getChildren();
-
-    if (childrenTbl != null && wordID >= 0) {
-      // get all the extensions, map to string, check for *, build regexp
-      for (Integer arcID : childrenTbl.keySet()) {
-        if (arcID == wordID) {
-          trieList.add(childrenTbl.get(arcID));
-        } else {
-          String arcWord = Vocabulary.word(arcID);
-          if (Vocabulary.word(wordID).matches(arcWord)) {
-            trieList.add(childrenTbl.get(arcID));
-          }
-        }
-      }
+  private List<Trie> matchAll(DotNode dotNode, int wordID) {
+    Trie node = dotNode.trieNode;
+    HashMap<Integer, List<Trie>> matches = regexpMatches.get(node);
+    if (matches == null) {
+      matches = new HashMap<Integer, List<Trie>>();
+      regexpMatches.put(node, matches);
+    }
+    List<Trie> trieList = matches.get(wordID);
+    if (trieList == null) {
+      if (!node.hasExtensions())
+        trieList = Collections.emptyList();
+      else if (node instanceof MemoryBasedTrie)
+        trieList = ((MemoryBasedTrie) node).getRegexpMatcher().match(wordID);
+      else
+        trieList = new RegexpMatcher(node).match(wordID);
+      matches.put(wordID, trieList);
     }
     return trieList;
   }
@@ -352,21 +494,24 @@ class DotChart {
    * @param tnode the trie node pointing to the location ("dot") in the grammar trie
    * @param i
    * @param j
-   * @param antSuperNodesIn the supernodes representing the rule's tail nodes
+   * @param antecedentsIn the supernodes representing the rule's tail nodes so far
    * @param curSuperNode the lefthand side of the rule being created
    * @param srcPath the path taken through the input lattice
    */
-  private void addDotItem(Trie tnode, int i, int j, List<SuperNode> antSuperNodesIn,
+  private void addDotItem(Trie tnode, int i, int j, AntecedentChain antecedentsIn,
       SuperNode curSuperNode, SourcePath srcPath) {
-    List<SuperNode> antSuperNodes = new ArrayList<SuperNode>();
-    if (antSuperNodesIn != null) {
-      antSuperNodes.addAll(antSuperNodesIn);
-    }
-    if (curSuperNode != null) {
-      antSuperNodes.add(curSuperNode);
+    // Span limits only grow stricter as the dot moves right, so grammars dropped here stay dropped.
+    if (tnode instanceof MergedTrie) {
+      tnode = ((MergedTrie) tnode).restrict(getSpanGrammars(i, j));
+      if (tnode == null)
+        return;
     }
 
-    DotNode item = new DotNode(i, j, tnode, antSuperNodes, srcPath);
+    // Extending over a nonterminal adds to the chain; the prefix itself is shared.
+    AntecedentChain antecedents = (curSuperNode == null) ? antecedentsIn : new AntecedentChain(
+        curSuperNode, antecedentsIn);
+
+    DotNode item = new DotNode(i, j, tnode, antecedents, srcPath);
     if (dotcells.get(i, j) == null) {
       dotcells.set(i, j, new DotCell());
     }
@@ -413,6 +558,41 @@ class DotChart {
     }
   }
 
+  /**
+   * The tail nodes of a partially applied rule, as a persistent list: dot nodes that extend the
+   * same prefix share its chain.
+   */
+  static final class AntecedentChain {
+    private final SuperNode superNode;
+    private final AntecedentChain prefix;
+    private final int size;
+
+    AntecedentChain(SuperNode superNode, AntecedentChain prefix) {
+      this.superNode = superNode;
+      this.prefix = prefix;
+      this.size = (prefix == null) ? 1 : prefix.size + 1;
+    }
+  }
+
+  /**
+   * The completed items over a span of the main chart, with their left-hand sides as a set.
+   */
+  private final class CompletedCell {
+    private final SuperNode[] superNodes;
+    private final int[] lhsIndex;
+    private final BitSet lhsSet;
+
+    CompletedCell(Collection<SuperNode> items) {
+      superNodes = items.toArray(new SuperNode[items.size()]);
+      lhsIndex = new int[superNodes.length];
+      lhsSet = new BitSet();
+      for (int s = 0; s < superNodes.length; s++) {
+        lhsIndex[s] = ntIndex(superNodes[s].lhs);
+        lhsSet.set(lhsIndex[s]);
+      }
+    }
+  }
+
   /**
    * A DotNode represents the partial application of a rule rooted to a particular span (i,j). It
    * maintains a pointer to the trie node in the grammar for efficient mapping.
@@ -426,14 +606,15 @@ class DotChart {
     // int i, j; //start and end position in the chart
     private Trie trieNode = null; // dot_position, point to grammar trie node, this is the only
                                   // place that the DotChart points to the grammar
-    private List<SuperNode> antSuperNodes = null; // pointer to SuperNode in Chart
+    private AntecedentChain antecedents = null; // pointer to SuperNodes in Chart
+    private List<SuperNode> antSuperNodes = null; // the same, as a list, created on demand
     private SourcePath srcPath;
 
-    public DotNode(int i, int j, Trie trieNode, List<SuperNode> antSuperNodes, SourcePath srcPath) {
+    public DotNode(int i, int j, Trie trieNode, AntecedentChain antecedents, SourcePath srcPath) {
       // i = i_in;
       // j = j_in;
       this.trieNode = trieNode;
-      this.antSuperNodes = antSuperNodes;
+      this.antecedents = antecedents;
       this.srcPath = srcPath;
     }
 
@@ -480,6 +661,16 @@ class DotChart {
     }
 
     public List<SuperNode> getAntSuperNodes() {
+      if (antSuperNodes == null) {
+        if (antecedents == null) {
+          antSuperNodes = Collections.emptyList();
+        } else {
+          SuperNode[] nodes = new SuperNode[antecedents.size];
+          for (AntecedentChain a = antecedents; a != null; a = a.prefix)
+            nodes[a.size - 1] = a.superNode;
+          antSuperNodes = Arrays.asList(nodes);
+        }
+      }
       return antSuperNodes;
     }
   }
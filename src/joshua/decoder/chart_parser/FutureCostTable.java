@@ -0,0 +1,120 @@
+package joshua.decoder.chart_parser;
+
+import java.util.Arrays;
+import java.util.List;
+
+import joshua.decoder.ff.FeatureFunction;
+import joshua.decoder.ff.tm.Grammar;
+import joshua.decoder.ff.tm.Rule;
+import joshua.decoder.ff.tm.Trie;
+import joshua.lattice.Arc;
+import joshua.lattice.Lattice;
+
+/**
+ * Outside estimates for the spans of one sentence, in the manner of phrase-based future costs. The
+ * inside estimate of a span is the best score of covering it monotonically with rules without
+ * nonterminals, and the outside estimate of (i, j) is the inside estimate of (0, i) plus that of
+ * (j, n). The rule for a span is the first of its sorted rules, scored the way the chart scores it
+ * (see {@link ComputeNodeResult}); the estimated costs used for sorting leave out features such as
+ * the OOV penalty, which would make spans with OOVs look far too good.
+ * <p>
+ * Scores are stored in a single float array laid out like a {@link joshua.util.ChartSpan}. Spans
+ * that no path of the lattice connects have a score of negative infinity.
+ *
+ * Regular-expression grammars contribute only rules whose source words match the input exactly.
+ */
+class FutureCostTable {
+
+  private final int max;
+  private final float[] inside;
+
+  /**
+   * Builds the table from the (sorted) rules of the sentence's grammars.
+   *
+   * @param lattice the input
+   * @param grammars the grammars of the sentence, including the OOV grammar
+   * @param models the feature functions
+   * @param sentID
+   */
+  FutureCostTable(Lattice<Integer> lattice, Grammar[] grammars, List<FeatureFunction> models,
+      int sentID) {
+    this.max = lattice.size() - 1;
+    this.inside = new float[offset(max, max) + 1];
+    Arrays.fill(inside, Float.NEGATIVE_INFINITY);
+    for (int i = 0; i <= max; i++)
+      inside[offset(i, i)] = 0.0f;
+
+    /* The best single rule over each span. */
+    for (int i = 0; i < max; i++)
+      for (Grammar grammar : grammars)
+        addRules(lattice, grammar, grammar.getTrieRoot(), i, i, new SourcePath(), models,
+            sentID);
+
+    /*
+     * Words that no such rule covers (like the sentence boundaries, which only the glue grammar's
+     * hierarchical rules consume) get an optimistic score of 0, so that every span can be covered.
+     */
+    for (int i = 0; i < max; i++)
+      for (Arc<Integer> arc : lattice.getNode(i).getOutgoingArcs()) {
+        int k = arc.getHead().getNumber();
+        if (inside[offset(i, k)] == Float.NEGATIVE_INFINITY)
+          inside[offset(i, k)] = 0.0f;
+      }
+
+    /* The best monotone combination of them. */
+    for (int width = 2; width <= max; width++) {
+      for (int i = 0; i <= max - width; i++) {
+        int j = i + width;
+        float best = inside[offset(i, j)];
+        for (int k = i + 1; k < j; k++) {
+          float score = inside[offset(i, k)] + inside[offset(k, j)];
+          if (score > best)
+            best = score;
+        }
+        inside[offset(i, j)] = best;
+      }
+    }
+  }
+
+  /* Follows the lattice from node j down the grammar's trie, recording terminal rules. */
+  private void addRules(Lattice<Integer> lattice, Grammar grammar, Trie trie, int i, int j,
+      SourcePath sourcePath, List<FeatureFunction> models, int sentID) {
+    for (Arc<Integer> arc : lattice.getNode(j).getOutgoingArcs()) {
+      Trie child = trie.match(arc.getLabel());
+      if (child == null)
+        continue;
+      int k = arc.getHead().getNumber();
+      SourcePath path = sourcePath.extend(arc);
+      if (child.hasRules() && grammar.hasRuleForSpan(i, k, lattice.distance(i, k))) {
+        List<Rule> rules = child.getRuleCollection().getSortedRules(models);
+        if (rules != null && rules.size() > 0) {
+          float score = new ComputeNodeResult(models, rules.get(0), null, i, k, path, sentID)
+              .getPruningEstimate();
+          if (score > inside[offset(i, k)])
+            inside[offset(i, k)] = score;
+        }
+      }
+      if (child.hasExtensions() && k < max)
+        addRules(lattice, grammar, child, i, k, path, models, sentID);
+    }
+  }
+
+  /**
+   * Returns the estimated score of the best translation of the whole sentence.
+   */
+  float total() {
+    return inside[offset(0, max)];
+  }
+
+  /**
+   * Returns the estimated score of the input outside the span (i, j), or 0 if there is no estimate.
+   */
+  float outside(int i, int j) {
+    float score = inside[offset(0, i)] + inside[offset(j, max)];
+    return (score == Float.NEGATIVE_INFINITY) ? 0.0f : score;
+  }
+
+  private int offset(int i, int j) {
+    return i * (max + 1) - i * (i + 1) / 2 + j;
+  }
+}
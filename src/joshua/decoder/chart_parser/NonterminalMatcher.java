@@ -2,7 +2,6 @@ package joshua.decoder.chart_parser;
 
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
 import java.util.logging.Logger;
@@ -125,32 +124,41 @@ public abstract class NonterminalMatcher {
 	public abstract List<Trie> produceMatchingChildTNodesNonterminalLevel(DotNode dotNode,
 	    SuperNode superNode);
 
+	/**
+	 * Whether a nonterminal only ever matches the trie arc with the same label.
+	 * The DotChart uses this to rule out combinations without consulting the
+	 * trie.
+	 * 
+	 * @return
+	 */
+	public boolean matchesExactLabelsOnly() {
+		return false;
+	}
+
 	private static boolean isNonterminal(int wordIndex) {
 		return wordIndex < 0;
 	}
 
 	/**
-	 * This method finds Nonterminal entries from the children in the Children
-	 * HashMap using a targeted querying strategy, based on knowledge of what the
-	 * Nonterminals are. Storing the Nonterminals and Terminals in the Trie
-	 * separately would be an even smarter strategy perhaps, but requires a more
-	 * thorough refactoring of the code
+	 * This method finds Nonterminal entries among the children of the trie node
+	 * using a targeted querying strategy, based on knowledge of what the
+	 * Nonterminals are.
 	 * 
-	 * @param childrenTbl
+	 * @param trie
 	 * @return
 	 */
-	private List<Trie> getNonTerminalsListFromChildrenByTargetedQuerying(
-	    HashMap<Integer, ? extends Trie> childrenTbl) {
+	private List<Trie> getNonTerminalsListFromChildrenByTargetedQuerying(Trie trie) {
 		List<Trie> trieList = new ArrayList<Trie>();
 
-		if (childrenTbl != null) {
+		if (trie.hasExtensions()) {
 			// get all the extensions, map to string, check for *, build regexp
 
 			for (Integer index : this.nonterminalIndicesExceptForGoalAndOOV) {
 
 				int nonterminalIndexTrieFormat = -index;
-				if (childrenTbl.containsKey(nonterminalIndexTrieFormat)) {
-					trieList.add(childrenTbl.get(nonterminalIndexTrieFormat));
+				Trie child = trie.match(nonterminalIndexTrieFormat);
+				if (child != null) {
+					trieList.add(child);
 				}
 			}
 		}
@@ -159,12 +167,11 @@ public abstract class NonterminalMatcher {
 	}
 
 	private List<Trie> getNonTerminalsListFromChildrenByTrieEnumeration(Trie trie, int wordID) {
-		HashMap<Integer, ? extends Trie> childrenTbl = trie.getChildren();
 		List<Trie> trieList = new ArrayList<Trie>();
 
 		Iterator<Integer> nonterminalIterator = trie.getNonterminalExtensionIterator();
 		while (nonterminalIterator.hasNext()) {
-			trieList.add(childrenTbl.get(nonterminalIterator.next()));
+			trieList.add(trie.match(nonterminalIterator.next()));
 		}
 
 		return trieList;
@@ -192,8 +199,7 @@ public abstract class NonterminalMatcher {
 		    || (!useTargetQueryingToCollectAlternateNonterminals)) {
 			return getNonTerminalsListFromChildrenByTrieEnumeration(dotNode.getTrieNode(), wordID);
 		} else {
-			HashMap<Integer, ? extends Trie> childrenTbl = dotNode.getTrieNode().getChildren();
-			return getNonTerminalsListFromChildrenByTargetedQuerying(childrenTbl);
+			return getNonTerminalsListFromChildrenByTargetedQuerying(dotNode.getTrieNode());
 		}
 	}
 
@@ -229,6 +235,11 @@ public abstract class NonterminalMatcher {
 		    SuperNode superNode) {
 			return produceStandardMatchingChildTNodesNonterminalLevel(dotNode, superNode);
 		}
+
+		@Override
+		public boolean matchesExactLabelsOnly() {
+			return true;
+		}
 	}
 
 	protected static class StandardNonterminalMatcherSoftConstraints extends
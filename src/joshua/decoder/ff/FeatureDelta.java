@@ -0,0 +1,125 @@
+package joshua.decoder.ff;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The unweighted feature values fired by applying a rule at one hyperedge, kept as parallel arrays
+ * of feature ids and values. When the decoder is asked to (see "store-edge-features"), these are
+ * recorded as edges are scored, so that k-best extraction can sum them along a derivation instead
+ * of running the feature functions again.
+ * <p>
+ * Feature names are mapped to ids by a table shared by all threads. Lookups of known names don't
+ * lock.
+ */
+public class FeatureDelta {
+
+  private static final ConcurrentHashMap<String, Integer> ids =
+      new ConcurrentHashMap<String, Integer>();
+  private static volatile String[] names = new String[64];
+  private static int numNames = 0;
+
+  /**
+   * Returns the id of a feature name, assigning the next one if the name is new.
+   */
+  public static int id(String name) {
+    Integer id = ids.get(name);
+    if (id != null)
+      return id;
+    synchronized (FeatureDelta.class) {
+      id = ids.get(name);
+      if (id == null) {
+        String[] table = names;
+        if (numNames == table.length) {
+          String[] grown = new String[2 * table.length];
+          System.arraycopy(table, 0, grown, 0, numNames);
+          table = grown;
+        }
+        table[numNames] = name;
+        names = table;
+        id = numNames++;
+        ids.put(name, id);
+      }
+      return id;
+    }
+  }
+
+  /**
+   * Returns the feature name with the given id.
+   */
+  public static String name(int id) {
+    return names[id];
+  }
+
+  private final int[] features;
+  private final float[] values;
+
+  private FeatureDelta(int[] features, float[] values) {
+    this.features = features;
+    this.values = values;
+  }
+
+  public int size() {
+    return features.length;
+  }
+
+  /**
+   * Returns the id of the i-th feature (see {@link #name(int)}).
+   */
+  public int feature(int i) {
+    return features[i];
+  }
+
+  public float value(int i) {
+    return values[i];
+  }
+
+  /**
+   * Subtracts these values from the feature vector, like {@link FeatureVector#subtract}.
+   */
+  public void subtractFrom(FeatureVector vector) {
+    for (int i = 0; i < features.length; i++) {
+      String name = names[features[i]];
+      float oldValue = vector.containsKey(name) ? vector.get(name) : 0.0f;
+      vector.put(name, oldValue - values[i]);
+    }
+  }
+
+  /**
+   * Collects feature values as they are computed. Values of the same feature are summed in the
+   * order they arrive.
+   */
+  public static class Builder {
+    private int[] features = new int[8];
+    private float[] values = new float[8];
+    private int size = 0;
+
+    public void add(String name, float value) {
+      int id = id(name);
+      for (int i = 0; i < size; i++) {
+        if (features[i] == id) {
+          values[i] += value;
+          return;
+        }
+      }
+      if (size == features.length) {
+        int[] moreFeatures = new int[2 * size];
+        float[] moreValues = new float[2 * size];
+        System.arraycopy(features, 0, moreFeatures, 0, size);
+        System.arraycopy(values, 0, moreValues, 0, size);
+        features = moreFeatures;
+        values = moreValues;
+      }
+      features[size] = id;
+      values[size] = value;
+      size++;
+    }
+
+    public FeatureDelta build() {
+      int[] exactFeatures = new int[size];
+      float[] exactValues = new float[size];
+      System.arraycopy(features, 0, exactFeatures, 0, size);
+      System.arraycopy(values, 0, exactValues, 0, size);
+      return new FeatureDelta(exactFeatures, exactValues);
+    }
+  }
+}
@@ -256,6 +256,33 @@ public abstract class FeatureFunction {
     }
   }
 
+  /**
+   * Computes the weighted score, like ScoreAccumulator, while recording the unweighted values, like
+   * FeatureAccumulator, into a {@link FeatureDelta.Builder} shared by all the features scoring an
+   * edge. It is not a ScoreAccumulator, so features that shortcut their scoring for one (such as
+   * PhraseModelFF) report each of their features.
+   */
+  public class RecordingAccumulator implements Accumulator {
+    private float score;
+    private final FeatureDelta.Builder delta;
+
+    public RecordingAccumulator(FeatureDelta.Builder delta) {
+      this.score = 0.0f;
+      this.delta = delta;
+    }
+
+    public void add(String name, float value) {
+      if (weights.containsKey(name)) {
+        score += value * weights.get(name);
+      }
+      delta.add(name, value);
+    }
+
+    public float getScore() {
+      return score;
+    }
+  }
+
   public class FeatureAccumulator implements Accumulator {
     private FeatureVector features;
 
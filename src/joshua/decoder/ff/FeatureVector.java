@@ -1,12 +1,12 @@
 package joshua.decoder.ff;
 
-import java.util.ArrayList;
-import java.util.Collections;
+import java.util.Arrays;
 import java.util.HashMap;
-import java.util.List;
 import java.util.Map;
 import java.util.Set;
 
+import joshua.util.FormatUtils;
+
 /**
  * An implementation of a sparse feature vector, using for representing both weights and feature
  * values.
@@ -17,6 +17,12 @@ import java.util.Set;
 public class FeatureVector {
   private HashMap<String, Float> features;
 
+  /*
+   * The sorted feature names of the last vector printed by each thread. The vectors of an n-best
+   * list usually have the same features, so they are sorted once.
+   */
+  private static final ThreadLocal<String[]> sortedNames = new ThreadLocal<String[]>();
+
   public FeatureVector() {
     features = new HashMap<String, Float>();
   }
@@ -65,6 +71,28 @@ public class FeatureVector {
     }
   }
 
+  /**
+   * Builds a feature vector from features that have already been split into names and values, as
+   * done by the text grammar loader. A null name marks an unlabeled feature, which is labeled the
+   * same way as in {@link #FeatureVector(String, String)}.
+   * 
+   * @param names the feature names, null for unlabeled features
+   * @param values the feature values
+   * @param prefix the prefix to use for unlabeled features (probably "tm_OWNER_")
+   */
+  public FeatureVector(String[] names, float[] values, String prefix) {
+    features = new HashMap<String, Float>();
+    int denseFeatureIndex = 0;
+    for (int i = 0; i < values.length; i++) {
+      if (names[i] == null) {
+        features.put(prefix + denseFeatureIndex, values[i]);
+        denseFeatureIndex++;
+      } else {
+        features.put(names[i], values[i]);
+      }
+    }
+  }
+
   public Set<String> keySet() {
     return features.keySet();
   }
@@ -159,14 +187,41 @@ public class FeatureVector {
       features.put(key, features.get(key) * value);
   }
 
+  /**
+   * Appends the non-zero features, sorted by name, as "name=value" with the values negated and
+   * three decimals.
+   */
+  public void appendTo(StringBuilder sb) {
+    int start = sb.length();
+    for (String key : sortedKeys()) {
+      float value = features.get(key);
+      if (value != 0.0f) {
+        if (sb.length() > start)
+          sb.append(' ');
+        sb.append(key).append('=');
+        FormatUtils.appendFixedPoint(sb, -value, 3);
+      }
+    }
+  }
+
+  private String[] sortedKeys() {
+    String[] names = sortedNames.get();
+    if (names != null && names.length == features.size()) {
+      boolean same = true;
+      for (int i = 0; i < names.length && same; i++)
+        same = features.containsKey(names[i]);
+      if (same)
+        return names;
+    }
+    names = features.keySet().toArray(new String[features.size()]);
+    Arrays.sort(names);
+    sortedNames.set(names);
+    return names;
+  }
+
   public String toString() {
-    String outputString = "";
-    List<String> sortedKeys = new ArrayList<String>(features.keySet());
-    Collections.sort(sortedKeys);
-    for (String key : sortedKeys)
-      if (features.get(key) != 0.0f)
-        outputString += String.format("%s%s=%.3f", (outputString.length() > 0) ? " " : "", key,
-            -features.get(key));
-    return outputString;
+    StringBuilder sb = new StringBuilder();
+    appendTo(sb);
+    return sb.toString();
   }
 }
@@ -1,6 +1,7 @@
 package joshua.decoder.ff.lm;
 
 import java.util.Arrays;
+import java.util.List;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -57,6 +58,14 @@ public abstract class DefaultNGramLanguageModel implements NGramLanguageModel {
     return false;
   }
 
+  @Override
+  public boolean registerWords(List<String> words, int first) {
+    boolean collision = false;
+    for (int i = 0; i < words.size(); i++)
+      collision = registerWord(words.get(i), first + i) || collision;
+    return collision;
+  }
+
   @Override
   public float sentenceLogProbability(int[] sentence, int order, int startIndex) {
     if (sentence == null) return 0.0f;
@@ -1,5 +1,7 @@
 package joshua.decoder.ff.lm;
 
+import java.util.List;
+
 /**
  * An interface for new language models to implement. An object of this type is passed to
  * LanguageModelFF, which will handle all the dynamic programming and state maintenance.
@@ -33,6 +35,17 @@ public interface NGramLanguageModel {
    */
   boolean registerWord(String token, int id);
 
+  /**
+   * Tells the language model about a block of consecutive ids at once: the word with id
+   * <code>first + i</code> is <code>words.get(i)</code>. This lets a language model size its
+   * private mapping once, and lets the vocabulary hand over words that it hasn't materialized.
+   * 
+   * @param words
+   * @param first the id of the first word
+   * @return Whether any collisions were detected.
+   */
+  boolean registerWords(List<String> words, int first);
+
   /**
    * @param sentence the sentence to be scored
    * @param order the order of N-grams for the LM
@@ -22,6 +22,7 @@ import java.io.IOException;
 import java.io.ObjectInputStream;
 import java.io.StreamCorruptedException;
 import java.util.Arrays;
+import java.util.List;
 import java.util.logging.Handler;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -118,6 +119,21 @@ public class LMGrammarBerkeley extends DefaultNGramLanguageModel {
     return false;
   }
 
+  @Override
+  public boolean registerWords(List<String> words, int first) {
+    int end = first + words.size();
+    if (end > vocabIdToMyIdMapping.length)
+      vocabIdToMyIdMapping = Arrays.copyOf(vocabIdToMyIdMapping, end);
+    WordIndexer<String> indexer = lm.getWordIndexer();
+    for (int i = 0; i < words.size(); i++) {
+      int myid = indexer.getIndexPossiblyUnk(words.get(i));
+      if (myid >= 0)
+        vocabIdToMyIdMapping[first + i] = myid;
+    }
+    mappingLength = Math.max(mappingLength, end);
+    return false;
+  }
+
   @Override
   public float sentenceLogProbability(int[] sentence, int order, int startIndex) {
     if (sentence == null) return 0;
@@ -1,5 +1,7 @@
 package joshua.decoder.ff.lm.kenlm.jni;
 
+import java.util.List;
+
 import joshua.decoder.ff.lm.NGramLanguageModel;
 import joshua.decoder.ff.state_maintenance.KenLMState;
 
@@ -65,6 +67,13 @@ public class KenLM implements NGramLanguageModel, Comparable<KenLM> {
     return registerWord(pointer, word, id);
   }
 
+  public boolean registerWords(List<String> words, int first) {
+    boolean collision = false;
+    for (int i = 0; i < words.size(); i++)
+      collision = registerWord(pointer, words.get(i), first + i) || collision;
+    return collision;
+  }
+
   public float prob(int words[]) {
     return prob(pointer, words);
   }
@@ -33,6 +33,10 @@ public class BilingualRule extends Rule {
   // And a string containing the sparse ones
   protected String sparseFeatures;
 
+  // Or the same features, already split into names (null if unlabeled) and values
+  private String[] featureNames;
+  private float[] featureValues;
+
   /*
    * a feature function will be fired for this rule only if the owner of the rule matches the owner
    * of the feature function
@@ -88,6 +92,30 @@ public class BilingualRule extends Rule {
     this.english = targetRhs;
   }
 
+  /**
+   * Constructs a rule whose features have already been parsed. Unlabeled features have a null name;
+   * they are mapped to their default names when the features are computed, as with the string
+   * version.
+   * 
+   * @param lhs Left-hand side of the rule.
+   * @param sourceRhs Source language right-hand side of the rule.
+   * @param targetRhs Target language right-hand side of the rule.
+   * @param featureNames Feature names, null for unlabeled features.
+   * @param featureValues Feature values, parallel to the names.
+   * @param arity Number of nonterminals in the source language right-hand side.
+   */
+  public BilingualRule(int lhs, int[] sourceRhs, int[] targetRhs, String[] featureNames,
+      float[] featureValues, int arity) {
+    this.lhs = lhs;
+    this.pFrench = sourceRhs;
+    this.sparseFeatures = null;
+    this.featureNames = featureNames;
+    this.featureValues = featureValues;
+    this.arity = arity;
+    this.owner = -1;
+    this.english = targetRhs;
+  }
+
   // ===============================================================
   // Attributes
   // ===============================================================
@@ -276,7 +304,10 @@ public class BilingualRule extends Rule {
       System.exit(1);
     }
 
-    FeatureVector features = new FeatureVector(sparseFeatures, "tm_" + Vocabulary.word(owner) + "_");
+    String prefix = "tm_" + Vocabulary.word(owner) + "_";
+    FeatureVector features = (featureValues != null)
+        ? new FeatureVector(featureNames, featureValues, prefix)
+        : new FeatureVector(sparseFeatures, prefix);
     features.times(-1);
 
     return features;
@@ -296,6 +327,17 @@ public class BilingualRule extends Rule {
   }
 
   public final String getFeatureString() {
+    if (sparseFeatures == null && featureValues != null) {
+      StringBuilder sb = new StringBuilder();
+      for (int i = 0; i < featureValues.length; i++) {
+        if (i > 0)
+          sb.append(' ');
+        if (featureNames[i] != null)
+          sb.append(featureNames[i]).append('=');
+        sb.append(featureValues[i]);
+      }
+      return sb.toString();
+    }
     return sparseFeatures;
   }
 }
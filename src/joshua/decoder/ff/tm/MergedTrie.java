@@ -0,0 +1,201 @@
+package joshua.decoder.ff.tm;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+
+import joshua.decoder.ff.tm.hash_based.ExtensionIterator;
+
+/**
+ * A virtual trie that presents the tries of several grammars as one. Each node holds the nodes
+ * reached in every grammar by the same source prefix (null where a grammar has no such prefix), and
+ * children are matched in lockstep. This lets a single DotChart walk all grammars at once, so the
+ * number of dot items scales with the number of distinct prefixes instead of grammars times
+ * prefixes.
+ *
+ * Rules are kept apart per grammar: callers that need to know which grammar a rule came from (e.g.,
+ * to respect per-grammar span limits) should use {@link #getTrie(int)}, or {@link #restrict(BitSet)}
+ * a node to the grammars that apply. Nodes are cached, so the same prefix always yields the same
+ * object. This class is not thread-safe; it is meant to be
+ * built per sentence.
+ */
+public class MergedTrie implements Trie {
+
+  /* The constituent nodes, indexed by grammar; null if the grammar has no such prefix. */
+  private final Trie[] tries;
+
+  private HashMap<Integer, MergedTrie> children = null;
+
+  /* The union of the constituents' children, built on first use. */
+  private HashMap<Integer, MergedTrie> union = null;
+
+  /* Views of this node restricted to subsets of its constituents, keyed by the subset kept. */
+  private HashMap<BitSet, MergedTrie> restricted = null;
+
+  private RuleCollection ruleCollection = null;
+
+  /**
+   * Creates the root of a merged trie over the given grammars.
+   *
+   * @param grammars
+   */
+  public MergedTrie(Grammar[] grammars) {
+    tries = new Trie[grammars.length];
+    for (int i = 0; i < grammars.length; i++)
+      tries[i] = grammars[i].getTrieRoot();
+  }
+
+  private MergedTrie(Trie[] tries) {
+    this.tries = tries;
+  }
+
+  /**
+   * Returns the number of constituent grammars.
+   */
+  public int size() {
+    return tries.length;
+  }
+
+  /**
+   * Returns the node of the given grammar for this prefix, or null if the grammar doesn't have it.
+   *
+   * @param grammar index of the grammar, in the order passed to the constructor
+   */
+  public Trie getTrie(int grammar) {
+    return tries[grammar];
+  }
+
+  /**
+   * Returns this node without the constituents of the grammars that are not in the given set, or
+   * null if no constituent is left. Children of the returned node are restricted the same way.
+   *
+   * @param grammars indices of the grammars to keep
+   */
+  public MergedTrie restrict(BitSet grammars) {
+    BitSet kept = new BitSet(tries.length);
+    boolean all = true;
+    for (int i = 0; i < tries.length; i++) {
+      if (tries[i] == null)
+        continue;
+      if (grammars.get(i))
+        kept.set(i);
+      else
+        all = false;
+    }
+    if (all)
+      return this;
+    if (kept.isEmpty())
+      return null;
+
+    if (restricted == null)
+      restricted = new HashMap<BitSet, MergedTrie>();
+    MergedTrie view = restricted.get(kept);
+    if (view == null) {
+      Trie[] subset = new Trie[tries.length];
+      for (int i = kept.nextSetBit(0); i >= 0; i = kept.nextSetBit(i + 1))
+        subset[i] = tries[i];
+      view = new MergedTrie(subset);
+      restricted.put(kept, view);
+    }
+    return view;
+  }
+
+  @Override
+  public MergedTrie match(int wordID) {
+    if (children == null)
+      children = new HashMap<Integer, MergedTrie>();
+    else if (children.containsKey(wordID))
+      return children.get(wordID);
+
+    Trie[] matched = null;
+    for (int i = 0; i < tries.length; i++) {
+      Trie child = (tries[i] == null) ? null : tries[i].match(wordID);
+      if (child != null) {
+        if (matched == null)
+          matched = new Trie[tries.length];
+        matched[i] = child;
+      }
+    }
+    MergedTrie node = (matched == null) ? null : new MergedTrie(matched);
+    children.put(wordID, node);
+    return node;
+  }
+
+  @Override
+  public boolean hasExtensions() {
+    for (Trie t : tries)
+      if (t != null && t.hasExtensions())
+        return true;
+    return false;
+  }
+
+  @Override
+  public List<MergedTrie> getExtensions() {
+    return new ArrayList<MergedTrie>(getChildren().values());
+  }
+
+  @Override
+  public HashMap<Integer, MergedTrie> getChildren() {
+    if (union != null)
+      return union;
+    union = new HashMap<Integer, MergedTrie>();
+    for (Trie t : tries) {
+      if (t == null || !t.hasExtensions())
+        continue;
+      for (Iterator<Integer> keys = t.getNonterminalExtensionIterator(); keys.hasNext();) {
+        int key = keys.next();
+        if (!union.containsKey(key))
+          union.put(key, match(key));
+      }
+      for (Iterator<Integer> keys = t.getTerminalExtensionIterator(); keys.hasNext();) {
+        int key = keys.next();
+        if (!union.containsKey(key))
+          union.put(key, match(key));
+      }
+    }
+    return union;
+  }
+
+  @Override
+  public Iterator<Integer> getTerminalExtensionIterator() {
+    return new ExtensionIterator(getChildren(), true);
+  }
+
+  @Override
+  public Iterator<Integer> getNonterminalExtensionIterator() {
+    return new ExtensionIterator(getChildren(), false);
+  }
+
+  @Override
+  public boolean hasRules() {
+    for (Trie t : tries)
+      if (t != null && t.hasRules())
+        return true;
+    return false;
+  }
+
+  /**
+   * Returns the union of the constituents' rules. This loses track of which grammar each rule
+   * belongs to; the chart uses {@link #getTrie(int)} instead.
+   */
+  @Override
+  public RuleCollection getRuleCollection() {
+    if (ruleCollection == null) {
+      List<Rule> rules = new ArrayList<Rule>();
+      int arity = 0;
+      int[] sourceSide = new int[0];
+      for (Trie t : tries) {
+        if (t != null && t.hasRules()) {
+          RuleCollection rc = t.getRuleCollection();
+          rules.addAll(rc.getRules());
+          arity = rc.getArity();
+          sourceSide = rc.getSourceSide();
+        }
+      }
+      ruleCollection = new BasicRuleCollection(arity, sourceSide, rules);
+    }
+    return ruleCollection;
+  }
+}
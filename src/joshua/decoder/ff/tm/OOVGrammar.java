@@ -0,0 +1,290 @@
+package joshua.decoder.ff.tm;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import joshua.corpus.Vocabulary;
+import joshua.corpus.syntax.SyntaxTree;
+import joshua.decoder.JoshuaConfiguration;
+import joshua.decoder.ff.FeatureFunction;
+import joshua.lattice.Arc;
+import joshua.lattice.Lattice;
+import joshua.lattice.Node;
+import joshua.util.Cache;
+
+/**
+ * The grammar of OOV rules for a single sentence. Each input word may be translated as itself (or
+ * as itself marked with "_OOV", see "mark-oovs") with the default nonterminal as left-hand side,
+ * and, when decoding with a parse tree, with the labels of the constituents spanning the word.
+ * With "true-oovs-only", words that any of the sentence's other grammars has a rule for get no OOV
+ * rules.
+ * <p>
+ * Rather than building a trie and sorting it for every sentence, the root matches the sentence's
+ * words directly, and the rules of a word are only created (and their few rules sorted) when the
+ * chart first asks for them. The estimated costs of OOV rules depend only on the rule and the
+ * feature functions, so a decoder thread can pass the same cost cache to all its sentences.
+ */
+public class OOVGrammar extends AbstractGrammar {
+
+  /** A reasonable size for a cost cache shared by the sentences of one thread. */
+  public static final int COST_CACHE_SIZE = 100000;
+
+  private final List<FeatureFunction> models;
+  private final Cache<Long, Float> costs;
+
+  /* The sentence's other grammars, for "true-oovs-only". */
+  private final Grammar[] grammars;
+  private final boolean trueOOVsOnly;
+  private final boolean markOOVs;
+
+  /*
+   * The input words in lattice order, each with the left-hand sides of its rules: the parse labels
+   * of all its positions (if used) followed by the default nonterminal, in first-seen order.
+   */
+  private final Map<Integer, Set<Integer>> lhsByWord;
+
+  private final Root root = new Root();
+
+  private int numRules = 0;
+
+  /**
+   * @param lattice the input
+   * @param parseTree the input's parse, or null
+   * @param grammars the sentence's other grammars
+   * @param models the feature functions used to estimate rule costs
+   * @param costs estimated costs by left-hand side and source word; may be shared by sentences
+   *          decoded with the same feature functions and configuration
+   * @param joshuaConfiguration
+   */
+  public OOVGrammar(Lattice<Integer> lattice, SyntaxTree parseTree, Grammar[] grammars,
+      List<FeatureFunction> models, Cache<Long, Float> costs,
+      JoshuaConfiguration joshuaConfiguration) {
+    super(Vocabulary.id("oov"), 1);
+    this.models = models;
+    this.costs = costs;
+    this.grammars = grammars;
+    this.trueOOVsOnly = joshuaConfiguration.true_oovs_only;
+    this.markOOVs = joshuaConfiguration.mark_oovs;
+
+    boolean useLabels = parseTree != null
+        && (joshuaConfiguration.constrain_parse || joshuaConfiguration.use_pos_labels);
+    int defaultNT = Vocabulary.id(joshuaConfiguration.default_non_terminal.replaceAll("\\[\\]",
+        ""));
+    int start = Vocabulary.id(Vocabulary.START_SYM);
+    int stop = Vocabulary.id(Vocabulary.STOP_SYM);
+
+    lhsByWord = new LinkedHashMap<Integer, Set<Integer>>();
+    for (Node<Integer> node : lattice) {
+      for (Arc<Integer> arc : node.getOutgoingArcs()) {
+        int word = arc.getLabel();
+        if (word == start || word == stop)
+          continue;
+        Set<Integer> lhs = lhsByWord.get(word);
+        if (lhs == null) {
+          lhs = new LinkedHashSet<Integer>();
+          lhsByWord.put(word, lhs);
+        }
+        if (useLabels)
+          lhs.addAll(parseTree.getConstituentLabels(node.getNumber() - 1, node.getNumber()));
+        lhs.add(defaultNT);
+      }
+    }
+
+    setSorted(true);
+  }
+
+  /* A word is a true OOV if no other grammar has a rule for it. */
+  private boolean isTrueOOV(int word) {
+    for (Grammar g : grammars) {
+      Trie node = g.getTrieRoot().match(word);
+      if (node != null && node.hasRules())
+        return false;
+    }
+    return true;
+  }
+
+  /* Creates the rules for a word, sorted, reusing cached costs. */
+  private RuleCollection createRules(int word, Set<Integer> lhsSymbols) {
+    int[] source = { word };
+    int[] target = { markOOVs ? Vocabulary.id(Vocabulary.word(word) + "_OOV") : word };
+    List<Rule> rules = new ArrayList<Rule>(lhsSymbols.size());
+    for (int lhs : lhsSymbols) {
+      BilingualRule rule = new BilingualRule(lhs, source, target, "", 0);
+      rule.setOwner(owner);
+      Long key = ((long) lhs << 32) | (word & 0xffffffffL);
+      Float cost = (costs == null) ? null : costs.get(key);
+      if (cost != null) {
+        rule.setEstimatedCost(cost);
+      } else {
+        cost = rule.estimateRuleCost(models);
+        if (costs != null)
+          costs.put(key, cost);
+      }
+      rules.add(rule);
+    }
+    numRules += rules.size();
+    RuleCollection collection = new BasicRuleCollection(0, source, rules);
+    collection.getSortedRules(models);
+    return collection;
+  }
+
+  @Override
+  public Trie getTrieRoot() {
+    return root;
+  }
+
+  /* The rules are sorted as they are created. */
+  @Override
+  public void sortGrammar(List<FeatureFunction> models) {
+  }
+
+  @Override
+  public boolean hasRuleForSpan(int startIndex, int endIndex, int pathLength) {
+    return pathLength <= spanLimit;
+  }
+
+  /**
+   * Returns the number of rules created so far.
+   */
+  @Override
+  public int getNumRules() {
+    return numRules;
+  }
+
+  @Override
+  public Rule constructManualRule(int lhs, int[] sourceWords, int[] targetWords, float[] scores,
+      int arity) {
+    return null;
+  }
+
+  @Override
+  public boolean isRegexpGrammar() {
+    return false;
+  }
+
+  /**
+   * The root, whose children are the words that have OOV rules. A child is created when the word is
+   * first matched.
+   */
+  private class Root implements Trie {
+
+    /* Words matched so far; null for words without OOV rules. */
+    private final HashMap<Integer, Leaf> leaves = new HashMap<Integer, Leaf>();
+
+    @Override
+    public Leaf match(int wordID) {
+      if (leaves.containsKey(wordID))
+        return leaves.get(wordID);
+      Leaf leaf = null;
+      Set<Integer> lhsSymbols = lhsByWord.get(wordID);
+      if (lhsSymbols != null && (!trueOOVsOnly || isTrueOOV(wordID)))
+        leaf = new Leaf(createRules(wordID, lhsSymbols));
+      leaves.put(wordID, leaf);
+      return leaf;
+    }
+
+    @Override
+    public boolean hasExtensions() {
+      return !lhsByWord.isEmpty();
+    }
+
+    @Override
+    public Collection<Leaf> getExtensions() {
+      return getChildren().values();
+    }
+
+    @Override
+    public HashMap<Integer, Leaf> getChildren() {
+      HashMap<Integer, Leaf> children = new HashMap<Integer, Leaf>();
+      for (int word : lhsByWord.keySet()) {
+        Leaf leaf = match(word);
+        if (leaf != null)
+          children.put(word, leaf);
+      }
+      return children;
+    }
+
+    @Override
+    public Iterator<Integer> getTerminalExtensionIterator() {
+      List<Integer> words = new ArrayList<Integer>();
+      for (int word : lhsByWord.keySet())
+        if (match(word) != null)
+          words.add(word);
+      return words.iterator();
+    }
+
+    @Override
+    public Iterator<Integer> getNonterminalExtensionIterator() {
+      return new ArrayList<Integer>().iterator();
+    }
+
+    @Override
+    public boolean hasRules() {
+      return false;
+    }
+
+    @Override
+    public RuleCollection getRuleCollection() {
+      return new BasicRuleCollection(0, new int[0], null);
+    }
+  }
+
+  /**
+   * The node of a single word, holding its sorted OOV rules.
+   */
+  private static class Leaf implements Trie {
+
+    private final RuleCollection rules;
+
+    Leaf(RuleCollection rules) {
+      this.rules = rules;
+    }
+
+    @Override
+    public Trie match(int wordID) {
+      return null;
+    }
+
+    @Override
+    public boolean hasExtensions() {
+      return false;
+    }
+
+    @Override
+    public Collection<Trie> getExtensions() {
+      return null;
+    }
+
+    @Override
+    public HashMap<Integer, Trie> getChildren() {
+      return null;
+    }
+
+    @Override
+    public Iterator<Integer> getTerminalExtensionIterator() {
+      return new ArrayList<Integer>().iterator();
+    }
+
+    @Override
+    public Iterator<Integer> getNonterminalExtensionIterator() {
+      return new ArrayList<Integer>().iterator();
+    }
+
+    @Override
+    public boolean hasRules() {
+      return true;
+    }
+
+    @Override
+    public RuleCollection getRuleCollection() {
+      return rules;
+    }
+  }
+}
@@ -0,0 +1,109 @@
+package joshua.decoder.ff.tm;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+import joshua.corpus.Vocabulary;
+
+/**
+ * Matches an input word against the terminal labels of a trie node's children, treating labels as
+ * regular expressions (see regexp grammars). Labels without regular expression operators are
+ * looked up directly; the remaining ones are compiled once, together with a single alternation of
+ * all of them that rejects most words with one match attempt before the individual patterns are
+ * tried.
+ *
+ * A child whose label is the input word itself always matches, whether or not the label is a
+ * pattern. Matching children are returned in the order of the node's terminal extension iterator.
+ */
+public class RegexpMatcher {
+
+  /* Characters that make a label a pattern rather than a literal word. */
+  private static final Pattern OPERATORS = Pattern.compile(".*[\\\\.\\[\\]{}()*+?^$|].*");
+
+  /* Back references would be renumbered in the alternation. */
+  private static final Pattern BACK_REFERENCE = Pattern.compile(".*\\\\[1-9].*");
+
+  /* The terminal children, and the position of each label in iteration order. */
+  private final Trie[] children;
+  private final Map<Integer, Integer> index;
+
+  /* Labels that are patterns, their positions, and an alternation of all of them. */
+  private final Pattern[] patterns;
+  private final int[] patternIndex;
+  private final Pattern anyPattern;
+
+  public RegexpMatcher(Trie node) {
+    List<Integer> labels = new ArrayList<Integer>();
+    if (node.hasExtensions()) {
+      Iterator<Integer> terminals = node.getTerminalExtensionIterator();
+      while (terminals.hasNext())
+        labels.add(terminals.next());
+    }
+    children = new Trie[labels.size()];
+    index = new HashMap<Integer, Integer>(2 * labels.size());
+
+    List<Pattern> pattern_list = new ArrayList<Pattern>();
+    List<Integer> pattern_positions = new ArrayList<Integer>();
+    StringBuilder alternation = new StringBuilder();
+    boolean combinable = true;
+    for (int i = 0; i < children.length; i++) {
+      int label = labels.get(i);
+      children[i] = node.match(label);
+      index.put(label, i);
+      String word = Vocabulary.word(label);
+      if (OPERATORS.matcher(word).matches()) {
+        pattern_list.add(Pattern.compile(word));
+        pattern_positions.add(i);
+        combinable = combinable && !BACK_REFERENCE.matcher(word).matches();
+        if (alternation.length() > 0)
+          alternation.append('|');
+        alternation.append("(?:").append(word).append(')');
+      }
+    }
+    patterns = pattern_list.toArray(new Pattern[pattern_list.size()]);
+    patternIndex = new int[pattern_positions.size()];
+    for (int i = 0; i < patternIndex.length; i++)
+      patternIndex[i] = pattern_positions.get(i);
+    anyPattern = (patterns.length > 1 && combinable) ? Pattern.compile(alternation.toString())
+        : null;
+  }
+
+  /**
+   * Returns the children whose labels match the given (terminal) word.
+   *
+   * @param wordID
+   * @return the matching child nodes, possibly empty
+   */
+  public List<Trie> match(int wordID) {
+    if (wordID < 0)
+      return Collections.emptyList();
+
+    Integer exact = index.get(wordID);
+    if (patterns.length == 0)
+      return (exact == null) ? Collections.<Trie> emptyList() : Arrays.asList(children[exact]);
+
+    String word = Vocabulary.word(wordID);
+    if (anyPattern != null && !anyPattern.matcher(word).matches())
+      return (exact == null) ? Collections.<Trie> emptyList() : Arrays.asList(children[exact]);
+
+    int[] matched = new int[patterns.length + 1];
+    int num_matched = 0;
+    if (exact != null)
+      matched[num_matched++] = exact;
+    for (int p = 0; p < patterns.length; p++)
+      if ((exact == null || patternIndex[p] != exact) && patterns[p].matcher(word).matches())
+        matched[num_matched++] = patternIndex[p];
+    Arrays.sort(matched, 0, num_matched);
+
+    List<Trie> result = new ArrayList<Trie>(num_matched);
+    for (int i = 0; i < num_matched; i++)
+      result.add(children[matched[i]]);
+    return result;
+  }
+}
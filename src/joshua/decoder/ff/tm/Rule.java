@@ -117,6 +117,17 @@ public abstract class Rule {
     return false;
   }
 
+  /**
+   * Returns the word alignment of the rule as a flat array of (source index, target index) pairs,
+   * where the indices refer to positions in {@link #getFrench()} and {@link #getEnglish()}. Rules
+   * that carry no alignment information return null.
+   * 
+   * @return the alignment points, or null if not available
+   */
+  public byte[] getAlignment() {
+    return null;
+  }
+
   public abstract void setFrench(int[] french);
 
   public abstract int[] getFrench();
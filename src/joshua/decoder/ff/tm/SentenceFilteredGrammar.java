@@ -1,8 +1,11 @@
 package joshua.decoder.ff.tm;
 
+import java.util.BitSet;
 import java.util.Collection;
 import java.util.HashMap;
 import java.util.Iterator;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
 import joshua.decoder.ff.tm.hash_based.ExtensionIterator;
 import joshua.decoder.segment_file.Sentence;
@@ -12,9 +15,15 @@ import joshua.decoder.segment_file.Sentence;
  * trie, a subset of the original trie, that only contains trie paths that are reachable from
  * traversals of the current sentence.
  * 
+ * Filtering only visits the parts of the base trie that the sentence can reach: every (filtered
+ * node, sentence position) state is expanded at most once, so the cost is bounded by the sentence
+ * length times the number of matching nodes, independent of the size of the base grammar.
+ * 
  * @author Matt Post <post@cs.jhu.edu>
  */
 public class SentenceFilteredGrammar extends BatchGrammar {
+  private static final Logger logger = Logger.getLogger(SentenceFilteredGrammar.class.getName());
+
   private BatchGrammar baseGrammar;
   private SentenceFilteredTrie filteredTrie;
   private int[] tokens;
@@ -31,18 +40,21 @@ public class SentenceFilteredGrammar extends BatchGrammar {
     this.baseGrammar = baseGrammar;
     this.tokens = sentence.intSentence();
 
-    int origCount = getNumRules(baseGrammar.getTrieRoot());
     long startTime = System.currentTimeMillis();
 
     // First pass filter
     this.filteredTrie = filter();
-    int filteredCount = getNumRules();
 
     float seconds = (System.currentTimeMillis() - startTime) / 1000.0f;
 
-    System.err.println(String.format(
-        "Sentence-level filtering of sentence %d (%d -> %d rules) in %.3f seconds",
-        sentence.id(), origCount, filteredCount, seconds));
+    /*
+     * Counting rules walks the tries, which for the base grammar means all of it, so only do it
+     * when asked to.
+     */
+    if (logger.isLoggable(Level.FINE))
+      logger.fine(String.format(
+          "Sentence-level filtering of sentence %d (%d -> %d rules) in %.3f seconds",
+          sentence.id(), baseGrammar.getNumRules(), getNumRules(), seconds));
   }
 
   @Override
@@ -122,6 +134,11 @@ public class SentenceFilteredGrammar extends BatchGrammar {
    * subsequent ones would have to consume just one word. We then just have to record in the
    * recursive call whether the last traversal was a nonterminal or not.
    * 
+   * Different match paths frequently arrive at the same trie node at the same sentence position
+   * (e.g., a nonterminal consuming one word followed by a terminal vs. a nonterminal consuming
+   * two). Since the result only depends on the node, the position, and whether the last match was
+   * a nonterminal, each filtered node records which of these states it has already expanded.
+   * 
    * @return the root of the filtered trie
    */
   private SentenceFilteredTrie filter() {
@@ -154,9 +171,13 @@ public class SentenceFilteredGrammar extends BatchGrammar {
     if (i >= tokens.length)
       return;
 
+    /* Skip states that have already been expanded. */
+    if (!filteredTrieNode.visit(i, lastWasNT))
+      return;
+
     /* Make sure the underlying unfiltered node has children. */
     Trie unfilteredTrieNode = filteredTrieNode.unfilteredTrieNode;
-    if (unfilteredTrieNode.getChildren() == null)
+    if (!unfilteredTrieNode.hasExtensions())
       return;
 
     /* Match a word */
@@ -181,9 +202,9 @@ public class SentenceFilteredGrammar extends BatchGrammar {
 
     /*
      * Now we attempt to match nonterminals. Any nonterminal is permitted to match any region of the
-     * sentence, up to the maximum span for that grammar. So we enumerate all children of the
-     * current (unfiltered) trie grammar node, looking for nonterminals (items whose label value is
-     * less than 0), then recurse.
+     * sentence, up to the maximum span for that grammar. So we enumerate the nonterminal children
+     * of the current (unfiltered) trie grammar node (items whose label value is less than 0), then
+     * recurse.
      * 
      * There is one subtlely. Adjacent nonterminals in a grammar rule can match a span (i, j) in (j
      * - i - 1) ways, but for purposes of determining whether a rule fits, this is all wasted
@@ -191,29 +212,26 @@ public class SentenceFilteredGrammar extends BatchGrammar {
      * terminals (up to the grammar's span limit, or the rest of the sentence, whichever is
      * shorter). Subsequent adjacent nonterminals are permitted to consume only a single terminal.
      */
-    HashMap<Integer, ? extends Trie> children = unfilteredTrieNode.getChildren();
-    if (children != null) {
-      for (int label : children.keySet()) {
-        if (label < 0) {
-          SentenceFilteredTrie nextFilteredTrie = filteredTrieNode.match(label);
-          if (nextFilteredTrie == null) {
-            nextFilteredTrie = new SentenceFilteredTrie(unfilteredTrieNode.match(label));
-            filteredTrieNode.children.put(label, nextFilteredTrie);
-          }
-
-          /*
-           * Recurse. If the last match was a nonterminal, we can only consume one more token.
-           * 
-           * TODO: This goes too far by looking at the whole sentence; each grammar has a maximum
-           * span limit which should be consulted. What we should be doing is passing the point
-           * where we started matching the current sentence, so we can apply this span limit, which
-           * is easily accessible (baseGrammar.spanLimit).
-           */
-          int maxJ = lastWasNT ? (i + 1) : tokens.length;
-          for (int j = i + 1; j <= maxJ; j++) {
-            filter(j, nextFilteredTrie, true);
-          }
-        }
+    Iterator<Integer> nonterminals = unfilteredTrieNode.getNonterminalExtensionIterator();
+    while (nonterminals.hasNext()) {
+      int label = nonterminals.next();
+      SentenceFilteredTrie nextFilteredTrie = filteredTrieNode.match(label);
+      if (nextFilteredTrie == null) {
+        nextFilteredTrie = new SentenceFilteredTrie(unfilteredTrieNode.match(label));
+        filteredTrieNode.children.put(label, nextFilteredTrie);
+      }
+
+      /*
+       * Recurse. If the last match was a nonterminal, we can only consume one more token.
+       * 
+       * TODO: This goes too far by looking at the whole sentence; each grammar has a maximum span
+       * limit which should be consulted. What we should be doing is passing the point where we
+       * started matching the current sentence, so we can apply this span limit, which is easily
+       * accessible (baseGrammar.spanLimit).
+       */
+      int maxJ = lastWasNT ? (i + 1) : tokens.length;
+      for (int j = i + 1; j <= maxJ; j++) {
+        filter(j, nextFilteredTrie, true);
       }
     }
   }
@@ -252,6 +270,13 @@ public class SentenceFilteredGrammar extends BatchGrammar {
     /* Whether this arc is on a dead path. */
     boolean dead = false;
 
+    /*
+     * Sentence positions from which this node has been expanded, by whether the last match was a
+     * nonterminal.
+     */
+    private BitSet visited = null;
+    private BitSet visitedAfterNT = null;
+
     /**
      * Constructor.
      * 
@@ -263,6 +288,26 @@ public class SentenceFilteredGrammar extends BatchGrammar {
       this.children = new HashMap<Integer, SentenceFilteredTrie>();
     }
 
+    /**
+     * Records that filtering expands this node from sentence position i.
+     * 
+     * @return false if this state was already expanded
+     */
+    private boolean visit(int i, boolean lastWasNT) {
+      BitSet positions = lastWasNT ? visitedAfterNT : visited;
+      if (positions == null) {
+        positions = new BitSet(tokens.length);
+        if (lastWasNT)
+          visitedAfterNT = positions;
+        else
+          visited = positions;
+      } else if (positions.get(i)) {
+        return false;
+      }
+      positions.set(i);
+      return true;
+    }
+
     public boolean isDead() {
       return this.dead;
     }
@@ -316,9 +361,8 @@ public class SentenceFilteredGrammar extends BatchGrammar {
      */
     public int getNumRules() {
       int numRules = 0;
-      if (getTrieRoot() != null)
-        if (getTrieRoot().getRuleCollection() != null)
-          numRules += getTrieRoot().getRuleCollection().getRules().size();
+      if (hasRules())
+        numRules += getRuleCollection().getRules().size();
 
       for (SentenceFilteredTrie node : getExtensions())
         numRules += node.getNumRules();
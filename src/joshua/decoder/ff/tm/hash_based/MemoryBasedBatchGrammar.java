@@ -1,7 +1,8 @@
 package joshua.decoder.ff.tm.hash_based;
 
 import java.io.IOException;
-import java.util.HashMap;
+import java.util.Arrays;
+import java.util.List;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -19,8 +20,8 @@ import joshua.decoder.ff.tm.format.SamtFormatReader;
  * This class implements a memory-based bilingual BatchGrammar.
  * <p>
  * The rules are stored in a trie. Each trie node has: (1) RuleBin: a list of rules matching the
- * french sides so far (2) A HashMap of next-layer trie nodes, the next french word used as the key
- * in HashMap
+ * french sides so far (2) A table of next-layer trie nodes, the next french word used as the key
+ * (see MemoryBasedTrie)
  * 
  * @author Zhifei Li, <zhifei.work@gmail.com>
  */
@@ -57,6 +58,9 @@ public class MemoryBasedBatchGrammar extends BatchGrammar {
 
   static int ruleIDCount = 1;
 
+  /* Formats read by the TextGrammarLoader. */
+  private static final List<String> TEXT_FORMATS = Arrays.asList("hiero", "thrax", "regexp");
+
   /** Logger for this class. */
   private static final Logger logger = Logger.getLogger(MemoryBasedBatchGrammar.class.getName());
 
@@ -92,8 +96,14 @@ public class MemoryBasedBatchGrammar extends BatchGrammar {
     this.setRegexpGrammar(formatKeyword.equals("regexp"));
     
     // ==== loading grammar
-    this.modelReader = createReader(formatKeyword, grammarFile);
-    if (modelReader != null) {
+    if (TEXT_FORMATS.contains(formatKeyword)) {
+      TextGrammarLoader loader = new TextGrammarLoader(grammarFile, this.owner,
+          joshuaConfiguration.grammar_load_threads);
+      loader.load(root);
+      this.qtyRulesRead = loader.getNumRules();
+      this.qtyRuleBins = loader.getNumRuleBins();
+      ruleIDCount += loader.getNumRules();
+    } else if ((this.modelReader = createReader(formatKeyword, grammarFile)) != null) {
       modelReader.initialize();
       for (BilingualRule rule : modelReader)
         if (rule != null) {
@@ -105,9 +115,26 @@ public class MemoryBasedBatchGrammar extends BatchGrammar {
             + formatKeyword);
     }
 
+    root.freeze();
+
+    if (isRegexpGrammar())
+      compileRegexps(root);
+
     this.printGrammar();
   }
 
+  /**
+   * Compiles the child labels of every trie node into regular expression matchers, so that
+   * decoding doesn't compile them over and over again.
+   */
+  private void compileRegexps(MemoryBasedTrie node) {
+    if (node.hasExtensions()) {
+      node.getRegexpMatcher();
+      for (MemoryBasedTrie child : node.getExtensions())
+        compileRegexps(child);
+    }
+  }
+
   protected GrammarReader<BilingualRule> createReader(String format, String grammarFile) {
 
     if (grammarFile != null) {
@@ -192,15 +219,7 @@ public class MemoryBasedBatchGrammar extends BatchGrammar {
        * (logger.isLoggable(Level.FINEST)) logger.finest("Amended to: " + curSymID); }
        */
 
-      MemoryBasedTrie nextLayer = (MemoryBasedTrie) pos.match(curSymID);
-      if (null == nextLayer) {
-        nextLayer = new MemoryBasedTrie();
-        if (pos.hasExtensions() == false) {
-          pos.childrenTbl = new HashMap<Integer, MemoryBasedTrie>();
-        }
-        pos.childrenTbl.put(curSymID, nextLayer);
-      }
-      pos = nextLayer;
+      pos = pos.extend(curSymID);
     }
 
 
@@ -1,40 +1,212 @@
 package joshua.decoder.ff.tm.hash_based;
 
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
 
+import joshua.decoder.ff.tm.RegexpMatcher;
 import joshua.decoder.ff.tm.RuleCollection;
 import joshua.decoder.ff.tm.Trie;
 
 /**
+ * A trie node of an in-memory grammar. Children are kept in primitive arrays keyed by symbol id
+ * rather than in a <code>HashMap&lt;Integer, MemoryBasedTrie&gt;</code>:
+ * <ul>
+ * <li>a node with a single child stores its label and node inline, without any arrays;</li>
+ * <li>while the grammar is being built, larger nodes use an open-addressing hash table;</li>
+ * <li>once the trie is frozen (see {@link #freeze()}), the labels are sorted, which puts the
+ * nonterminals (negative ids) in one run before the terminals, and children are found by binary
+ * search.</li>
+ * </ul>
+ * Adding a child to a frozen node turns it back into a hash table.
+ *
  * @author Zhifei Li, <zhifei.work@gmail.com>
  */
 public class MemoryBasedTrie implements Trie {
+
+  /* Marks an empty slot of the hash table; never a vocabulary id. */
+  private static final int EMPTY = Integer.MIN_VALUE;
+
   MemoryBasedRuleBin ruleBin = null;
-  HashMap<Integer, MemoryBasedTrie> childrenTbl = null;
+
+  /* The number of children. */
+  private int size = 0;
+
+  /* The only child, when size is 1. */
+  private int singleKey;
+  private MemoryBasedTrie single = null;
+
+  /*
+   * When size > 1, the labels and children: an open-addressing table whose length is a power of
+   * two, or, if frozen, the labels in ascending order, with the first numNonterminals being the
+   * nonterminals.
+   */
+  private int[] keys = null;
+  private MemoryBasedTrie[] nodes = null;
+  private boolean frozen = false;
+  private int numNonterminals = 0;
+
+  /* Compiled child labels, for regular-expression grammars. */
+  private RegexpMatcher regexpMatcher = null;
 
   public MemoryBasedTrie() {
   }
 
   @Override
-  public Trie match(int wordID) {
-    if (childrenTbl != null)
-      return childrenTbl.get(wordID);
-    return null;
+  public MemoryBasedTrie match(int wordID) {
+    if (size == 1)
+      return (singleKey == wordID) ? single : null;
+    if (keys == null)
+      return null;
+    if (frozen) {
+      int index = Arrays.binarySearch(keys, wordID);
+      return (index >= 0) ? nodes[index] : null;
+    }
+    int mask = keys.length - 1;
+    for (int slot = hash(wordID) & mask;; slot = (slot + 1) & mask) {
+      if (keys[slot] == wordID)
+        return nodes[slot];
+      if (keys[slot] == EMPTY)
+        return null;
+    }
+  }
+
+  /**
+   * Returns the child with the given label, adding an empty one if there is none.
+   */
+  MemoryBasedTrie extend(int wordID) {
+    MemoryBasedTrie child = match(wordID);
+    if (child == null) {
+      child = new MemoryBasedTrie();
+      put(wordID, child);
+    }
+    return child;
+  }
+
+  /* Adds a child whose label isn't present yet. */
+  void put(int wordID, MemoryBasedTrie child) {
+    if (size == 0) {
+      singleKey = wordID;
+      single = child;
+    } else {
+      if (size == 1) {
+        keys = newTable(4);
+        nodes = new MemoryBasedTrie[4];
+        insert(singleKey, single);
+        single = null;
+      } else if (frozen || 2 * (size + 1) > keys.length) {
+        rehash(Integer.highestOneBit(Math.max(4, 2 * (size + 1))) << 1);
+      }
+      insert(wordID, child);
+    }
+    size++;
+  }
+
+  private void insert(int wordID, MemoryBasedTrie child) {
+    int mask = keys.length - 1;
+    int slot = hash(wordID) & mask;
+    while (keys[slot] != EMPTY)
+      slot = (slot + 1) & mask;
+    keys[slot] = wordID;
+    nodes[slot] = child;
+  }
+
+  private void rehash(int capacity) {
+    int[] oldKeys = keys;
+    MemoryBasedTrie[] oldNodes = nodes;
+    int oldLength = frozen ? size : oldKeys.length;
+    keys = newTable(capacity);
+    nodes = new MemoryBasedTrie[capacity];
+    frozen = false;
+    for (int i = 0; i < oldLength; i++)
+      if (oldKeys[i] != EMPTY)
+        insert(oldKeys[i], oldNodes[i]);
+  }
+
+  private static int[] newTable(int capacity) {
+    int[] table = new int[capacity];
+    Arrays.fill(table, EMPTY);
+    return table;
+  }
+
+  private static int hash(int wordID) {
+    int h = wordID * 0x9E3779B9;
+    return h ^ (h >>> 16);
+  }
+
+  /**
+   * Compacts this node and all nodes below it: child labels are sorted into exactly-sized arrays,
+   * nonterminals first. Call this once the grammar has been read.
+   */
+  public void freeze() {
+    if (size > 1 && !frozen) {
+      int[] sortedKeys = new int[size];
+      int n = 0;
+      for (int i = 0; i < keys.length; i++)
+        if (keys[i] != EMPTY)
+          sortedKeys[n++] = keys[i];
+      Arrays.sort(sortedKeys);
+      MemoryBasedTrie[] sortedNodes = new MemoryBasedTrie[size];
+      for (int i = 0; i < size; i++)
+        sortedNodes[i] = match(sortedKeys[i]);
+      keys = sortedKeys;
+      nodes = sortedNodes;
+      frozen = true;
+      numNonterminals = 0;
+      while (numNonterminals < size && keys[numNonterminals] < 0)
+        numNonterminals++;
+    }
+    if (size == 1)
+      single.freeze();
+    else if (size > 1)
+      for (MemoryBasedTrie node : nodes)
+        node.freeze();
   }
 
   /* See Javadoc for Trie interface. */
   public boolean hasExtensions() {
-    return (null != this.childrenTbl);
+    return (size > 0);
   }
 
+  /**
+   * Returns a copy of the children as a map. This allocates a new map on each call; the decoder
+   * itself uses {@link #match(int)} and the extension iterators instead.
+   */
   public HashMap<Integer, MemoryBasedTrie> getChildren() {
-    return this.childrenTbl;
+    if (size == 0)
+      return null;
+    HashMap<Integer, MemoryBasedTrie> children = new HashMap<Integer, MemoryBasedTrie>(2 * size);
+    Iterator<Integer> labels = new LabelIterator(Integer.MIN_VALUE + 1, Integer.MAX_VALUE);
+    while (labels.hasNext()) {
+      int label = labels.next();
+      children.put(label, match(label));
+    }
+    return children;
   }
 
   public void setExtensions(HashMap<Integer, MemoryBasedTrie> tbl_children_) {
-    this.childrenTbl = tbl_children_;
+    size = 0;
+    single = null;
+    keys = null;
+    nodes = null;
+    frozen = false;
+    if (tbl_children_ != null)
+      for (Map.Entry<Integer, MemoryBasedTrie> child : tbl_children_.entrySet())
+        put(child.getKey(), child.getValue());
+  }
+
+  /**
+   * Returns the matcher that treats this node's child labels as regular expressions, compiling it
+   * on first use.
+   */
+  public synchronized RegexpMatcher getRegexpMatcher() {
+    if (regexpMatcher == null)
+      regexpMatcher = new RegexpMatcher(this);
+    return regexpMatcher;
   }
 
   /* See Javadoc for Trie interface. */
@@ -53,18 +225,91 @@ public class MemoryBasedTrie implements Trie {
 
   /* See Javadoc for Trie interface. */
   public Collection<MemoryBasedTrie> getExtensions() {
-    if (this.childrenTbl != null)
-      return this.childrenTbl.values();
-    return null;
+    if (size == 0)
+      return null;
+    if (size == 1)
+      return Collections.singletonList(single);
+    if (frozen)
+      return Arrays.asList(nodes);
+    MemoryBasedTrie[] children = new MemoryBasedTrie[size];
+    int n = 0;
+    for (MemoryBasedTrie node : nodes)
+      if (node != null)
+        children[n++] = node;
+    return Arrays.asList(children);
   }
 
   @Override
   public Iterator<Integer> getTerminalExtensionIterator() {
-    return new ExtensionIterator(childrenTbl, true);
+    return new LabelIterator(1, Integer.MAX_VALUE);
   }
 
   @Override
   public Iterator<Integer> getNonterminalExtensionIterator() {
-    return new ExtensionIterator(childrenTbl, false);
+    return new LabelIterator(Integer.MIN_VALUE + 1, -1);
+  }
+
+  /**
+   * Iterates over the child labels within a range. On a frozen node this walks just the matching
+   * run of the sorted labels.
+   */
+  private class LabelIterator implements Iterator<Integer> {
+    private final int min;
+    private final int max;
+    private int position;
+    private final int end;
+
+    LabelIterator(int min, int max) {
+      this.min = min;
+      this.max = max;
+      if (size == 1) {
+        position = 0;
+        end = 1;
+      } else if (keys == null) {
+        position = end = 0;
+      } else if (frozen) {
+        position = (min > 0) ? firstTerminal() : 0;
+        end = (max < 0) ? numNonterminals : size;
+      } else {
+        position = 0;
+        end = keys.length;
+      }
+      forward();
+    }
+
+    private int firstTerminal() {
+      int i = numNonterminals;
+      while (i < size && keys[i] <= 0)
+        i++;
+      return i;
+    }
+
+    private int label(int i) {
+      return (size == 1) ? singleKey : keys[i];
+    }
+
+    private void forward() {
+      while (position < end && (label(position) < min || label(position) > max))
+        position++;
+    }
+
+    @Override
+    public boolean hasNext() {
+      return position < end;
+    }
+
+    @Override
+    public Integer next() {
+      if (position >= end)
+        throw new NoSuchElementException();
+      int label = label(position++);
+      forward();
+      return label;
+    }
+
+    @Override
+    public void remove() {
+      throw new UnsupportedOperationException();
+    }
   }
 }
@@ -0,0 +1,406 @@
+package joshua.decoder.ff.tm.hash_based;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.logging.Logger;
+
+import joshua.corpus.Vocabulary;
+import joshua.decoder.ff.tm.BilingualRule;
+import joshua.util.FormatUtils;
+import joshua.util.io.LineReader;
+
+/**
+ * Loads a text grammar in Hiero format ("[X] ||| source ||| target ||| features") into the trie of
+ * a {@link MemoryBasedBatchGrammar} using several threads. It produces exactly the trie that
+ * reading the file through a {@link joshua.decoder.ff.tm.format.HieroFormatReader} and adding the
+ * rules one by one does, including the vocabulary ids, but:
+ * <ul>
+ * <li>lines are tokenized in batches by worker threads with a single pass over the characters
+ * instead of regular expressions;</li>
+ * <li>the symbols of a batch are interned with a single acquisition of the vocabulary lock, in file
+ * order, so ids don't depend on the number of threads;</li>
+ * <li>features are parsed once into names and values instead of being kept as a string that is
+ * parsed every time the rule's features are computed;</li>
+ * <li>the subtries below the root are built (and frozen) in parallel, one task per first source
+ * symbol.</li>
+ * </ul>
+ *
+ * Rules within a rule bin, and the children of every node, are inserted in file order.
+ */
+class TextGrammarLoader {
+
+  private static final Logger logger = Logger.getLogger(TextGrammarLoader.class.getName());
+
+  /* The number of lines handed to a worker at a time. */
+  private static final int BATCH_SIZE = 10000;
+
+  private final String grammarFile;
+  private final int owner;
+  private final int numThreads;
+
+  /* Feature names are shared among rules. */
+  private final Map<String, String> featureNames = new ConcurrentHashMap<String, String>();
+
+  private int numRules = 0;
+  private int numRuleBins = 0;
+
+  /**
+   * @param grammarFile the grammar file, possibly gzipped
+   * @param owner the owner of the grammar's rules
+   * @param numThreads the number of worker threads
+   */
+  TextGrammarLoader(String grammarFile, int owner, int numThreads) {
+    this.grammarFile = grammarFile;
+    this.owner = owner;
+    this.numThreads = Math.max(1, numThreads);
+  }
+
+  /**
+   * Returns the number of rules loaded.
+   */
+  int getNumRules() {
+    return numRules;
+  }
+
+  /**
+   * Returns the number of distinct source sides among the rules loaded.
+   */
+  int getNumRuleBins() {
+    return numRuleBins;
+  }
+
+  /**
+   * Reads the grammar file and adds its rules to the trie below the given root.
+   *
+   * @param root the (empty) trie root
+   */
+  void load(MemoryBasedTrie root) throws IOException {
+    long start = System.currentTimeMillis();
+    System.err.println(String.format("Reading grammar from file %s...", grammarFile));
+
+    /* Rules grouped by first source symbol, in order of first appearance. */
+    LinkedHashMap<Integer, List<BilingualRule>> groups =
+        new LinkedHashMap<Integer, List<BilingualRule>>();
+
+    ExecutorService pool = Executors.newFixedThreadPool(numThreads);
+    try {
+      LineReader reader = new LineReader(grammarFile);
+      LinkedList<Future<ParsedBatch>> pending = new LinkedList<Future<ParsedBatch>>();
+      try {
+        int counter = 0;
+        while (reader.hasNext()) {
+          final int first = counter + 1;
+          final List<String> lines = new ArrayList<String>(BATCH_SIZE);
+          while (lines.size() < BATCH_SIZE && reader.hasNext()) {
+            lines.add(reader.next());
+            counter++;
+          }
+          pending.add(pool.submit(new Callable<ParsedBatch>() {
+            public ParsedBatch call() {
+              return parse(lines, first);
+            }
+          }));
+
+          // Intern finished batches in order, keeping a bounded number of batches in flight.
+          while (pending.size() > 2 * numThreads || (!reader.hasNext() && !pending.isEmpty()))
+            group(get(pending.removeFirst()), groups);
+        }
+      } finally {
+        reader.close();
+      }
+
+      List<Future<MemoryBasedTrie>> subtries =
+          new ArrayList<Future<MemoryBasedTrie>>(groups.size());
+      for (final List<BilingualRule> rules : groups.values()) {
+        subtries.add(pool.submit(new Callable<MemoryBasedTrie>() {
+          public MemoryBasedTrie call() {
+            return build(rules);
+          }
+        }));
+      }
+      int i = 0;
+      for (Map.Entry<Integer, List<BilingualRule>> group : groups.entrySet()) {
+        MemoryBasedTrie child = get(subtries.get(i++));
+        root.put(group.getKey(), child);
+      }
+    } finally {
+      pool.shutdown();
+    }
+
+    for (List<BilingualRule> rules : groups.values())
+      numRules += rules.size();
+    System.err.println("...done.");
+
+    long elapsed = Math.max(1, System.currentTimeMillis() - start);
+    logger.info(String.format(
+        "Loaded %d rules from '%s' in %.1f seconds (%.0f rules/sec, %d threads)", numRules,
+        grammarFile, elapsed / 1000.0, numRules * 1000.0 / elapsed, numThreads));
+  }
+
+  /**
+   * A batch of tokenized lines. The distinct symbols of all rules are listed in the order in which
+   * reading the rules one at a time would first intern them.
+   */
+  private static class ParsedBatch {
+    List<ParsedRule> rules = new ArrayList<ParsedRule>();
+    List<String> symbols = new ArrayList<String>();
+    HashMap<String, Integer> positions = new HashMap<String, Integer>();
+
+    /* Returns the position of the symbol, adding it if this is its first occurrence. */
+    int add(String symbol) {
+      Integer position = positions.get(symbol);
+      if (position == null) {
+        position = symbols.size();
+        symbols.add(symbol);
+        positions.put(symbol, position);
+      }
+      return position;
+    }
+  }
+
+  private static class ParsedRule {
+    /* Position of the (cleaned) left-hand side in the batch's symbols. */
+    int lhs;
+    /* Positions of the source symbols, nonterminals cleaned. */
+    int[] source;
+    int arity;
+    /* Positions of the target symbols; for nonterminals, the negated nonterminal index. */
+    int[] target;
+    boolean[] targetIsNT;
+    String[] featureNames;
+    float[] featureValues;
+  }
+
+  private ParsedBatch parse(List<String> lines, int first) {
+    ParsedBatch batch = new ParsedBatch();
+    String[][] fields = new String[4][];
+
+    for (int l = 0; l < lines.size(); l++) {
+      String line = lines.get(l);
+      int num_fields = splitFields(line, fields);
+      if (num_fields != 4) {
+        logger.severe("Rule line does not have four fields: " + line);
+        if (num_fields < 4)
+          continue;
+      }
+
+      ParsedRule rule = new ParsedRule();
+      rule.lhs = batch.add(cleanNonTerminal(join(fields[0])));
+
+      String[] source = fields[1];
+      rule.source = new int[source.length];
+      for (int i = 0; i < source.length; i++) {
+        rule.source[i] = batch.add(source[i]);
+        if (FormatUtils.isNonterminal(source[i])) {
+          rule.arity++;
+          rule.source[i] = batch.add(cleanNonTerminal(source[i]));
+        }
+      }
+
+      String[] target = fields[2];
+      rule.target = new int[target.length];
+      rule.targetIsNT = new boolean[target.length];
+      for (int i = 0; i < target.length; i++) {
+        rule.target[i] = batch.add(target[i]);
+        if (FormatUtils.isNonterminal(target[i])) {
+          rule.targetIsNT[i] = true;
+          rule.target[i] = -FormatUtils.getNonterminalIndex(target[i]);
+        }
+      }
+
+      String[] features = fields[3];
+      rule.featureNames = new String[features.length];
+      rule.featureValues = new float[features.length];
+      try {
+        for (int i = 0; i < features.length; i++) {
+          String token = features[i];
+          int splitPoint = token.indexOf('=');
+          if (splitPoint == -1) {
+            rule.featureValues[i] = Float.parseFloat(token);
+          } else {
+            rule.featureNames[i] = featureName(token.substring(0, splitPoint));
+            rule.featureValues[i] = Float.parseFloat(token.substring(splitPoint + 1));
+          }
+        }
+      } catch (NumberFormatException e) {
+        throw new RuntimeException(String.format("Bad feature value in line %d of '%s': %s",
+            first + l, grammarFile, line), e);
+      }
+
+      batch.rules.add(rule);
+    }
+    return batch;
+  }
+
+  /**
+   * Interns the batch's symbols and appends its rules to the group of their first source symbol.
+   */
+  private void group(ParsedBatch batch, LinkedHashMap<Integer, List<BilingualRule>> groups) {
+    int[] ids = Vocabulary.addAll(batch.symbols.toArray(new String[batch.symbols.size()]));
+
+    for (ParsedRule parsed : batch.rules) {
+      int[] source = new int[parsed.source.length];
+      for (int i = 0; i < source.length; i++)
+        source[i] = ids[parsed.source[i]];
+      int[] target = new int[parsed.target.length];
+      for (int i = 0; i < target.length; i++)
+        target[i] = parsed.targetIsNT[i] ? parsed.target[i] : ids[parsed.target[i]];
+
+      BilingualRule rule = new BilingualRule(ids[parsed.lhs], source, target, parsed.featureNames,
+          parsed.featureValues, parsed.arity);
+      rule.setOwner(owner);
+
+      if (source.length == 0) {
+        logger.warning("Rule has an empty source side: " + rule);
+        continue;
+      }
+      List<BilingualRule> rules = groups.get(source[0]);
+      if (rules == null) {
+        rules = new ArrayList<BilingualRule>();
+        groups.put(source[0], rules);
+      }
+      rules.add(rule);
+    }
+  }
+
+  /**
+   * Builds the subtrie of rules sharing their first source symbol, returning its root (the node of
+   * the one-symbol prefix).
+   */
+  private MemoryBasedTrie build(List<BilingualRule> rules) {
+    MemoryBasedTrie top = new MemoryBasedTrie();
+    int bins = 0;
+    for (BilingualRule rule : rules) {
+      MemoryBasedTrie pos = top;
+      int[] french = rule.getFrench();
+      for (int k = 1; k < french.length; k++) {
+        pos = pos.extend(french[k]);
+      }
+
+      if (!pos.hasRules()) {
+        pos.ruleBin = new MemoryBasedRuleBin(rule.getArity(), rule.getFrench());
+        bins++;
+      }
+      pos.ruleBin.addRule(rule);
+    }
+    top.freeze();
+    synchronized (this) {
+      numRuleBins += bins;
+    }
+    return top;
+  }
+
+  private String featureName(String name) {
+    String shared = featureNames.get(name);
+    if (shared == null) {
+      featureNames.put(name, name);
+      shared = name;
+    }
+    return shared;
+  }
+
+  /**
+   * Splits a line into up to four whitespace-tokenized fields, delimited by "|||" tokens; anything
+   * after the fourth field is ignored. Returns the number of fields found.
+   */
+  private static int splitFields(String line, String[][] fields) {
+    List<String> tokens = new ArrayList<String>();
+    int num_fields = 0;
+    int length = line.length();
+    int i = 0;
+    while (i < length) {
+      while (i < length && isSpace(line.charAt(i)))
+        i++;
+      int start = i;
+      while (i < length && !isSpace(line.charAt(i)))
+        i++;
+      if (i == start)
+        break;
+      if (i - start == 3 && line.startsWith("|||", start)) {
+        if (num_fields < 4)
+          fields[num_fields] = tokens.toArray(new String[tokens.size()]);
+        num_fields++;
+        tokens.clear();
+      } else {
+        tokens.add(line.substring(start, i));
+      }
+    }
+    if (num_fields < 4)
+      fields[num_fields] = tokens.toArray(new String[tokens.size()]);
+    return num_fields + 1;
+  }
+
+  private static boolean isSpace(char c) {
+    return c == ' ' || c == '\t' || c == '\n' || c == '\r' || c == '\f' || c == '\u000B';
+  }
+
+  private static String join(String[] tokens) {
+    if (tokens.length == 1)
+      return tokens[0];
+    StringBuilder sb = new StringBuilder();
+    for (int i = 0; i < tokens.length; i++) {
+      if (i > 0)
+        sb.append(' ');
+      sb.append(tokens[i]);
+    }
+    return sb.toString();
+  }
+
+  /**
+   * Removes the index of a nonterminal, e.g., "[X,1]" becomes "[X]". This is the regex-free
+   * equivalent of HieroFormatReader's cleaning for single tokens.
+   */
+  static String cleanNonTerminal(String word) {
+    int comma = word.indexOf(',');
+    if (comma == -1)
+      return word;
+    StringBuilder sb = new StringBuilder(word.length());
+    int i = 0;
+    while (i < word.length()) {
+      char c = word.charAt(i);
+      if (c == ',' && i + 1 < word.length() && isIndexChar(word.charAt(i + 1))) {
+        i++;
+        while (i < word.length() && isIndexChar(word.charAt(i)))
+          i++;
+      } else {
+        sb.append(c);
+        i++;
+      }
+    }
+    return sb.toString();
+  }
+
+  private static boolean isIndexChar(char c) {
+    return (c >= '0' && c <= '9') || isSpace(c);
+  }
+
+  /**
+   * Waits for a task to complete, rethrowing its failure.
+   */
+  private static <T> T get(Future<T> future) throws IOException {
+    try {
+      return future.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException("Interrupted while loading grammar.", e);
+    } catch (ExecutionException e) {
+      Throwable cause = e.getCause();
+      if (cause instanceof IOException)
+        throw (IOException) cause;
+      if (cause instanceof RuntimeException)
+        throw (RuntimeException) cause;
+      throw new RuntimeException(cause);
+    }
+  }
+}
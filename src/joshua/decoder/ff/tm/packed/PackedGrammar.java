@@ -11,14 +11,18 @@ import java.nio.IntBuffer;
 import java.nio.MappedByteBuffer;
 import java.nio.channels.FileChannel;
 import java.nio.channels.FileChannel.MapMode;
+import java.util.AbstractList;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Comparator;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
+import java.util.RandomAccess;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.logging.Logger;
 
+import joshua.corpus.MappedVocabulary;
 import joshua.corpus.Vocabulary;
 import joshua.decoder.JoshuaConfiguration;
 import joshua.decoder.ff.FeatureFunction;
@@ -37,35 +41,79 @@ public class PackedGrammar extends BatchGrammar {
 
   private static final Logger logger = Logger.getLogger(PackedGrammar.class.getName());
 
-  private EncoderConfiguration encoding;
+  /* The number of rule objects cached per trie node. */
+  private static final int CACHED_RULES = 100;
 
   private PackedRoot root;
   private ArrayList<PackedSlice> slices;
 
   public PackedGrammar(String grammar_dir, int span_limit, String owner,
       JoshuaConfiguration joshuaConfiguration) throws FileNotFoundException, IOException {
+    this(grammar_dir, new ArrayList<String>(), span_limit, owner, joshuaConfiguration);
+  }
+
+  /**
+   * Loads a packed grammar together with a number of overlay directories. An overlay is a small
+   * grammar packed independently (e.g., new rules for a customer or domain) that is layered on top
+   * of the base grammar without repacking it. Overlays are loaded with their own vocabulary and
+   * encoder configuration; their symbols are mapped into the base vocabulary at load time. Rules
+   * are unioned: where the base and overlays share a source side, the trie node serves the rules of
+   * all of them.
+   * 
+   * @param grammar_dir the base packed grammar directory
+   * @param overlay_dirs packed overlay directories, possibly empty
+   * @param span_limit
+   * @param owner
+   * @param joshuaConfiguration
+   * @throws FileNotFoundException
+   * @throws IOException
+   */
+  public PackedGrammar(String grammar_dir, List<String> overlay_dirs, int span_limit,
+      String owner, JoshuaConfiguration joshuaConfiguration) throws FileNotFoundException,
+      IOException {
     super(joshuaConfiguration);
     this.spanLimit = span_limit;
 
-    // Read the vocabulary.
-    logger.info("Reading vocabulary: " + grammar_dir + File.separator + "vocabulary");
-    Vocabulary.read(grammar_dir + File.separator + "vocabulary");
+    // Read the vocabulary, mapping it if the grammar was packed with a mapped one.
+    File mapped_vocabulary = new File(grammar_dir, MappedVocabulary.FILE_NAME);
+    if (mapped_vocabulary.exists()) {
+      logger.info("Mapping vocabulary: " + mapped_vocabulary);
+      Vocabulary.map(mapped_vocabulary.getPath());
+    } else {
+      logger.info("Reading vocabulary: " + grammar_dir + File.separator + "vocabulary");
+      Vocabulary.read(grammar_dir + File.separator + "vocabulary");
+    }
 
     // Read the quantizer setup.
     logger.info("Reading encoder configuration: " + grammar_dir + File.separator + "encoding");
-    encoding = new EncoderConfiguration();
+    EncoderConfiguration encoding = new EncoderConfiguration();
     encoding.load(grammar_dir + File.separator + "encoding");
+    final int id_size = EncoderConfiguration.ID_SIZE;
 
-    // Set phrase owner.
-    this.owner = Vocabulary.id(owner);
-
-    String[] listing = new File(grammar_dir).list();
     slices = new ArrayList<PackedSlice>();
-    for (int i = 0; i < listing.length; i++) {
-      if (listing[i].startsWith("slice_") && listing[i].endsWith(".source"))
-        slices.add(new PackedSlice(grammar_dir + File.separator + listing[i].substring(0, 11)));
+    addSlices(grammar_dir, encoding, null);
+
+    for (String overlay_dir : overlay_dirs) {
+      // Map the overlay's vocabulary onto the one we've built so far.
+      logger.info("Reading overlay vocabulary: " + overlay_dir + File.separator + "vocabulary");
+      int[] remap = Vocabulary.readExtension(overlay_dir + File.separator + "vocabulary");
+
+      logger.info("Reading overlay encoder configuration: " + overlay_dir + File.separator
+          + "encoding");
+      EncoderConfiguration overlay_encoding = new EncoderConfiguration();
+      overlay_encoding.load(overlay_dir + File.separator + "encoding");
+      // The feature id width is global to all encoders, so it has to agree.
+      if (EncoderConfiguration.ID_SIZE != id_size)
+        throw new RuntimeException("Overlay " + overlay_dir + " encodes feature ids in "
+            + EncoderConfiguration.ID_SIZE + " bytes, but " + grammar_dir + " uses " + id_size
+            + ". Pack the overlay with the same feature set as the base grammar.");
+
+      addSlices(overlay_dir, overlay_encoding, remap);
     }
 
+    // Set phrase owner.
+    this.owner = Vocabulary.id(owner);
+
     long count = 0;
     for (PackedSlice s : slices)
       count += s.estimated.length;
@@ -74,6 +122,17 @@ public class PackedGrammar extends BatchGrammar {
     logger.info("Loaded " + count + " rules.");
   }
 
+  private void addSlices(String grammar_dir, EncoderConfiguration encoding, int[] remap)
+      throws IOException {
+    String[] listing = new File(grammar_dir).list();
+    Arrays.sort(listing);
+    for (int i = 0; i < listing.length; i++) {
+      if (listing[i].startsWith("slice_") && listing[i].endsWith(".source"))
+        slices.add(new PackedSlice(grammar_dir + File.separator + listing[i].substring(0, 11),
+            encoding, remap));
+    }
+  }
+
   @Override
   public Trie getTrieRoot() {
     return root;
@@ -98,24 +157,49 @@ public class PackedGrammar extends BatchGrammar {
 
   public final class PackedRoot implements Trie {
 
-    private HashMap<Integer, PackedSlice> lookup;
+    private HashMap<Integer, List<PackedSlice>> lookup;
+
+    /*
+     * Merged tries for first words covered by more than one slice (i.e., by overlays). Built up
+     * front, so that lookups from several decoding threads don't need a lock.
+     */
+    private HashMap<Integer, Trie> overlaid;
 
     public PackedRoot(PackedGrammar grammar) {
-      lookup = new HashMap<Integer, PackedSlice>();
+      lookup = new HashMap<Integer, List<PackedSlice>>();
+      overlaid = new HashMap<Integer, Trie>();
 
       for (PackedSlice ps : grammar.slices) {
         int num_children = ps.source[0];
-        for (int i = 0; i < num_children; i++)
-          lookup.put(ps.source[2 * i + 1], ps);
+        for (int i = 0; i < num_children; i++) {
+          List<PackedSlice> covering = lookup.get(ps.source[2 * i + 1]);
+          if (covering == null) {
+            covering = new ArrayList<PackedSlice>(1);
+            lookup.put(ps.source[2 * i + 1], covering);
+          }
+          covering.add(ps);
+        }
+      }
+
+      for (int word_id : lookup.keySet()) {
+        List<PackedSlice> covering = lookup.get(word_id);
+        if (covering.size() > 1) {
+          List<Trie> tries = new ArrayList<Trie>(covering.size());
+          for (PackedSlice ps : covering)
+            tries.add(ps.root().match(word_id));
+          overlaid.put(word_id, new PackedOverlayTrie(tries));
+        }
       }
     }
 
     @Override
     public Trie match(int word_id) {
-      PackedSlice ps = lookup.get(word_id);
-      if (ps != null)
-        return ps.root().match(word_id);
-      return null;
+      List<PackedSlice> covering = lookup.get(word_id);
+      if (covering == null)
+        return null;
+      if (covering.size() == 1)
+        return covering.get(0).root().match(word_id);
+      return overlaid.get(word_id);
     }
 
     @Override
@@ -161,9 +245,157 @@ public class PackedGrammar extends BatchGrammar {
     }
   }
 
+  /**
+   * A trie node that overlays the nodes of several slices sharing the same source side, as happens
+   * when overlay grammars are loaded on top of a base grammar. Lookups descend into all constituent
+   * nodes; the rules are the union of the constituents' rules, with sorted rules produced by
+   * merging the individually sorted lists.
+   */
+  public final class PackedOverlayTrie implements Trie, RuleCollection {
+
+    private final List<Trie> tries;
+
+    /* Matched children; a node maps to itself where no constituent has the word. */
+    private final ConcurrentHashMap<Integer, Trie> children;
+
+    private List<Rule> rules = null;
+    private List<Rule> sortedRules = null;
+
+    private PackedOverlayTrie(List<Trie> tries) {
+      this.tries = tries;
+      this.children = new ConcurrentHashMap<Integer, Trie>();
+    }
+
+    @Override
+    public Trie match(int word_id) {
+      Trie t = children.get(word_id);
+      if (t == null) {
+        List<Trie> matched = new ArrayList<Trie>(tries.size());
+        for (Trie constituent : tries) {
+          Trie child = constituent.match(word_id);
+          if (child != null)
+            matched.add(child);
+        }
+        if (matched.isEmpty())
+          t = this;
+        else if (matched.size() == 1)
+          t = matched.get(0);
+        else
+          t = new PackedOverlayTrie(matched);
+        Trie previous = children.putIfAbsent(word_id, t);
+        if (previous != null)
+          t = previous;
+      }
+      return (t == this) ? null : t;
+    }
+
+    @Override
+    public boolean hasExtensions() {
+      for (Trie t : tries)
+        if (t.hasExtensions())
+          return true;
+      return false;
+    }
+
+    @Override
+    public HashMap<Integer, ? extends Trie> getChildren() {
+      HashMap<Integer, Trie> union = new HashMap<Integer, Trie>();
+      for (Trie t : tries)
+        for (int key : t.getChildren().keySet())
+          if (!union.containsKey(key))
+            union.put(key, match(key));
+      return union;
+    }
+
+    @Override
+    public ArrayList<? extends Trie> getExtensions() {
+      return new ArrayList<Trie>(getChildren().values());
+    }
+
+    @Override
+    public boolean hasRules() {
+      for (Trie t : tries)
+        if (t.hasRules())
+          return true;
+      return false;
+    }
+
+    @Override
+    public RuleCollection getRuleCollection() {
+      return this;
+    }
+
+    @Override
+    public Iterator<Integer> getTerminalExtensionIterator() {
+      return new ExtensionIterator(getChildren(), true);
+    }
+
+    @Override
+    public Iterator<Integer> getNonterminalExtensionIterator() {
+      return new ExtensionIterator(getChildren(), false);
+    }
+
+    @Override
+    public synchronized boolean isSorted() {
+      return (sortedRules != null);
+    }
+
+    @Override
+    public synchronized List<Rule> getSortedRules(List<FeatureFunction> models) {
+      if (sortedRules == null) {
+        // Each constituent sorts its own rules; we only merge them.
+        List<List<Rule>> lists = new ArrayList<List<Rule>>(tries.size());
+        int total = 0;
+        for (Trie t : tries) {
+          List<Rule> sorted = t.getRuleCollection().getSortedRules(models);
+          lists.add(sorted);
+          total += sorted.size();
+        }
+        int[] heads = new int[lists.size()];
+        ArrayList<Rule> merged = new ArrayList<Rule>(total);
+        while (merged.size() < total) {
+          int best = -1;
+          for (int i = 0; i < heads.length; i++) {
+            if (heads[i] < lists.get(i).size()
+                && (best == -1 || lists.get(i).get(heads[i]).getEstimatedCost() < lists.get(best)
+                    .get(heads[best]).getEstimatedCost()))
+              best = i;
+          }
+          merged.add(lists.get(best).get(heads[best]++));
+        }
+        sortedRules = merged;
+      }
+      return sortedRules;
+    }
+
+    @Override
+    public synchronized List<Rule> getRules() {
+      if (sortedRules != null)
+        return sortedRules;
+      if (rules == null) {
+        rules = new ArrayList<Rule>();
+        for (Trie t : tries)
+          rules.addAll(t.getRuleCollection().getRules());
+      }
+      return rules;
+    }
+
+    @Override
+    public int[] getSourceSide() {
+      return tries.get(0).getRuleCollection().getSourceSide();
+    }
+
+    @Override
+    public int getArity() {
+      return tries.get(0).getRuleCollection().getArity();
+    }
+  }
+
   public final class PackedSlice {
     private final String name;
 
+    private final EncoderConfiguration encoding;
+
     private final int[] source;
 
     private final int[] target;
@@ -174,18 +406,24 @@ public class PackedGrammar extends BatchGrammar {
     private int[] featureLookup;
     private RandomAccessFile featureFile;
 
+    private MappedByteBuffer alignments;
+    private RandomAccessFile alignmentFile;
+
     private float[] estimated;
     private float[] precomputable;
 
     private HashMap<Integer, PackedTrie> tries;
 
-    public PackedSlice(String prefix) throws IOException {
+    public PackedSlice(String prefix, EncoderConfiguration encoding, int[] remap)
+        throws IOException {
       name = prefix;
+      this.encoding = encoding;
 
       File source_file = new File(prefix + ".source");
       File target_file = new File(prefix + ".target");
       File target_lookup_file = new File(prefix + ".target.lookup");
       File feature_file = new File(prefix + ".features");
+      File alignment_file = new File(prefix + ".alignments");
 
       // Get the channels etc.
       FileInputStream source_fis = new FileInputStream(source_file);
@@ -226,6 +464,13 @@ public class PackedGrammar extends BatchGrammar {
         header_pos += 4;
       }
 
+      // Alignments are optional; they are only present if the grammar was packed with them.
+      if (alignment_file.exists()) {
+        alignmentFile = new RandomAccessFile(alignment_file, "r");
+        FileChannel alignment_channel = alignmentFile.getChannel();
+        alignments = alignment_channel.map(MapMode.READ_ONLY, 0, alignment_channel.size());
+      }
+
       DataInputStream target_lookup_stream = new DataInputStream(new BufferedInputStream(
           new FileInputStream(target_lookup_file)));
       targetLookup = new int[target_lookup_stream.readInt()];
@@ -233,15 +478,60 @@ public class PackedGrammar extends BatchGrammar {
         targetLookup[i] = target_lookup_stream.readInt();
       target_lookup_stream.close();
 
+      if (remap != null)
+        remap(remap);
+
       tries = new HashMap<Integer, PackedTrie>();
     }
 
+    /**
+     * Rewrites the symbols of a slice that was packed against a different vocabulary. The source
+     * trie's nodes are stored contiguously, so a linear pass visits them all; children are
+     * re-sorted since the binary search in {@link PackedTrie#match} relies on their order.
+     * 
+     * @param remap maps the slice's (absolute) symbol ids to the current vocabulary
+     */
+    private void remap(int[] remap) {
+      // Target symbols: nonterminals are stored as (negative) indices and need no mapping.
+      for (int i = 1; i < target.length; i += 2)
+        if (target[i] > 0)
+          target[i] = remap[target[i]];
+
+      int position = 0;
+      while (position < source.length) {
+        int num_children = source[position];
+        long[] children = new long[num_children];
+        for (int i = 0; i < num_children; i++) {
+          int symbol = remapSymbol(source[position + 1 + 2 * i], remap);
+          children[i] = ((long) symbol << 32) | (source[position + 2 + 2 * i] & 0xFFFFFFFFL);
+        }
+        Arrays.sort(children);
+        for (int i = 0; i < num_children; i++) {
+          // Descending order: terminals (positive) first, then nonterminals.
+          long child = children[num_children - 1 - i];
+          source[position + 1 + 2 * i] = (int) (child >> 32);
+          source[position + 2 + 2 * i] = (int) child;
+        }
+        int rule_position = position + 2 * (num_children + 1);
+        int num_rules = source[rule_position - 1];
+        for (int i = 0; i < num_rules; i++)
+          source[rule_position + 3 * i] = remapSymbol(source[rule_position + 3 * i], remap);
+        position = rule_position + 3 * num_rules;
+      }
+    }
+
+    private int remapSymbol(int symbol, int[] remap) {
+      return (symbol < 0 ? -remap[-symbol] : remap[symbol]);
+    }
+
     @SuppressWarnings("unused")
     private final Object guardian = new Object() {
       @Override
       // Finalizer object to ensure feature file handle get closed upon slice's dismissal.
       protected void finalize() throws Throwable {
         featureFile.close();
+        if (alignmentFile != null)
+          alignmentFile.close();
       }
     };
 
@@ -323,6 +613,27 @@ public class PackedGrammar extends BatchGrammar {
       return sb.toString().trim();
     }
 
+    /**
+     * Returns the word alignment points of a rule (represented as a block ID), as a flat array of
+     * (source index, target index) byte pairs, or null if the slice was packed without alignments.
+     * The alignment blocks are indexed in parallel with the feature blocks.
+     * 
+     * @param block_id
+     * @return
+     */
+    private final byte[] getAlignments(int block_id) {
+      if (alignments == null)
+        return null;
+
+      // Skip the number of blocks and total size, then look up the block's position.
+      int alignment_position = alignments.getInt(8 + 4 * block_id);
+      int num_points = alignments.get(alignment_position) & 0xFF;
+      byte[] points = new byte[2 * num_points];
+      for (int i = 0; i < points.length; i++)
+        points[i] = alignments.get(alignment_position + 1 + i);
+      return points;
+    }
+
     private final PackedTrie root() {
       return getTrie(0);
     }
@@ -344,6 +655,15 @@ public class PackedGrammar extends BatchGrammar {
 
       private boolean sorted = false;
 
+      /*
+       * Lazily created rule view and the rule objects it has resolved so far. Trie nodes live as long
+       * as the grammar, so only the first CACHED_RULES rules of a node are kept: cube pruning pops
+       * rules in sorted order and rarely goes deeper, and keeping every rule ever touched would
+       * grow the heap without bound in server mode.
+       */
+      private PackedRuleList ruleView = null;
+      private PackedRule[] resolved = null;
+
       private int[] src;
       private int arity;
 
@@ -428,16 +748,16 @@ public class PackedGrammar extends BatchGrammar {
         return this;
       }
 
+      /**
+       * Returns a read-only view of the rules at this node. The view is backed directly by the
+       * packed source array; the k-th rule object is only created the first time it is requested,
+       * and the first few are then reused by all subsequent calls, so cube pruning only pays for
+       * the rules it actually pops.
+       */
       public List<Rule> getRules() {
-        int num_children = source[position];
-        int rule_position = position + 2 * (num_children + 1);
-        int num_rules = source[rule_position - 1];
-
-        ArrayList<Rule> rules = new ArrayList<Rule>(num_rules);
-        for (int i = 0; i < num_rules; i++) {
-          rules.add(new PackedRule(rule_position + 3 * i));
-        }
-        return rules;
+        if (ruleView == null)
+          ruleView = new PackedRuleList();
+        return ruleView;
       }
 
       /**
@@ -492,6 +812,8 @@ public class PackedGrammar extends BatchGrammar {
         }
         for (int i = 0; i < sorted.length; i++)
           source[rule_position + i] = sorted[i];
+        // Rules resolved before sorting point to stale addresses.
+        resolved = null;
         this.sorted = true;
       }
 
@@ -522,12 +844,18 @@ public class PackedGrammar extends BatchGrammar {
         return new PackedChildIterator(position, false);
       }
 
+      /**
+       * Iterates over the terminal or nonterminal labels of a node's children. Children are stored
+       * in descending order, so terminals (positive) are read from the front and nonterminals
+       * (negative) from the back.
+       */
       public final class PackedChildIterator implements Iterator<Integer> {
 
         private int current;
         private boolean terminal;
         private boolean done;
         private int last;
+        private int step;
 
         PackedChildIterator(int position, boolean terminal) {
           this.terminal = terminal;
@@ -536,17 +864,18 @@ public class PackedGrammar extends BatchGrammar {
           if (!done) {
             current = (terminal ? position + 1 : position - 1 + 2 * num_children);
             last = (terminal ? position - 1 + 2 * num_children : position + 1);
+            step = (terminal ? 2 : -2);
+            done = !accept(source[current]);
           }
         }
 
+        private boolean accept(int symbol) {
+          return (terminal ? symbol > 0 : symbol < 0);
+        }
+
         @Override
         public boolean hasNext() {
-          if (done)
-            return false;
-          int next = (terminal ? current + 2 : current - 2);
-          if (next == last)
-            return false;
-          return (terminal ? source[next] > 0 : source[next] < 0);
+          return !done;
         }
 
         @Override
@@ -554,11 +883,11 @@ public class PackedGrammar extends BatchGrammar {
           if (done)
             throw new RuntimeException("No more symbols!");
           int symbol = source[current];
-          if (current == last)
+          if (current == last) {
             done = true;
-          if (!done) {
-            current = (terminal ? current + 2 : current - 2);
-            done = (terminal ? source[current] < 0 : source[current] > 0);
+          } else {
+            current += step;
+            done = !accept(source[current]);
           }
           return symbol;
         }
@@ -569,11 +898,53 @@ public class PackedGrammar extends BatchGrammar {
         }
       }
 
+      /**
+       * An indexable, read-only list over the rules stored at this trie node. Rule objects are
+       * resolved on demand from the packed arrays and cached for reuse.
+       */
+      private final class PackedRuleList extends AbstractList<Rule> implements RandomAccess {
+
+        @Override
+        public Rule get(int index) {
+          int num_children = source[position];
+          int rule_position = position + 2 * (num_children + 1);
+          int num_rules = source[rule_position - 1];
+          if (index < 0 || index >= num_rules)
+            throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + num_rules);
+
+          if (index >= CACHED_RULES)
+            return new PackedRule(rule_position + 3 * index);
+
+          PackedRule[] cache = resolved;
+          if (cache == null) {
+            cache = new PackedRule[Math.min(num_rules, CACHED_RULES)];
+            resolved = cache;
+          }
+          PackedRule rule = cache[index];
+          if (rule == null) {
+            rule = new PackedRule(rule_position + 3 * index);
+            cache[index] = rule;
+          }
+          return rule;
+        }
+
+        @Override
+        public int size() {
+          int num_children = source[position];
+          return source[position + 1 + 2 * num_children];
+        }
+      }
+
       public final class PackedRule extends Rule {
         private final int address;
 
-        private int[] tgt = null;
-        private FeatureVector features = null;
+        /*
+         * Filled in on first use. Rules are cached on trie nodes that all decoding threads share, so
+         * each value is built in a local variable and published only once it is complete.
+         */
+        private volatile int[] tgt = null;
+        private volatile FeatureVector features = null;
+        private volatile byte[] alignment = null;
 
         public PackedRule(int address) {
           this.address = address;
@@ -612,10 +983,12 @@ public class PackedGrammar extends BatchGrammar {
 
         @Override
         public int[] getEnglish() {
-          if (tgt == null) {
-            tgt = getTarget(source[address + 1]);
+          int[] target = tgt;
+          if (target == null) {
+            target = getTarget(source[address + 1]);
+            tgt = target;
           }
-          return tgt;
+          return target;
         }
 
         @Override
@@ -634,12 +1007,24 @@ public class PackedGrammar extends BatchGrammar {
 
         @Override
         public FeatureVector getFeatureVector() {
-          if (features == null) {
-            features = new FeatureVector(getFeatures(source[address + 2]), "");
-            features.times(-1);
+          FeatureVector vector = features;
+          if (vector == null) {
+            vector = new FeatureVector(getFeatures(source[address + 2]), "");
+            vector.times(-1);
+            features = vector;
           }
 
-          return features;
+          return vector;
+        }
+
+        @Override
+        public byte[] getAlignment() {
+          byte[] points = alignment;
+          if (points == null) {
+            points = getAlignments(source[address + 2]);
+            alignment = points;
+          }
+          return points;
         }
 
         @Override
@@ -0,0 +1,121 @@
+package joshua.decoder.hypergraph;
+
+import joshua.decoder.BLEU;
+
+/**
+ * The first-order expectation semiring over a {@link FlatHyperGraph}: given a log-probability and
+ * a vector of additive values (such as feature values or n-gram match counts) for each edge, one
+ * inside pass computes the expected value of the vector summed along a derivation, with
+ * derivations weighted by their probability.
+ * <p>
+ * The usual semiring pairs (p, r), with r the probability-weighted sum of the values, overflow or
+ * underflow for real forests. Each node instead keeps its inside log-probability and r / p, the
+ * expected values of its derivations: an edge's expectation is its own values plus those of its
+ * tail nodes, and a node's is the average of its edges', weighted by their share of its inside
+ * probability. Values are kept in one array of dim entries per node.
+ */
+public class ExpectationSemiring {
+
+  private final FlatHyperGraph hg;
+  private final int dim;
+  private final double[] inside;
+  private final double[] expectation;
+
+  /**
+   * Runs the inside pass.
+   *
+   * @param hg the hypergraph
+   * @param edgeLogProb the log-probability of each edge
+   * @param edgeValues the values of edge e, at edgeValues[e * dim] to edgeValues[e * dim + dim - 1]
+   * @param dim the number of values per edge
+   */
+  public ExpectationSemiring(FlatHyperGraph hg, double[] edgeLogProb, double[] edgeValues, int dim) {
+    this.hg = hg;
+    this.dim = dim;
+    this.inside = new double[hg.numNodes];
+    this.expectation = new double[hg.numNodes * dim];
+
+    Semiring log = Semiring.LOG;
+    double[] edgeInside = new double[hg.numEdges];
+    for (int n = 0; n < hg.numNodes; n++) {
+      double score = log.zero();
+      for (int e = hg.firstEdge[n]; e < hg.firstEdge[n + 1]; e++) {
+        double edgeScore = edgeLogProb[e];
+        for (int t = hg.firstTail[e]; t < hg.firstTail[e + 1]; t++)
+          edgeScore += inside[hg.tails[t]];
+        edgeInside[e] = edgeScore;
+        score = log.plus(score, edgeScore);
+      }
+      inside[n] = score;
+      if (score == Double.NEGATIVE_INFINITY)
+        continue;
+
+      int base = n * dim;
+      for (int e = hg.firstEdge[n]; e < hg.firstEdge[n + 1]; e++) {
+        double share = Math.exp(edgeInside[e] - score);
+        if (share == 0.0)
+          continue;
+        for (int k = 0; k < dim; k++) {
+          double value = edgeValues[e * dim + k];
+          for (int t = hg.firstTail[e]; t < hg.firstTail[e + 1]; t++)
+            value += expectation[hg.tails[t] * dim + k];
+          expectation[base + k] += share * value;
+        }
+      }
+    }
+  }
+
+  /**
+   * Returns the log of the sum of the probabilities of all derivations.
+   */
+  public double getLogNormalizationConstant() {
+    return (hg.numNodes == 0) ? Double.NEGATIVE_INFINITY : inside[hg.goal()];
+  }
+
+  /**
+   * Returns the expected value of the k-th value over all derivations.
+   */
+  public double getExpectation(int k) {
+    return (hg.numNodes == 0) ? 0.0 : getExpectation(hg.goal(), k);
+  }
+
+  /**
+   * Returns the expected value of the k-th value over the derivations of a node.
+   */
+  public double getExpectation(int node, int k) {
+    return expectation[node * dim + k];
+  }
+
+  public int getDimension() {
+    return dim;
+  }
+
+  /**
+   * Computes the expected BLEU statistics of a hypergraph: the expected n-gram match counts, for n
+   * from 1 to {@link BLEU#maxOrder}, followed by the expected length. The statistics of each edge
+   * are those of {@link BLEU#compute}, which needs the n-gram states of the tail nodes, so the
+   * hypergraph must have been flattened from the decoder's own nodes.
+   *
+   * @param hg the hypergraph
+   * @param edgeLogProb the log-probability of each edge
+   * @param references the references
+   * @return the expectations, with dimension {@link BLEU#maxOrder} + 1
+   */
+  public static ExpectationSemiring bleu(FlatHyperGraph hg, double[] edgeLogProb,
+      BLEU.References references) {
+    int dim = BLEU.maxOrder + 1;
+    double[] values = new double[hg.numEdges * dim];
+    for (int e = 0; e < hg.numEdges; e++) {
+      HyperEdge edge = hg.edge(e);
+      if (edge == null)
+        throw new RuntimeException("BLEU statistics need the hypergraph's edge objects");
+      int n = hg.head[e];
+      float spanPct = 1.0f * (hg.spanEnd[n] - hg.spanStart[n]) / hg.sentLen;
+      BLEU.Stats stats = BLEU.compute(edge, spanPct, references);
+      for (int k = 0; k < BLEU.maxOrder; k++)
+        values[e * dim + k] = stats.counts[k];
+      values[e * dim + BLEU.maxOrder] = stats.len;
+    }
+    return new ExpectationSemiring(hg, edgeLogProb, values, dim);
+  }
+}
@@ -0,0 +1,225 @@
+package joshua.decoder.hypergraph;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+
+import joshua.decoder.ff.FeatureDelta;
+import joshua.decoder.ff.tm.Rule;
+
+/**
+ * A hypergraph stored as parallel arrays instead of linked {@link HGNode} and {@link HyperEdge}
+ * objects, for algorithms that run over a finished forest (inside-outside, pruning, MBR). Nodes are
+ * numbered in topological order, so that every node comes after the tail nodes of its hyperedges
+ * and the goal node is the last one; a single pass over the nodes in either direction visits them
+ * bottom-up or top-down, with results kept in arrays indexed by node or edge number rather than
+ * in maps keyed by objects.
+ * <p>
+ * The hyperedges of node n are numbered firstEdge[n] to firstEdge[n + 1] - 1, and the tail nodes
+ * of edge e are tails[firstTail[e]] to tails[firstTail[e + 1] - 1]. Rules are kept once in a table
+ * and referred to by id. A flat hypergraph made from a {@link HyperGraph} also remembers the node
+ * and edge objects, so that results can be related back to them.
+ */
+public class FlatHyperGraph {
+
+  public final int numNodes;
+  public final int numEdges;
+  public final int sentID;
+  public final int sentLen;
+
+  /* By node. */
+  public final int[] lhs;
+  public final int[] spanStart;
+  public final int[] spanEnd;
+  public final int[] firstEdge;
+  public final int[] bestEdge;
+
+  /* By edge. */
+  public final int[] head;
+  public final int[] firstTail;
+  public final int[] tails;
+  public final int[] ruleID;
+  public final float[] bestDerivationScore;
+  public final float[] transitionScore;
+  public final FeatureDelta[] featureDeltas;
+
+  /* The rules, by id. Edges of the goal node have rule id -1. */
+  public final Rule[] rules;
+
+  /* The objects the arrays were built from, or null. */
+  private final HGNode[] nodeObjects;
+  private final HyperEdge[] edgeObjects;
+
+  /**
+   * Flattens a hypergraph. Only nodes reachable from the goal node are included.
+   *
+   * @param hypergraph
+   */
+  public FlatHyperGraph(HyperGraph hypergraph) {
+    List<HGNode> order = hypergraph.topologicalOrder();
+    sentID = hypergraph.sentID;
+    sentLen = hypergraph.sentLen;
+    numNodes = order.size();
+
+    int edgeCount = 0;
+    int tailCount = 0;
+    for (HGNode node : order)
+      if (node.hyperedges != null)
+        for (HyperEdge edge : node.hyperedges) {
+          edgeCount++;
+          if (edge.getTailNodes() != null)
+            tailCount += edge.getTailNodes().size();
+        }
+    numEdges = edgeCount;
+
+    lhs = new int[numNodes];
+    spanStart = new int[numNodes];
+    spanEnd = new int[numNodes];
+    firstEdge = new int[numNodes + 1];
+    bestEdge = new int[numNodes];
+    head = new int[numEdges];
+    firstTail = new int[numEdges + 1];
+    tails = new int[tailCount];
+    ruleID = new int[numEdges];
+    bestDerivationScore = new float[numEdges];
+    transitionScore = new float[numEdges];
+    featureDeltas = new FeatureDelta[numEdges];
+    nodeObjects = new HGNode[numNodes];
+    edgeObjects = new HyperEdge[numEdges];
+
+    HashMap<HGNode, Integer> nodeIndex = new HashMap<HGNode, Integer>();
+    IdentityHashMap<Rule, Integer> ruleIndex = new IdentityHashMap<Rule, Integer>();
+    List<Rule> ruleList = new ArrayList<Rule>();
+    int e = 0;
+    int t = 0;
+    for (int n = 0; n < numNodes; n++) {
+      HGNode node = order.get(n);
+      nodeIndex.put(node, n);
+      nodeObjects[n] = node;
+      lhs[n] = node.lhs;
+      spanStart[n] = node.i;
+      spanEnd[n] = node.j;
+      firstEdge[n] = e;
+      bestEdge[n] = -1;
+      if (node.hyperedges != null)
+        for (HyperEdge edge : node.hyperedges) {
+          if (edge == node.bestHyperedge)
+            bestEdge[n] = e;
+          edgeObjects[e] = edge;
+          head[e] = n;
+          firstTail[e] = t;
+          if (edge.getTailNodes() != null)
+            for (HGNode tail : edge.getTailNodes())
+              tails[t++] = nodeIndex.get(tail);
+          Rule rule = edge.getRule();
+          if (rule == null) {
+            ruleID[e] = -1;
+          } else {
+            Integer id = ruleIndex.get(rule);
+            if (id == null) {
+              id = ruleList.size();
+              ruleIndex.put(rule, id);
+              ruleList.add(rule);
+            }
+            ruleID[e] = id;
+          }
+          bestDerivationScore[e] = edge.getBestDerivationScore();
+          transitionScore[e] = edge.getTransitionLogP(false);
+          featureDeltas[e] = edge.getFeatureDelta();
+          e++;
+        }
+    }
+    firstEdge[numNodes] = e;
+    firstTail[numEdges] = t;
+    rules = ruleList.toArray(new Rule[ruleList.size()]);
+  }
+
+  /**
+   * Wraps arrays that were built elsewhere (see {@link HyperGraphReader#nextFlat()}).
+   */
+  FlatHyperGraph(int sentID, int sentLen, int[] lhs, int[] spanStart, int[] spanEnd,
+      int[] firstEdge, int[] bestEdge, int[] firstTail, int[] tails, int[] ruleID,
+      float[] bestDerivationScore, float[] transitionScore, FeatureDelta[] featureDeltas,
+      Rule[] rules) {
+    this.sentID = sentID;
+    this.sentLen = sentLen;
+    this.numNodes = lhs.length;
+    this.numEdges = ruleID.length;
+    this.lhs = lhs;
+    this.spanStart = spanStart;
+    this.spanEnd = spanEnd;
+    this.firstEdge = firstEdge;
+    this.bestEdge = bestEdge;
+    this.firstTail = firstTail;
+    this.tails = tails;
+    this.ruleID = ruleID;
+    this.bestDerivationScore = bestDerivationScore;
+    this.transitionScore = transitionScore;
+    this.featureDeltas = featureDeltas;
+    this.rules = rules;
+    this.nodeObjects = null;
+    this.edgeObjects = null;
+
+    head = new int[numEdges];
+    for (int n = 0; n < numNodes; n++)
+      for (int e = firstEdge[n]; e < firstEdge[n + 1]; e++)
+        head[e] = n;
+  }
+
+  /**
+   * Returns the number of the goal node.
+   */
+  public int goal() {
+    return numNodes - 1;
+  }
+
+  /**
+   * Returns the rule of an edge, or null for the edges of the goal node.
+   */
+  public Rule rule(int edge) {
+    return (ruleID[edge] < 0) ? null : rules[ruleID[edge]];
+  }
+
+  /**
+   * Returns the node object this node was built from, or null if there is none.
+   */
+  public HGNode node(int n) {
+    return (nodeObjects == null) ? null : nodeObjects[n];
+  }
+
+  /**
+   * Returns the edge object this edge was built from, or null if there is none.
+   */
+  public HyperEdge edge(int e) {
+    return (edgeObjects == null) ? null : edgeObjects[e];
+  }
+
+  /**
+   * Builds a new hypergraph of linked node and edge objects from the arrays.
+   */
+  public HyperGraph toHyperGraph() {
+    HGNode[] nodes = new HGNode[numNodes];
+    for (int n = 0; n < numNodes; n++) {
+      List<HyperEdge> edges = new ArrayList<HyperEdge>(firstEdge[n + 1] - firstEdge[n]);
+      HyperEdge best = null;
+      for (int e = firstEdge[n]; e < firstEdge[n + 1]; e++) {
+        List<HGNode> tailNodes = null;
+        if (firstTail[e + 1] > firstTail[e]) {
+          tailNodes = new ArrayList<HGNode>(firstTail[e + 1] - firstTail[e]);
+          for (int t = firstTail[e]; t < firstTail[e + 1]; t++)
+            tailNodes.add(nodes[tails[t]]);
+        }
+        HyperEdge edge = new HyperEdge(rule(e), bestDerivationScore[e], transitionScore[e],
+            tailNodes, null);
+        edge.setFeatureDelta(featureDeltas[e]);
+        edges.add(edge);
+        if (e == bestEdge[n])
+          best = edge;
+      }
+      nodes[n] = new HGNode(spanStart[n], spanEnd[n], lhs[n], edges, best, null);
+    }
+    HGNode goal = (numNodes == 0) ? null : nodes[numNodes - 1];
+    return new HyperGraph(goal, numNodes, numEdges, sentID, sentLen);
+  }
+}
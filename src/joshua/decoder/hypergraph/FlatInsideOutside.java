@@ -0,0 +1,120 @@
+package joshua.decoder.hypergraph;
+
+/**
+ * Inside and outside scores in a {@link Semiring} over a {@link FlatHyperGraph}, computed with one
+ * bottom-up and one top-down pass over its nodes. Scores are kept in arrays indexed by node number.
+ * With {@link Semiring#LOG} they give posterior probabilities; with {@link Semiring#VITERBI} or
+ * {@link Semiring#TROPICAL}, Viterbi scores.
+ */
+public class FlatInsideOutside {
+
+  private final FlatHyperGraph hg;
+  private final Semiring semiring;
+
+  /* The log-probabilities of the edges, and the inside and outside scores of the nodes. */
+  private final double[] edgeLogProb;
+  private final double[] inside;
+  private final double[] outside;
+
+  /**
+   * Runs inside-outside.
+   *
+   * @param hg the hypergraph
+   * @param edgeLogProb the log-probability of each edge, such as its (scaled) transition score
+   * @param semiring
+   */
+  public FlatInsideOutside(FlatHyperGraph hg, double[] edgeLogProb, Semiring semiring) {
+    this.hg = hg;
+    this.semiring = semiring;
+    this.edgeLogProb = edgeLogProb;
+    this.inside = new double[hg.numNodes];
+    this.outside = new double[hg.numNodes];
+
+    double zero = semiring.zero();
+    double one = semiring.one();
+    int[] firstEdge = hg.firstEdge;
+    int[] firstTail = hg.firstTail;
+    int[] tails = hg.tails;
+
+    for (int n = 0; n < hg.numNodes; n++) {
+      double score = zero;
+      for (int e = firstEdge[n]; e < firstEdge[n + 1]; e++) {
+        double edgeScore = edgeLogProb[e];
+        for (int t = firstTail[e]; t < firstTail[e + 1]; t++)
+          edgeScore = semiring.times(edgeScore, inside[tails[t]]);
+        score = semiring.plus(score, edgeScore);
+      }
+      inside[n] = score;
+    }
+
+    for (int n = 0; n < hg.numNodes; n++)
+      outside[n] = zero;
+    if (hg.numNodes > 0)
+      outside[hg.goal()] = one;
+    for (int n = hg.numNodes - 1; n >= 0; n--) {
+      for (int e = firstEdge[n]; e < firstEdge[n + 1]; e++) {
+        int from = firstTail[e];
+        int to = firstTail[e + 1];
+        if (from == to)
+          continue;
+        double edgeOutside = semiring.times(outside[n], edgeLogProb[e]);
+        for (int t = from; t < to; t++) {
+          double score = edgeOutside;
+          for (int s = from; s < to; s++)
+            if (s != t)
+              score = semiring.times(score, inside[tails[s]]);
+          outside[tails[t]] = semiring.plus(outside[tails[t]], score);
+        }
+      }
+    }
+  }
+
+  /**
+   * Returns the inside score of the goal node: the log of the sum of the probabilities of all
+   * derivations, or the best one's.
+   */
+  public double getLogNormalizationConstant() {
+    return (hg.numNodes == 0) ? semiring.zero() : inside[hg.goal()];
+  }
+
+  public Semiring getSemiring() {
+    return semiring;
+  }
+
+  public double getInside(int node) {
+    return inside[node];
+  }
+
+  public double getOutside(int node) {
+    return outside[node];
+  }
+
+  /**
+   * Returns the unnormalized log posterior of an edge: the outside score of its head, plus its own
+   * score and the inside scores of its tail nodes.
+   */
+  public double getEdgeUnnormalizedPosteriorLogProb(int edge) {
+    double score = semiring.times(outside[hg.head[edge]], edgeLogProb[edge]);
+    for (int t = hg.firstTail[edge]; t < hg.firstTail[edge + 1]; t++)
+      score = semiring.times(score, inside[hg.tails[t]]);
+    return score;
+  }
+
+  /**
+   * Returns the posterior probability of an edge (in {@link Semiring#LOG}).
+   */
+  public double getEdgePosteriorProb(int edge) {
+    return Math.exp(getEdgeUnnormalizedPosteriorLogProb(edge) - getLogNormalizationConstant());
+  }
+
+  public double getNodeUnnormalizedPosteriorLogProb(int node) {
+    return semiring.times(inside[node], outside[node]);
+  }
+
+  /**
+   * Returns the posterior probability of a node (in {@link Semiring#LOG}).
+   */
+  public double getNodePosteriorProb(int node) {
+    return Math.exp(getNodeUnnormalizedPosteriorLogProb(node) - getLogNormalizationConstant());
+  }
+}
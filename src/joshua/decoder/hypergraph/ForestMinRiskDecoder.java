@@ -0,0 +1,312 @@
+package joshua.decoder.hypergraph;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import joshua.decoder.JoshuaConfiguration;
+import joshua.decoder.ff.FeatureFunction;
+import joshua.decoder.ff.lm.KenLMFF;
+import joshua.decoder.ff.lm.LanguageModelFF;
+import joshua.decoder.ff.state_maintenance.NgramDPState;
+import joshua.decoder.ff.tm.Rule;
+
+/**
+ * Minimum Bayes risk decoding over a hypergraph with a linear approximation of BLEU, as in lattice
+ * MBR: the gain of a hypothesis E is
+ *
+ * <pre>
+ * theta_0 |E| + sum over n-grams w of theta_|w| #_w(E) p(w)
+ * </pre>
+ *
+ * where p(w) is the posterior probability of the n-gram w. Since this is a sum over the n-grams of
+ * the hypothesis, it factors over the hyperedges, and the hypothesis with the highest gain is
+ * found with a Viterbi pass, without any n-best list.
+ * <p>
+ * The n-grams added by an edge are the ones formed by its target words and the words of its tail
+ * nodes' language model states, as the language model sees them, so the order is limited to that
+ * of the language model. The posterior p(w) is approximated by the expected count of w (the sum of
+ * the posteriors of the edges that add it), capped at one. N-grams are identified by a 64-bit hash
+ * of their word ids, and the counts are kept in a primitive open-addressing table.
+ */
+public class ForestMinRiskDecoder {
+
+  public static final int MAX_ORDER = 4;
+
+  /* Default gain parameters, for {@link joshua.decoder.BLEU#computeLinearCorpusThetas}. */
+  private static final float UNIGRAM_PRECISION = 0.85f;
+  private static final float DECAY_RATIO = 0.72f;
+
+  private static final long NGRAM_HASH_BASE = 0x9E3779B97F4A7C15L;
+
+  private final int stateIndex;
+  private final int contextLength;
+  private final int maxOrder;
+  private final double[] thetas;
+  private final double scale;
+
+  /**
+   * @param stateIndex the index of the n-gram language model's state in the nodes
+   * @param lmOrder the order of that language model
+   * @param thetas the gain parameters: theta_0 (per word) and theta_1 to theta_4 (per n-gram)
+   * @param scale the factor by which model scores are multiplied to give posteriors
+   */
+  public ForestMinRiskDecoder(int stateIndex, int lmOrder, double[] thetas, double scale) {
+    this.stateIndex = stateIndex;
+    this.contextLength = lmOrder - 1;
+    this.maxOrder = Math.min(MAX_ORDER, lmOrder);
+    this.thetas = thetas;
+    this.scale = scale;
+  }
+
+  /**
+   * Builds a decoder for the first n-gram language model among the features (KenLM states do not
+   * expose their words), with the gain parameters and scale of the configuration.
+   */
+  public static ForestMinRiskDecoder create(List<FeatureFunction> featureFunctions,
+      JoshuaConfiguration joshuaConfiguration) {
+    double[] thetas = joshuaConfiguration.linearCorpusGainThetas;
+    if (!joshuaConfiguration.useGoogleLinearCorpusGain || thetas == null) {
+      thetas = new double[MAX_ORDER + 1];
+      thetas[0] = -1.0;
+      for (int n = 1; n <= MAX_ORDER; n++)
+        thetas[n] = 1.0 / (4.0 * UNIGRAM_PRECISION * Math.pow(DECAY_RATIO, n - 1));
+    }
+
+    LanguageModelFF lm = findLanguageModel(featureFunctions);
+    if (lm == null)
+      throw new RuntimeException("MBR decoding needs a (non-KenLM) n-gram language model");
+    return new ForestMinRiskDecoder(lm.getStateIndex(), lm.getLM().getOrder(), thetas,
+        joshuaConfiguration.mbr_scale);
+  }
+
+  /**
+   * Returns the first n-gram language model among the features whose states expose their words
+   * (i.e., not KenLM), or null if there is none.
+   */
+  public static LanguageModelFF findLanguageModel(List<FeatureFunction> featureFunctions) {
+    for (FeatureFunction feature : featureFunctions)
+      if (feature instanceof LanguageModelFF && !(feature instanceof KenLMFF))
+        return (LanguageModelFF) feature;
+    return null;
+  }
+
+  /**
+   * Finds the hypothesis with the highest expected gain.
+   *
+   * @param hg the hypergraph, with the decoder's nodes and states
+   * @return a hypergraph with that hypothesis as its only derivation
+   */
+  public HyperGraph decode(HyperGraph hg) {
+    FlatHyperGraph flat = new FlatHyperGraph(hg);
+    if (flat.numNodes == 0)
+      return hg;
+
+    /* Posteriors */
+    double[] edgeLogProb = new double[flat.numEdges];
+    for (int e = 0; e < flat.numEdges; e++)
+      edgeLogProb[e] = scale * flat.transitionScore[e];
+    FlatInsideOutside posteriors = new FlatInsideOutside(flat, edgeLogProb, Semiring.LOG);
+
+    /* The n-grams added by each edge, and their expected counts. */
+    int[] firstNgram = new int[flat.numEdges + 1];
+    long[] ngrams = new long[4 * flat.numEdges];
+    int[] orders = new int[4 * flat.numEdges];
+    int[] numWords = new int[flat.numEdges];
+    NgramCounts counts = new NgramCounts(flat.numEdges);
+    int numNgrams = 0;
+    for (int e = 0; e < flat.numEdges; e++) {
+      firstNgram[e] = numNgrams;
+      Rule rule = flat.rule(e);
+      if (rule == null)
+        continue;
+      Sequence sequence = sequence(rule, flat.edge(e).getTailNodes());
+      double posterior = posteriors.getEdgePosteriorProb(e);
+      for (int k = 0; k < sequence.length; k++)
+        if (sequence.piece[k] < 0)
+          numWords[e]++;
+
+      for (int start = 0; start < sequence.length; start++) {
+        long hash = 0;
+        boolean inOnePiece = true;
+        for (int end = start; end < sequence.length && end - start < maxOrder; end++) {
+          if (end > start && sequence.gapBefore[end])
+            break;
+          if (sequence.piece[end] < 0 || sequence.piece[end] != sequence.piece[start])
+            inOnePiece = false;
+          hash = (hash + sequence.words[end]) * NGRAM_HASH_BASE;
+          if (inOnePiece)
+            continue;
+          if (numNgrams == ngrams.length) {
+            ngrams = Arrays.copyOf(ngrams, 2 * numNgrams);
+            orders = Arrays.copyOf(orders, 2 * numNgrams);
+          }
+          ngrams[numNgrams] = hash;
+          orders[numNgrams] = end - start + 1;
+          numNgrams++;
+          counts.add(hash, posterior);
+        }
+      }
+    }
+    firstNgram[flat.numEdges] = numNgrams;
+
+    /* The gain of each edge, and the best derivation under it. */
+    double[] gain = new double[flat.numEdges];
+    for (int e = 0; e < flat.numEdges; e++) {
+      gain[e] = thetas[0] * numWords[e];
+      for (int g = firstNgram[e]; g < firstNgram[e + 1]; g++)
+        gain[e] += thetas[orders[g]] * Math.min(1.0, counts.get(ngrams[g]));
+    }
+    FlatInsideOutside viterbi = new FlatInsideOutside(flat, gain, Semiring.VITERBI);
+
+    int[] choice = new int[flat.numNodes];
+    for (int n = 0; n < flat.numNodes; n++) {
+      choice[n] = -1;
+      double best = Double.NEGATIVE_INFINITY;
+      for (int e = flat.firstEdge[n]; e < flat.firstEdge[n + 1]; e++) {
+        double score = gain[e];
+        for (int t = flat.firstTail[e]; t < flat.firstTail[e + 1]; t++)
+          score += viterbi.getInside(flat.tails[t]);
+        if (choice[n] == -1 || score > best) {
+          best = score;
+          choice[n] = e;
+        }
+      }
+    }
+
+    HGNode goal = tree(flat, choice, flat.goal());
+    return new HyperGraph(goal, -1, -1, hg.sentID, hg.sentLen);
+  }
+
+  /*
+   * The words an edge's n-grams are formed from: its target words, with each nonterminal replaced
+   * by the words of its tail node's state. If the node's yield is too long for the state to hold all
+   * of it, the state's left and right words are separated by a gap no n-gram may cross. Each word is
+   * labelled with the piece it came from (-1 for the rule's own words), since n-grams that lie
+   * within a tail node were added further down.
+   */
+  private static class Sequence {
+    int length = 0;
+    int[] words;
+    int[] piece;
+    boolean[] gapBefore;
+
+    Sequence(int capacity) {
+      words = new int[capacity];
+      piece = new int[capacity];
+      gapBefore = new boolean[capacity];
+    }
+
+    void add(int word, int pieceID, boolean gap) {
+      words[length] = word;
+      piece[length] = pieceID;
+      gapBefore[length] = gap;
+      length++;
+    }
+  }
+
+  private Sequence sequence(Rule rule, List<HGNode> tailNodes) {
+    int[] english = rule.getEnglish();
+    Sequence sequence = new Sequence(english.length * 2 * Math.max(1, contextLength));
+    int pieces = 0;
+    for (int c = 0; c < english.length; c++) {
+      if (english[c] >= 0) {
+        sequence.add(english[c], -1, false);
+        continue;
+      }
+      NgramDPState state = (NgramDPState) tailNodes.get(-(english[c] + 1)).getDPState(stateIndex);
+      int[] left = state.getLeftLMStateWords();
+      int[] right = state.getRightLMStateWords();
+      int leftPiece = pieces++;
+      for (int word : left)
+        sequence.add(word, leftPiece, false);
+      if (left.length >= contextLength) {
+        int rightPiece = pieces++;
+        for (int k = 0; k < right.length; k++)
+          sequence.add(right[k], rightPiece, k == 0);
+      }
+    }
+    return sequence;
+  }
+
+  /* Copies the derivation that takes the chosen edge at each node. */
+  private static HGNode tree(FlatHyperGraph flat, int[] choice, int n) {
+    int e = choice[n];
+    HyperEdge edge = flat.edge(e);
+    List<HGNode> tails = null;
+    if (flat.firstTail[e + 1] > flat.firstTail[e]) {
+      tails = new ArrayList<HGNode>(flat.firstTail[e + 1] - flat.firstTail[e]);
+      for (int t = flat.firstTail[e]; t < flat.firstTail[e + 1]; t++)
+        tails.add(tree(flat, choice, flat.tails[t]));
+    }
+    HyperEdge copy = new HyperEdge(edge.getRule(), edge.getBestDerivationScore(),
+        edge.getTransitionLogP(false), tails, edge.getSourcePath());
+    copy.setFeatureDelta(edge.getFeatureDelta());
+    List<HyperEdge> edges = new ArrayList<HyperEdge>(1);
+    edges.add(copy);
+    HGNode node = flat.node(n);
+    return new HGNode(node.i, node.j, node.lhs, edges, copy, node.getDPStates());
+  }
+
+  /*
+   * A map from n-gram hashes to expected counts, with open addressing and linear probing.
+   */
+  private static class NgramCounts {
+    private long[] keys;
+    private double[] values;
+    private boolean[] used;
+    private int size = 0;
+
+    NgramCounts(int expected) {
+      int capacity = 16;
+      while (capacity < 2 * expected)
+        capacity <<= 1;
+      keys = new long[capacity];
+      values = new double[capacity];
+      used = new boolean[capacity];
+    }
+
+    private int slot(long key) {
+      int mask = keys.length - 1;
+      int i = (int) (key ^ (key >>> 32)) & mask;
+      while (used[i] && keys[i] != key)
+        i = (i + 1) & mask;
+      return i;
+    }
+
+    void add(long key, double value) {
+      int i = slot(key);
+      if (!used[i]) {
+        if (2 * (size + 1) > keys.length) {
+          grow();
+          i = slot(key);
+        }
+        used[i] = true;
+        keys[i] = key;
+        size++;
+      }
+      values[i] += value;
+    }
+
+    double get(long key) {
+      int i = slot(key);
+      return used[i] ? values[i] : 0.0;
+    }
+
+    private void grow() {
+      long[] oldKeys = keys;
+      double[] oldValues = values;
+      boolean[] oldUsed = used;
+      keys = new long[2 * oldKeys.length];
+      values = new double[keys.length];
+      used = new boolean[keys.length];
+      for (int i = 0; i < oldKeys.length; i++)
+        if (oldUsed[i]) {
+          int j = slot(oldKeys[i]);
+          used[j] = true;
+          keys[j] = oldKeys[i];
+          values[j] = oldValues[i];
+        }
+    }
+  }
+}
@@ -3,6 +3,7 @@ package joshua.decoder.hypergraph;
 import java.util.List;
 
 import joshua.decoder.chart_parser.SourcePath;
+import joshua.decoder.ff.FeatureDelta;
 import joshua.decoder.ff.tm.Rule;
 
 /**
@@ -35,6 +36,9 @@ public class HyperEdge {
    * */
   private List<HGNode> tailNodes = null;
 
+  /* The unweighted feature values fired by this edge, if the decoder recorded them. */
+  private FeatureDelta featureDelta = null;
+
   public HyperEdge(Rule rule, float bestDerivationScore, float transitionScore,
       List<HGNode> tailNodes, SourcePath srcPath) {
     this.bestDerivationScore = bestDerivationScore;
@@ -60,6 +64,18 @@ public class HyperEdge {
     return tailNodes;
   }
 
+  /**
+   * Returns the unweighted feature values fired by this edge (not including those of its tail
+   * nodes), or null if they weren't recorded during decoding.
+   */
+  public FeatureDelta getFeatureDelta() {
+    return featureDelta;
+  }
+
+  public void setFeatureDelta(FeatureDelta featureDelta) {
+    this.featureDelta = featureDelta;
+  }
+
   public float getTransitionLogP(boolean forceCompute) {
     StringBuilder sb = new StringBuilder();
     if (forceCompute || transitionScore == null) {
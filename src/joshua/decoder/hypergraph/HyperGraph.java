@@ -7,6 +7,7 @@ import java.io.FileWriter;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Stack;
 import java.util.logging.Logger;
 
@@ -92,6 +93,22 @@ public class HyperGraph {
     }
   }
 
+  /**
+   * Returns the nodes reachable from the goal node in topological order: each node comes after the
+   * tail nodes of all its hyperedges, and the goal node comes last.
+   */
+  public List<HGNode> topologicalOrder() {
+    final List<HGNode> nodes = new ArrayList<HGNode>();
+    if (goalNode != null)
+      new ForestWalker(ForestWalker.TRAVERSAL.POSTORDER).walk(goalNode, new WalkerFunction() {
+        @Override
+        public void apply(HGNode node) {
+          nodes.add(node);
+        }
+      });
+    return nodes;
+  }
+
   public float bestScore() {
     return this.goalNode.bestHyperedge.getBestDerivationScore();
   }
@@ -1,19 +1,31 @@
 package joshua.decoder.hypergraph;
 
-import java.util.HashMap;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Logger;
 
 import joshua.corpus.Vocabulary;
+import joshua.decoder.ff.tm.Rule;
 
 /**
  * during the pruning process, many Item/Deductions may not be explored at all due to the early-stop
  * in pruning_deduction
  * 
+ * The hypergraph is flattened (see {@link FlatHyperGraph}) so that the inside-outside scores and the
+ * pruning itself are computed in linear passes over arrays; pruned hyperedges are then removed from
+ * the nodes' lists, so nodes that are no longer reachable from the goal can be garbage collected.
+ * 
+ * Hyperedges are pruned either by a fixed threshold on how much worse their Viterbi merit is than
+ * the best derivation's, or by a threshold on their posterior probability. The best hyperedge of a
+ * node is never pruned.
+ * 
  * @author Zhifei Li, <zhifei.work@gmail.com>
  * @version $LastChangedDate$
  */
-public class HyperGraphPruning extends TrivialInsideOutside {
+public class HyperGraphPruning {
+
+  private static final Logger logger = Logger.getLogger(HyperGraphPruning.class.getName());
 
-  HashMap<HGNode, Boolean> processedNodesTbl = new HashMap<HGNode, Boolean>();
   double bestLogProb;// viterbi unnormalized log prob in the hypergraph
 
   boolean ViterbiPruning = false;// Viterbi or Posterior pruning
@@ -29,6 +41,7 @@ public class HyperGraphPruning extends TrivialInsideOutside {
 
   int glueGrammarOwner = 0;// TODO
 
+  double posteriorThreshold = 0;// posterior pruning: prune hyperedges less likely than this
 
   public HyperGraphPruning(boolean fixThreshold, double thresholdGeneral, double thresholdGlue) {
     fixThresholdPruning = fixThreshold;
@@ -37,117 +50,101 @@ public class HyperGraphPruning extends TrivialInsideOutside {
     glueGrammarOwner = Vocabulary.id("glue");// TODO
   }
 
-  public void clearState() {
-    processedNodesTbl.clear();
-    super.clearState();
+  /**
+   * Posterior pruning.
+   * 
+   * @param posteriorThreshold hyperedges whose posterior probability is below this are pruned
+   */
+  public HyperGraphPruning(double posteriorThreshold) {
+    fixThresholdPruning = false;
+    this.posteriorThreshold = posteriorThreshold;
   }
 
 
   // ######################### pruning here ##############
   public void pruningHG(HyperGraph hg) {
-
-    runInsideOutside(hg, 2, 1, 1.0);// viterbi-max, log-semiring
-
-    if (fixThresholdPruning) {
-      pruningHGHelper(hg);
-      super.clearState();
-    } else {
-      throw new RuntimeException("wrong call");
+    if (!fixThresholdPruning) {
+      posteriorPruningHG(hg);
+      return;
     }
-  }
 
-  private void pruningHGHelper(HyperGraph hg) {
+    FlatHyperGraph flat = new FlatHyperGraph(hg);
+    double[] edgeLogProb = new double[flat.numEdges];
+    for (int e = 0; e < flat.numEdges; e++)
+      edgeLogProb[e] = flat.transitionScore[e];
+    FlatInsideOutside insideOutside = new FlatInsideOutside(flat, edgeLogProb, Semiring.VITERBI);
+    this.bestLogProb = insideOutside.getLogNormalizationConstant();// set the best_log_prob
+
+    boolean[] pruned = new boolean[flat.numEdges];
+    for (int e = 0; e < flat.numEdges; e++)
+      pruned[e] = shouldPruneHyperedge(flat, insideOutside, e);
+    removeHyperedges(hg, flat, pruned);
+  }
 
-    this.bestLogProb = getLogNormalizationConstant();// set the best_log_prob
+  /*
+   * Removes the hyperedges whose posterior probability (under the model scores) is below the
+   * threshold.
+   */
+  private void posteriorPruningHG(HyperGraph hg) {
+    FlatHyperGraph flat = new FlatHyperGraph(hg);
+    double[] edgeLogProb = new double[flat.numEdges];
+    for (int e = 0; e < flat.numEdges; e++)
+      edgeLogProb[e] = flat.transitionScore[e];
+    FlatInsideOutside insideOutside = new FlatInsideOutside(flat, edgeLogProb, Semiring.LOG);
+
+    double logThreshold = Math.log(posteriorThreshold) + insideOutside.getLogNormalizationConstant();
+    boolean[] pruned = new boolean[flat.numEdges];
+    for (int e = 0; e < flat.numEdges; e++)
+      pruned[e] = insideOutside.getEdgeUnnormalizedPosteriorLogProb(e) < logThreshold;
+    removeHyperedges(hg, flat, pruned);
+  }
 
+  /*
+   * Top-down: a node is explored if a surviving edge points to it, and the edges of an explored
+   * node survive if they are its best edge or are not pruned. The best edge always survives, so
+   * every explored node survives. The size of what is left is recorded in the hypergraph.
+   */
+  private void removeHyperedges(HyperGraph hg, FlatHyperGraph flat, boolean[] pruned) {
     numSurvivedEdges = 0;
     numSurvivedNodes = 0;
-    processedNodesTbl.clear();
-    pruningNode(hg.goalNode);
-
-    // clear up
-    processedNodesTbl.clear();
-
-    System.out.println("Item suvived ratio: " + numSurvivedNodes * 1.0 / hg.numNodes + " =  "
-        + numSurvivedNodes + "/" + hg.numNodes);
-    System.out.println("Deduct suvived ratio: " + numSurvivedEdges * 1.0 / hg.numEdges + " =  "
-        + numSurvivedEdges + "/" + hg.numEdges);
-  }
-
-
-  private void pruningNode(HGNode it) {
 
-    if (processedNodesTbl.containsKey(it)) return;
-
-    processedNodesTbl.put(it, true);
-    boolean shouldSurvive = false;
-
-    // ### recursive call on each deduction
-    for (int i = 0; i < it.hyperedges.size(); i++) {
-      HyperEdge dt = it.hyperedges.get(i);
-      boolean survived = pruningEdge(dt, it);// deduction-specifc operation
-      if (survived) {
-        shouldSurvive = true; // at least one deduction survive
-      } else {
-        it.hyperedges.remove(i);
-        i--;
+    boolean[] explored = new boolean[flat.numNodes];
+    if (flat.numNodes > 0)
+      explored[flat.goal()] = true;
+    for (int n = flat.numNodes - 1; n >= 0; n--) {
+      if (!explored[n])
+        continue;
+      HGNode node = flat.node(n);
+      List<HyperEdge> survivors = new ArrayList<HyperEdge>();
+      for (int e = flat.firstEdge[n]; e < flat.firstEdge[n + 1]; e++) {
+        if (e != flat.bestEdge[n] && pruned[e])
+          continue;
+        for (int t = flat.firstTail[e]; t < flat.firstTail[e + 1]; t++)
+          explored[flat.tails[t]] = true;
+        survivors.add(flat.edge(e));
+        numSurvivedEdges++;
       }
-    }
-    // TODO: now we simply remove the pruned deductions, but in general, we may want to update the
-    // variables mainted in the item (e.g., best_deduction); this depends on the pruning method used
-
-    /*
-     * by defintion: "should_surive==false" should be impossible, since if I got called, then my
-     * upper-deduction must survive, then i will survive because there must be one way to reach me
-     * from lower part in order for my upper-deduction survive
-     */
-    if (!shouldSurvive) {
-      throw new RuntimeException("item explored but does not survive");
-      // TODO: since we always keep the best_deduction, this should never be true
-    } else {
+      // TODO: now we simply remove the pruned deductions, but in general, we may want to update the
+      // variables mainted in the item (e.g., best_deduction); this depends on the pruning method used
+      node.hyperedges = survivors;
       numSurvivedNodes++;
     }
-  }
-
 
-  // if survive, return true
-  // best-deduction is always kept
-  private boolean pruningEdge(HyperEdge dt, HGNode parent) {
-
-    /**
-     * TODO: theoretically, if an item is get called, then its best deduction should always be kept
-     * even just by the threshold-checling. In reality, due to precision of Double, the
-     * threshold-checking may not be perfect
-     */
-    if (dt != parent.bestHyperedge) { // best deduction should always survive if the Item is get
-                                      // called
-      // ### prune?
-      if (shouldPruneHyperedge(dt, parent)) {
-        return false; // early stop
-      }
-    }
-
-    // ### still survive, recursive call all my ant-items
-    if (null != dt.getTailNodes()) {
-      for (HGNode ant_it : dt.getTailNodes()) {
-        pruningNode(ant_it); // recursive call on each ant item, note: the ant_it will not be pruned
-                             // as I need it
-      }
-    }
-
-    // ### if get to here, then survive; remember: if I survive, then my upper-item must survive
-    numSurvivedEdges++;
-    return true; // survive
+    logger.info(String.format("sentence %d: forest pruning kept %d/%d nodes, %d/%d hyperedges",
+        hg.sentID, numSurvivedNodes, flat.numNodes, numSurvivedEdges, flat.numEdges));
+    hg.numNodes = numSurvivedNodes;
+    hg.numEdges = numSurvivedEdges;
   }
 
-  private boolean shouldPruneHyperedge(HyperEdge dt, HGNode parent) {
+  private boolean shouldPruneHyperedge(FlatHyperGraph flat, FlatInsideOutside insideOutside,
+      int edge) {
 
     // ### get merit
-    double postLogProb = getEdgeUnormalizedPosteriorLogProb(dt, parent);
-
+    double postLogProb = insideOutside.getEdgeUnnormalizedPosteriorLogProb(edge);
 
-    if (dt.getRule() != null && dt.getRule().getOwner() == glueGrammarOwner
-        && dt.getRule().getArity() == 2) { // specicial rule: S->S X
+    Rule rule = flat.rule(edge);
+    if (rule != null && rule.getOwner() == glueGrammarOwner && rule.getArity() == 2) {
+      // specicial rule: S->S X
       // TODO
       return (postLogProb - this.bestLogProb < THRESHOLD_GLUE);
     } else {
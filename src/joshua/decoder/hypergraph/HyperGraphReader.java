@@ -0,0 +1,254 @@
+package joshua.decoder.hypergraph;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.TreeMap;
+
+import joshua.corpus.Vocabulary;
+import joshua.decoder.Decoder;
+import joshua.decoder.JoshuaConfiguration;
+import joshua.decoder.ff.FeatureDelta;
+import joshua.decoder.ff.FeatureFunction;
+import joshua.decoder.ff.FeatureVector;
+import joshua.decoder.ff.tm.BilingualRule;
+import joshua.decoder.ff.tm.Rule;
+import joshua.decoder.segment_file.Sentence;
+
+/**
+ * Reads the hypergraphs written by {@link HyperGraphWriter}, one at a time, either rebuilding their
+ * nodes and hyperedges or as {@link FlatHyperGraph}s. Strings are mapped into the current
+ * {@link Vocabulary}, so the ids of the rebuilt hypergraphs need not match those of the decoder
+ * that wrote them. The rules are rebuilt as {@link BilingualRule}s with the features they were
+ * read with, and nodes have no dynamic programming states.
+ */
+public class HyperGraphReader {
+
+  private final DataInputStream in;
+
+  /* The string table read so far, and the vocabulary ids of its strings. */
+  private final List<String> strings = new ArrayList<String>();
+  private final List<Integer> ids = new ArrayList<Integer>();
+
+  private final List<Rule> rules = new ArrayList<Rule>();
+
+  public HyperGraphReader(String fileName) throws IOException {
+    this(new FileInputStream(fileName));
+  }
+
+  public HyperGraphReader(InputStream stream) throws IOException {
+    this.in = new DataInputStream(new BufferedInputStream(stream));
+    if (in.readInt() != HyperGraphWriter.MAGIC)
+      throw new IOException("Not a binary hypergraph file.");
+  }
+
+  /**
+   * Reads the next hypergraph.
+   *
+   * @return the hypergraph, or null at the end of the stream
+   * @throws IOException
+   */
+  public HyperGraph next() throws IOException {
+    FlatHyperGraph flat = nextFlat();
+    return (flat == null) ? null : flat.toHyperGraph();
+  }
+
+  /**
+   * Reads the next hypergraph into arrays, without building node and edge objects.
+   *
+   * @return the hypergraph, or null at the end of the stream
+   * @throws IOException
+   */
+  public FlatHyperGraph nextFlat() throws IOException {
+    int first = in.read();
+    if (first == -1)
+      return null;
+    int sentID = readVarint(first);
+    int sentLen = readVarint();
+
+    int numStrings = readVarint();
+    for (int s = 0; s < numStrings; s++) {
+      String string = in.readUTF();
+      strings.add(string);
+      ids.add(Vocabulary.id(string));
+    }
+
+    int numRules = readVarint();
+    for (int r = 0; r < numRules; r++)
+      rules.add(readRule());
+
+    int numNodes = readVarint();
+    int[] lhs = new int[numNodes];
+    int[] spanStart = new int[numNodes];
+    int[] spanEnd = new int[numNodes];
+    int[] firstEdge = new int[numNodes + 1];
+    int[] bestEdge = new int[numNodes];
+
+    /* Edge arrays grow as edges are read, and are trimmed at the end. */
+    int numEdges = 0;
+    int numTails = 0;
+    int[] firstTail = new int[2 * numNodes + 1];
+    int[] tails = new int[2 * numNodes];
+    int[] ruleID = new int[2 * numNodes];
+    float[] bestDerivationScore = new float[2 * numNodes];
+    float[] transitionScore = new float[2 * numNodes];
+    FeatureDelta[] featureDeltas = new FeatureDelta[2 * numNodes];
+
+    for (int n = 0; n < numNodes; n++) {
+      lhs[n] = symbol();
+      spanStart[n] = readVarint();
+      spanEnd[n] = spanStart[n] + readVarint();
+      int size = readVarint();
+      int best = readVarint();
+      firstEdge[n] = numEdges;
+      bestEdge[n] = (size == 0) ? -1 : numEdges + best;
+      if (numEdges + size >= ruleID.length) {
+        int capacity = 2 * (numEdges + size);
+        firstTail = Arrays.copyOf(firstTail, capacity + 1);
+        ruleID = Arrays.copyOf(ruleID, capacity);
+        bestDerivationScore = Arrays.copyOf(bestDerivationScore, capacity);
+        transitionScore = Arrays.copyOf(transitionScore, capacity);
+        featureDeltas = Arrays.copyOf(featureDeltas, capacity);
+      }
+      for (int e = numEdges; e < numEdges + size; e++) {
+        ruleID[e] = readVarint() - 1;
+        bestDerivationScore[e] = in.readFloat();
+        transitionScore[e] = in.readFloat();
+        int arity = readVarint();
+        firstTail[e] = numTails;
+        if (numTails + arity > tails.length)
+          tails = Arrays.copyOf(tails, 2 * (numTails + arity));
+        for (int t = 0; t < arity; t++)
+          tails[numTails++] = n - readVarint();
+        int numFeatures = readVarint();
+        if (numFeatures > 0) {
+          FeatureDelta.Builder delta = new FeatureDelta.Builder();
+          for (int f = 0; f < numFeatures - 1; f++)
+            delta.add(strings.get(readVarint()), in.readFloat());
+          featureDeltas[e] = delta.build();
+        }
+      }
+      numEdges += size;
+    }
+    firstEdge[numNodes] = numEdges;
+    firstTail[numEdges] = numTails;
+
+    return new FlatHyperGraph(sentID, sentLen, lhs, spanStart, spanEnd, firstEdge, bestEdge,
+        Arrays.copyOf(firstTail, numEdges + 1), Arrays.copyOf(tails, numTails), Arrays.copyOf(
+            ruleID, numEdges), Arrays.copyOf(bestDerivationScore, numEdges), Arrays.copyOf(
+            transitionScore, numEdges), Arrays.copyOf(featureDeltas, numEdges), rules
+            .toArray(new Rule[rules.size()]));
+  }
+
+  private Rule readRule() throws IOException {
+    int owner = symbol();
+    int lhs = symbol();
+    int arity = readVarint();
+    int[] french = new int[readVarint()];
+    for (int k = 0; k < french.length; k++)
+      french[k] = symbol();
+    int[] english = new int[readVarint()];
+    for (int k = 0; k < english.length; k++) {
+      int code = readVarint();
+      int symbol = (code >>> 1) ^ -(code & 1);
+      english[k] = (symbol < 0) ? symbol : ids.get(symbol);
+    }
+    int numFeatures = readVarint();
+    String[] names = new String[numFeatures];
+    float[] values = new float[numFeatures];
+    for (int f = 0; f < numFeatures; f++) {
+      names[f] = strings.get(readVarint());
+      values[f] = in.readFloat();
+    }
+    Rule rule = new BilingualRule(lhs, french, english, names, values, arity);
+    rule.setOwner(owner);
+    rule.setEstimatedCost(in.readFloat());
+    return rule;
+  }
+
+  private int symbol() throws IOException {
+    return ids.get(readVarint());
+  }
+
+  private int readVarint() throws IOException {
+    return readVarint(in.readUnsignedByte());
+  }
+
+  private int readVarint(int b) throws IOException {
+    int value = b & 0x7f;
+    for (int shift = 7; (b & 0x80) != 0; shift += 7) {
+      b = in.read();
+      if (b == -1)
+        throw new EOFException();
+      value |= (b & 0x7f) << shift;
+    }
+    return value;
+  }
+
+  public void close() throws IOException {
+    in.close();
+  }
+
+  /**
+   * Prints the k-best lists of the hypergraphs in a file, as the decoder would have printed them.
+   * The configuration supplies the weights, top-n and output format, and the input sentences are
+   * read from standard input. The hypergraphs must have been written with store-edge-features, as
+   * no feature functions are run.
+   * 
+   * <pre>
+   * java joshua.decoder.hypergraph.HyperGraphReader joshua.config hypergraphs &lt; input
+   * </pre>
+   */
+  public static void main(String[] args) throws IOException {
+    if (args.length != 2) {
+      System.err.println("Usage: HyperGraphReader config hypergraphs < input");
+      System.exit(1);
+    }
+
+    JoshuaConfiguration joshuaConfiguration = new JoshuaConfiguration();
+    joshuaConfiguration.readConfigFile(args[0]);
+    FeatureVector weights = new FeatureVector();
+    for (String line : joshuaConfiguration.weights) {
+      String[] pair = line.trim().split("\\s+");
+      weights.put(pair[0], Float.parseFloat(pair[1]));
+    }
+    // As in Translation, the k-best extractor expects a BLEU weight.
+    weights.put("BLEU", 0);
+    Decoder.weights = weights;
+
+    List<String> input = new ArrayList<String>();
+    BufferedReader reader = new BufferedReader(new InputStreamReader(System.in, "UTF-8"));
+    for (String line = reader.readLine(); line != null; line = reader.readLine())
+      input.add(line);
+
+    // The decoder writes hypergraphs as sentences finish, which need not be in order.
+    TreeMap<Integer, String> kbest = new TreeMap<Integer, String>();
+    HyperGraphReader hypergraphs = new HyperGraphReader(args[1]);
+    for (HyperGraph hg = hypergraphs.next(); hg != null; hg = hypergraphs.next()) {
+      Sentence sentence = new Sentence(input.get(hg.sentID), hg.sentID, joshuaConfiguration);
+      StringWriter text = new StringWriter();
+      BufferedWriter out = new BufferedWriter(text);
+      new KBestExtractor(sentence, new ArrayList<FeatureFunction>(), weights, false,
+          joshuaConfiguration).lazyKBestExtractOnHG(hg, joshuaConfiguration.topN, out);
+      out.flush();
+      kbest.put(hg.sentID, text.toString());
+    }
+    hypergraphs.close();
+
+    BufferedWriter out = new BufferedWriter(new OutputStreamWriter(System.out, "UTF-8"));
+    for (String lines : kbest.values())
+      out.write(lines);
+    out.close();
+  }
+}
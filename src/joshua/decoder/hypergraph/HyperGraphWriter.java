@@ -0,0 +1,220 @@
+package joshua.decoder.hypergraph;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.logging.Logger;
+
+import joshua.corpus.Vocabulary;
+import joshua.decoder.ff.FeatureDelta;
+import joshua.decoder.ff.FeatureVector;
+import joshua.decoder.ff.tm.Rule;
+
+/**
+ * Writes hypergraphs in a compact binary format, one after another to a single stream, so that
+ * forests can be kept for offline MBR, oracle extraction or rescoring without decoding again. They
+ * are read back with {@link HyperGraphReader}.
+ * <p>
+ * Strings (words, nonterminals, grammar owners and feature names) and rules are written once per
+ * stream, the first time a hypergraph uses them, and are afterwards referred to by their index.
+ * Integers are written as varints (7 bits per byte, least significant group first) and scores as
+ * 4-byte floats. The layout is:
+ *
+ * <pre>
+ * int magic
+ * then, for each hypergraph:
+ *   sentence id, sentence length
+ *   number of new strings, then each string (DataOutput.writeUTF)
+ *   number of new rules, then each rule:
+ *     owner, lhs, arity, source length, source symbols, target length, target symbols,
+ *     number of features, then (name, float value) for each, float estimated cost
+ *   number of nodes, then each node, in topological order (goal node last):
+ *     lhs, i, j - i, number of hyperedges, position of the best hyperedge, then each hyperedge:
+ *       rule + 1 (0 for the goal node's edges), float best derivation score,
+ *       float transition score, number of tail nodes, (node - tail) for each tail node,
+ *       number of features + 1 (0 if none were recorded), then (name, float value) for each
+ * </pre>
+ *
+ * Symbols and names are indices into the string table. In the target side of a rule, nonterminal
+ * indices (which are negative) and string indices are told apart by zigzag encoding. The features
+ * of a rule are those it was read with, as {@link joshua.decoder.ff.tm.BilingualRule} takes them;
+ * the features of an edge are its {@link FeatureDelta}, present only if the decoder recorded them
+ * ("store-edge-features"). Dynamic programming states and source paths are not written.
+ * <p>
+ * Writing is synchronized, so decoder threads can share one writer.
+ */
+public class HyperGraphWriter {
+
+  private static final Logger logger = Logger.getLogger(HyperGraphWriter.class.getName());
+
+  static final int MAGIC = 0x4a484731; // "JHG1"
+
+  private final DataOutputStream out;
+
+  /* Strings and rules written so far, with their indices. */
+  private final HashMap<String, Integer> strings = new HashMap<String, Integer>();
+  private final IdentityHashMap<Rule, Integer> rules = new IdentityHashMap<Rule, Integer>();
+
+  /* Strings and rules first used by the hypergraph being written. */
+  private final List<String> newStrings = new ArrayList<String>();
+  private final List<Rule> newRules = new ArrayList<Rule>();
+
+  private int numWritten = 0;
+
+  public HyperGraphWriter(String fileName) throws IOException {
+    this(new FileOutputStream(fileName));
+    logger.info("Writing hypergraphs to " + fileName);
+  }
+
+  public HyperGraphWriter(OutputStream stream) throws IOException {
+    this.out = new DataOutputStream(new BufferedOutputStream(stream));
+    out.writeInt(MAGIC);
+  }
+
+  /**
+   * Appends a hypergraph to the stream.
+   *
+   * @param hypergraph
+   * @throws IOException
+   */
+  public synchronized void write(HyperGraph hypergraph) throws IOException {
+    List<HGNode> nodes = hypergraph.topologicalOrder();
+
+    /* Collect the strings and rules this hypergraph adds to the tables. */
+    for (HGNode node : nodes) {
+      string(Vocabulary.word(node.lhs));
+      for (HyperEdge edge : edges(node)) {
+        Rule rule = edge.getRule();
+        if (rule != null && !rules.containsKey(rule)) {
+          rules.put(rule, rules.size());
+          newRules.add(rule);
+          collectStrings(rule);
+        }
+        FeatureDelta delta = edge.getFeatureDelta();
+        if (delta != null)
+          for (int f = 0; f < delta.size(); f++)
+            string(FeatureDelta.name(delta.feature(f)));
+      }
+    }
+
+    writeVarint(hypergraph.sentID);
+    writeVarint(hypergraph.sentLen);
+
+    writeVarint(newStrings.size());
+    for (String s : newStrings)
+      out.writeUTF(s);
+    newStrings.clear();
+
+    writeVarint(newRules.size());
+    for (Rule rule : newRules)
+      writeRule(rule);
+    newRules.clear();
+
+    HashMap<HGNode, Integer> index = new HashMap<HGNode, Integer>();
+    writeVarint(nodes.size());
+    for (HGNode node : nodes) {
+      int position = index.size();
+      index.put(node, position);
+      writeVarint(string(Vocabulary.word(node.lhs)));
+      writeVarint(node.i);
+      writeVarint(node.j - node.i);
+      List<HyperEdge> edges = edges(node);
+      writeVarint(edges.size());
+      writeVarint(edges.indexOf(node.bestHyperedge));
+      for (HyperEdge edge : edges) {
+        writeVarint(edge.getRule() == null ? 0 : rules.get(edge.getRule()) + 1);
+        out.writeFloat(edge.getBestDerivationScore());
+        out.writeFloat(edge.getTransitionLogP(false));
+        List<HGNode> tails = edge.getTailNodes();
+        writeVarint(tails == null ? 0 : tails.size());
+        if (tails != null)
+          for (HGNode tail : tails)
+            writeVarint(position - index.get(tail));
+        FeatureDelta delta = edge.getFeatureDelta();
+        if (delta == null) {
+          writeVarint(0);
+        } else {
+          writeVarint(delta.size() + 1);
+          for (int f = 0; f < delta.size(); f++) {
+            writeVarint(string(FeatureDelta.name(delta.feature(f))));
+            out.writeFloat(delta.value(f));
+          }
+        }
+      }
+    }
+    out.flush();
+    numWritten++;
+  }
+
+  private static List<HyperEdge> edges(HGNode node) {
+    List<HyperEdge> edges = node.getHyperEdges();
+    return (edges == null) ? new ArrayList<HyperEdge>() : edges;
+  }
+
+  private void collectStrings(Rule rule) {
+    string(Vocabulary.word(rule.getOwner()));
+    string(Vocabulary.word(rule.getLHS()));
+    for (int word : rule.getFrench())
+      string(Vocabulary.word(word));
+    for (int word : rule.getEnglish())
+      if (!Vocabulary.idx(word))
+        string(Vocabulary.word(word));
+    for (String name : rule.getFeatureVector().keySet())
+      string(name);
+  }
+
+  private void writeRule(Rule rule) throws IOException {
+    writeVarint(string(Vocabulary.word(rule.getOwner())));
+    writeVarint(string(Vocabulary.word(rule.getLHS())));
+    writeVarint(rule.getArity());
+    int[] french = rule.getFrench();
+    writeVarint(french.length);
+    for (int word : french)
+      writeVarint(string(Vocabulary.word(word)));
+    int[] english = rule.getEnglish();
+    writeVarint(english.length);
+    for (int word : english) {
+      int symbol = Vocabulary.idx(word) ? word : string(Vocabulary.word(word));
+      writeVarint((symbol << 1) ^ (symbol >> 31));
+    }
+    // Rules report their features negated (as costs); write them as they were read.
+    FeatureVector features = rule.getFeatureVector();
+    writeVarint(features.size());
+    for (String name : features.keySet()) {
+      writeVarint(string(name));
+      out.writeFloat(-features.get(name));
+    }
+    out.writeFloat(rule.getEstimatedCost());
+  }
+
+  /* Returns the index of a string, adding it to the table if it's new. */
+  private int string(String s) {
+    Integer i = strings.get(s);
+    if (i == null) {
+      i = strings.size();
+      strings.put(s, i);
+      newStrings.add(s);
+    }
+    return i;
+  }
+
+  private void writeVarint(int value) throws IOException {
+    while ((value & ~0x7f) != 0) {
+      out.writeByte((value & 0x7f) | 0x80);
+      value >>>= 7;
+    }
+    out.writeByte(value);
+  }
+
+  public synchronized void close() throws IOException {
+    out.close();
+    logger.info(String.format("Wrote %d hypergraphs (%d strings, %d rules)", numWritten,
+        strings.size(), rules.size()));
+  }
+}
@@ -4,6 +4,7 @@ import java.io.BufferedWriter;
 import java.io.IOException;
 import java.io.OutputStreamWriter;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
@@ -11,6 +12,7 @@ import java.util.PriorityQueue;
 import joshua.corpus.Vocabulary;
 import joshua.decoder.BLEU;
 import joshua.decoder.JoshuaConfiguration;
+import joshua.decoder.OutputFormat;
 import joshua.decoder.chart_parser.ComputeNodeResult;
 import joshua.decoder.ff.FeatureFunction;
 import joshua.decoder.ff.FeatureVector;
@@ -18,6 +20,7 @@ import joshua.decoder.ff.state_maintenance.DPState;
 import joshua.decoder.ff.tm.Rule;
 import joshua.decoder.io.DeNormalize;
 import joshua.decoder.segment_file.Sentence;
+import joshua.util.FormatUtils;
 
 /**
  * This class implements lazy k-best extraction on a hyper-graph.
@@ -83,6 +86,9 @@ public class KBestExtractor {
   /* Whether to extract only unique strings */
   private boolean extractUniqueNbest = true;
 
+  /* The (odd) base of the polynomial hashes of hypothesis strings. */
+  private static final long YIELD_HASH_BASE = 0x9E3779B97F4A7C15L;
+
   /* Whether to include the alignment information in the output */
   private boolean includeAlign = false;
 
@@ -101,6 +107,13 @@ public class KBestExtractor {
   /* BLEU statistics of the references */
   BLEU.References references = null;
 
+  /* The output format, and whether it needs the feature values */
+  private final OutputFormat outputFormat;
+  private final boolean extractFeatures;
+
+  /* Reused for each output line */
+  private final StringBuilder outputBuffer = new StringBuilder();
+
   public KBestExtractor(Sentence sentence, List<FeatureFunction> models, FeatureVector weights,
       boolean isMonolingual, JoshuaConfiguration joshuaConfiguration) {
 
@@ -114,6 +127,9 @@ public class KBestExtractor {
     this.defaultSide = (isMonolingual ? Side.SOURCE : Side.TARGET);
     this.sentence = sentence;
 
+    this.outputFormat = new OutputFormat(joshuaConfiguration.outputFormat);
+    this.extractFeatures = outputFormat.contains(OutputFormat.Field.FEATURES);
+
     if (joshuaConfiguration.rescoreForest) {
       references = new BLEU.References(sentence.references());
     }
@@ -125,47 +141,89 @@ public class KBestExtractor {
    * You may need to reset_state() before you call this function for the first time.
    */
   public String getKthHyp(HGNode node, int k) {
+    outputBuffer.setLength(0);
+    return appendKthHyp(node, k, outputBuffer) ? outputBuffer.toString() : null;
+  }
 
-    VirtualNode virtualNode = getVirtualNode(node);
+  /**
+   * Appends the k-th best hypothesis of a node, in the output format, to sb.
+   * 
+   * @return false if the node has fewer than k hypotheses
+   */
+  public boolean appendKthHyp(HGNode node, int k, StringBuilder sb) {
 
-    String outputString = null;
+    VirtualNode virtualNode = getVirtualNode(node);
 
     // Determine the k-best hypotheses at each HGNode
     DerivationState derivationState = virtualNode.lazyKBestExtractOnNode(this, k);
-    if (derivationState != null) {
-      // ==== read the kbest from each hgnode and convert to output format
-      FeatureVector features = new FeatureVector();
-
-      /* Don't extract the features (expensive) if they're not requested */
-      String hypothesis = null;
-      if (joshuaConfiguration.outputFormat.contains("%f")
-          || joshuaConfiguration.outputFormat.contains("%d"))
-        hypothesis = derivationState.getHypothesis(false, features, models, Side.TARGET);
-      else
-        hypothesis = derivationState.getHypothesis(false, null, models, Side.TARGET);
-
-      outputString = joshuaConfiguration.outputFormat.replace("%s", hypothesis)
-          .replace("%S", DeNormalize.processSingleLine(hypothesis))
-          .replace("%i", Integer.toString(sentence.id())).replace("%f", features.toString())
-          .replace("%c", String.format("%.3f", -derivationState.getModelCost()));
-
-      if (joshuaConfiguration.outputFormat.contains("%t")) {
-        outputString = outputString.replace("%t",
-            derivationState.getHypothesis(true, null, models, Side.TARGET));
-      }
+    if (derivationState == null)
+      return false;
 
-      if (joshuaConfiguration.outputFormat.contains("%e"))
-        outputString = outputString.replace("%e",
-            derivationState.getHypothesis(false, null, models, Side.SOURCE));
+    // ==== read the kbest from each hgnode and convert to output format
+    outputFormat.append(new DerivationValues(derivationState), sb);
+    return true;
+  }
+
+  /*
+   * The fields of the output format for one derivation. The hypothesis and the features are
+   * extracted at most once, when the first field that needs them is written.
+   */
+  private class DerivationValues implements OutputFormat.Values {
+    private final DerivationState derivationState;
+    private String hypothesis = null;
+    private FeatureVector features = null;
+
+    DerivationValues(DerivationState derivationState) {
+      this.derivationState = derivationState;
+    }
 
-      /* %d causes a derivation with rules one per line to be output */
-      if (joshuaConfiguration.outputFormat.contains("%d")) {
-        outputString = outputString.replace("%d",
-            derivationState.getDerivation(new FeatureVector(), models, 0));
+    private String hypothesis() {
+      if (hypothesis == null) {
+        /* Don't extract the features (expensive) if they're not requested */
+        if (extractFeatures) {
+          features = new FeatureVector();
+          hypothesis = derivationState.getHypothesis(false, features, models, Side.TARGET);
+        } else {
+          hypothesis = derivationState.getHypothesis(false, null, models, Side.TARGET);
+        }
       }
+      return hypothesis;
     }
 
-    return outputString;
+    public void append(OutputFormat.Field field, StringBuilder sb) {
+      switch (field) {
+      case HYPOTHESIS:
+        sb.append(hypothesis());
+        break;
+      case DENORMALIZED_HYPOTHESIS:
+        sb.append(DeNormalize.processSingleLine(hypothesis()));
+        break;
+      case SENTENCE_ID:
+        sb.append(sentence.id());
+        break;
+      case FEATURES:
+        hypothesis();
+        features.appendTo(sb);
+        break;
+      case MODEL_COST:
+        FormatUtils.appendFixedPoint(sb, -derivationState.getModelCost(), 3);
+        break;
+      case TREE:
+        sb.append(derivationState.getHypothesis(true, null, models, Side.TARGET));
+        break;
+      case SOURCE:
+        sb.append(derivationState.getHypothesis(false, null, models, Side.SOURCE));
+        break;
+      case ALIGNMENT:
+        /* %a outputs the source-target word alignment, if the grammar rules provide it */
+        sb.append(derivationState.getWordAlignment());
+        break;
+      case DERIVATION:
+        /* %d causes a derivation with rules one per line to be output */
+        sb.append(derivationState.getDerivation(new FeatureVector(), models, 0));
+        break;
+      }
+    }
   }
 
   // =========================== end kbestHypergraph
@@ -195,16 +253,15 @@ public class KBestExtractor {
     if (null == hg.goalNode)
       return;
 
-    for (int k = 1;; k++) {
-      String hypStr = getKthHyp(hg.goalNode, k);
-
-      if (null == hypStr || k > topN)
+    for (int k = 1; k <= topN; k++) {
+      outputBuffer.setLength(0);
+      if (!appendKthHyp(hg.goalNode, k, outputBuffer))
         break;
 
-      out.write(hypStr);
-      out.write("\n");
-      out.flush();
+      outputBuffer.append('\n');
+      out.append(outputBuffer);
     }
+    out.flush();
   }
 
   /**
@@ -231,6 +288,18 @@ public class KBestExtractor {
     return virtualNode;
   }
 
+  /**
+   * Scrambles a word id, so that the polynomial hashes of strings of (small, dense) ids don't
+   * collide in the low bits.
+   */
+  private static long wordHash(int word) {
+    long h = word * YIELD_HASH_BASE;
+    h ^= h >>> 33;
+    h *= 0xff51afd7ed558ccdL;
+    h ^= h >>> 33;
+    return h;
+  }
+
   // =========================== class VirtualNode ===========================
   /**
    * This class is essentially a wrapper around an HGNode, annotating it with information needed to
@@ -256,8 +325,9 @@ public class KBestExtractor {
     // e.g., 1 2 + 1 0 == 2 1 + 0 1
     private HashSet<DerivationState> derivationTable = null;
 
-    // This records unique *strings* at each item, used for unique-nbest-string extraction.
-    private HashSet<String> uniqueStringsTable = null;
+    // This records the hashes of the unique strings at each item, used for unique-nbest-string
+    // extraction (see DerivationState.getYieldHash()).
+    private HashSet<Long> uniqueYieldsTable = null;
 
     public VirtualNode(HGNode it) {
       this.node = it;
@@ -298,13 +368,10 @@ public class KBestExtractor {
           // derivation_tbl.remove(res.get_signature());//TODO: should remove? note that two state
           // may be tied because the cost is the same
           if (extractUniqueNbest) {
-            // We pass false for extract_nbest_tree because we want; to check that the hypothesis
-            // *strings* are unique, not the trees.
-            boolean useTreeFormat = false;
-            String res_str = derivationState.getHypothesis(useTreeFormat, null, null, defaultSide);
-            if (!uniqueStringsTable.contains(res_str)) {
+            // We want to check that the hypothesis *strings* are unique, not the trees. Rather than
+            // building the string, compare the hash of its words.
+            if (uniqueYieldsTable.add(derivationState.getYieldHash(defaultSide))) {
               nbests.add(derivationState);
-              uniqueStringsTable.add(res_str);
             }
           } else {
             nbests.add(derivationState);
@@ -417,7 +484,7 @@ public class KBestExtractor {
        * case, we keep an list of the frontiers of derivation states extending from this node.
        */
       if (extractUniqueNbest) {
-        uniqueStringsTable = new HashSet<String>();
+        uniqueYieldsTable = new HashSet<Long>();
       }
 
       /*
@@ -542,6 +609,14 @@ public class KBestExtractor {
      */
     BLEU.Stats stats = null;
 
+    /*
+     * A polynomial hash of the words of the hypothesis string, and the base raised to the number of
+     * words, so that the hash of a string can be composed from those of its parts. A power of zero
+     * means that they haven't been computed yet.
+     */
+    private long yieldHash = 0;
+    private long yieldPower = 0;
+
     public DerivationState(HGNode pa, HyperEdge e, int[] r, float c, int pos) {
       parentNode = pa;
       edge = e;
@@ -813,6 +888,163 @@ public class KBestExtractor {
       return sb.toString().trim();
     }
 
+    /**
+     * Returns a 64-bit hash of the words of the hypothesis string on the given side, as produced
+     * by {@link #getHypothesis} without the tree format. It is computed from the hashes of the
+     * child derivations, which are cached, so hashing a new derivation costs only the words of its
+     * rule.
+     * 
+     * @param side
+     * @return the hash of the hypothesis string
+     */
+    private long getYieldHash(Side side) {
+      if (yieldPower == 0)
+        computeYieldHash(side);
+      return yieldHash;
+    }
+
+    private void computeYieldHash(Side side) {
+      long hash = 0;
+      long power = 1;
+      Rule rule = edge.getRule();
+
+      if (null == rule) {
+        for (int id = 0; id < edge.getTailNodes().size(); id++) {
+          DerivationState child = getChildDerivationState(edge, id);
+          hash = hash * child.getYieldPower(side) + child.getYieldHash(side);
+          power *= child.yieldPower;
+        }
+      } else if (side == Side.TARGET) {
+        int[] english = rule.getEnglish();
+        for (int c = 0; c < english.length; c++) {
+          if (Vocabulary.idx(english[c])) {
+            DerivationState child = getChildDerivationState(edge, -(english[c] + 1));
+            hash = hash * child.getYieldPower(side) + child.getYieldHash(side);
+            power *= child.yieldPower;
+          } else if (joshuaConfiguration.parse
+              || (english[c] != Vocabulary.id(Vocabulary.START_SYM) && english[c] != Vocabulary
+                  .id(Vocabulary.STOP_SYM))) {
+            hash = hash * YIELD_HASH_BASE + wordHash(english[c]);
+            power *= YIELD_HASH_BASE;
+          }
+        }
+      } else {
+        int[] french = rule.getFrench();
+        int nonTerminalID = 0;
+        for (int c = 0; c < french.length; c++) {
+          if (Vocabulary.nt(french[c])) {
+            DerivationState child = getChildDerivationState(edge, nonTerminalID++);
+            hash = hash * child.getYieldPower(side) + child.getYieldHash(side);
+            power *= child.yieldPower;
+          } else {
+            hash = hash * YIELD_HASH_BASE + wordHash(french[c]);
+            power *= YIELD_HASH_BASE;
+          }
+        }
+      }
+
+      yieldHash = hash;
+      yieldPower = power;
+    }
+
+    private long getYieldPower(Side side) {
+      if (yieldPower == 0)
+        computeYieldHash(side);
+      return yieldPower;
+    }
+
+    /**
+     * Returns the word alignment of the hypothesis as a list of "source-target" index pairs,
+     * ordered by source index. The points are projected from the alignments stored with each rule
+     * in the derivation (see {@link Rule#getAlignment()}); rules without alignment information
+     * contribute no points. Source indices are 0-based word positions in the input sentence, not
+     * counting the sentence-start symbol.
+     * 
+     * @return the alignment string
+     */
+    private String getWordAlignment() {
+      ArrayList<Long> points = new ArrayList<Long>();
+      collectAlignment(0, points);
+      Collections.sort(points);
+
+      StringBuilder sb = new StringBuilder();
+      for (long point : points) {
+        if (sb.length() > 0)
+          sb.append(' ');
+        sb.append(point >> 32).append('-').append(point & 0xFFFFFFFFL);
+      }
+      return sb.toString();
+    }
+
+    /**
+     * Recursively collects the alignment points of this derivation, mirroring the target word
+     * positions produced by {@link #getHypothesis}. Points are packed into longs as (source << 32 |
+     * target) so that sorting orders them by source index.
+     * 
+     * @param targetOffset the target position of the first word produced by this derivation
+     * @param points the list to add the alignment points to
+     * @return the number of target words produced by this derivation
+     */
+    private int collectAlignment(int targetOffset, List<Long> points) {
+      Rule rule = edge.getRule();
+
+      if (null == rule) {
+        int length = 0;
+        for (int id = 0; id < edge.getTailNodes().size(); id++)
+          length += getChildDerivationState(edge, id).collectAlignment(targetOffset + length,
+              points);
+        return length;
+      }
+
+      // Target positions of the rule's target tokens (-1 for nonterminals and unprinted symbols).
+      int[] english = rule.getEnglish();
+      int[] targetPositions = new int[english.length];
+      int length = 0;
+      for (int c = 0; c < english.length; c++) {
+        targetPositions[c] = -1;
+        if (Vocabulary.idx(english[c])) {
+          int index = -(english[c] + 1);
+          length += getChildDerivationState(edge, index).collectAlignment(targetOffset + length,
+              points);
+        } else if (joshuaConfiguration.parse
+            || (english[c] != Vocabulary.id(Vocabulary.START_SYM) && english[c] != Vocabulary
+                .id(Vocabulary.STOP_SYM))) {
+          targetPositions[c] = targetOffset + length;
+          length++;
+        }
+      }
+
+      byte[] alignment = rule.getAlignment();
+      if (alignment == null)
+        return length;
+
+      // Source positions of the rule's source terminals, walking the tail nodes' spans.
+      int[] french = rule.getFrench();
+      int[] sourcePositions = new int[french.length];
+      int position = parentNode.i;
+      int nonTerminalID = 0;
+      for (int c = 0; c < french.length; c++) {
+        if (Vocabulary.nt(french[c])) {
+          sourcePositions[c] = -1;
+          position = edge.getTailNodes().get(nonTerminalID++).j;
+        } else {
+          // Lattice position 0 holds the sentence-start symbol.
+          sourcePositions[c] = position - 1;
+          position++;
+        }
+      }
+
+      for (int p = 0; p + 1 < alignment.length; p += 2) {
+        int src = alignment[p];
+        int tgt = alignment[p + 1];
+        if (src < 0 || src >= french.length || tgt < 0 || tgt >= english.length)
+          continue;
+        if (sourcePositions[src] >= 0 && targetPositions[tgt] >= 0)
+          points.add(((long) sourcePositions[src] << 32) | targetPositions[tgt]);
+      }
+      return length;
+    }
+
     // private void getNumNodesAndEdges(KBestExtractor kbestExtractor, int[] numNodesAndEdges) {
     // if(edge.getAntNodes()!=null) {
     // for (int id = 0; id < edge.getAntNodes().size(); id++) {
@@ -844,7 +1076,8 @@ public class KBestExtractor {
      * Replay the feature functions in order to record the actual feature values, since only the
      * inner product is stored during decoding. Note that if features is null, we short-circuit this
      * computation, since it's expensive. We only need the feature values if the k-best extractor
-     * asked for them.
+     * asked for them. If the decoder stored the edge's feature values ("store-edge-features"),
+     * those are used instead.
      * 
      * @param parentNode
      * @param edge
@@ -857,6 +1090,11 @@ public class KBestExtractor {
       if (null == features)
         return;
 
+      if (edge.getFeatureDelta() != null) {
+        edge.getFeatureDelta().subtractFrom(features);
+        return;
+      }
+
       FeatureVector transitionCosts = ComputeNodeResult.computeTransitionFeatures(models, edge,
           parentNode.i, parentNode.j, sentence.id());
 
@@ -0,0 +1,81 @@
+package joshua.decoder.hypergraph;
+
+import java.util.Arrays;
+
+/**
+ * The k-best semiring over a {@link FlatHyperGraph}: one inside pass computes, for each node, the
+ * log-probabilities of its k best derivations. Values are arrays sorted from best to worst; their
+ * sum merges two arrays and keeps the k best, and their product keeps the k best pairwise sums.
+ * Only the scores are computed; {@link KBestExtractor} extracts the derivations themselves.
+ */
+public class KBestSemiring {
+
+  private final FlatHyperGraph hg;
+  private final int k;
+  private final double[][] inside;
+
+  /**
+   * Runs the inside pass.
+   *
+   * @param hg the hypergraph
+   * @param edgeLogProb the log-probability of each edge
+   * @param k the number of derivations to keep per node
+   */
+  public KBestSemiring(FlatHyperGraph hg, double[] edgeLogProb, int k) {
+    this.hg = hg;
+    this.k = k;
+    this.inside = new double[hg.numNodes][];
+
+    for (int n = 0; n < hg.numNodes; n++) {
+      double[] score = new double[0];
+      for (int e = hg.firstEdge[n]; e < hg.firstEdge[n + 1]; e++) {
+        double[] edgeScore = { edgeLogProb[e] };
+        for (int t = hg.firstTail[e]; t < hg.firstTail[e + 1]; t++)
+          edgeScore = times(edgeScore, inside[hg.tails[t]]);
+        score = plus(score, edgeScore);
+      }
+      inside[n] = score;
+    }
+  }
+
+  /* Merges two sorted arrays, keeping the k best. */
+  private double[] plus(double[] x, double[] y) {
+    double[] sum = new double[Math.min(k, x.length + y.length)];
+    int i = 0;
+    int j = 0;
+    for (int s = 0; s < sum.length; s++)
+      sum[s] = (j == y.length || (i < x.length && x[i] >= y[j])) ? x[i++] : y[j++];
+    return sum;
+  }
+
+  /* Keeps the k best pairwise sums of two sorted arrays (in a new array). */
+  private double[] times(double[] x, double[] y) {
+    int xs = Math.min(k, x.length);
+    int ys = Math.min(k, y.length);
+    double[] sums = new double[xs * ys];
+    int s = 0;
+    for (int i = 0; i < xs; i++)
+      for (int j = 0; j < ys && (i + 1) * (j + 1) <= k; j++)
+        sums[s++] = x[i] + y[j];
+    Arrays.sort(sums, 0, s);
+    double[] product = new double[Math.min(k, s)];
+    for (int p = 0; p < product.length; p++)
+      product[p] = sums[s - 1 - p];
+    return product;
+  }
+
+  /**
+   * Returns the log-probabilities of the k best derivations of a node, best first. There are fewer
+   * if the node has fewer derivations.
+   */
+  public double[] getInside(int node) {
+    return inside[node];
+  }
+
+  /**
+   * Returns the log-probabilities of the k best derivations of the hypergraph, best first.
+   */
+  public double[] getKBest() {
+    return (hg.numNodes == 0) ? new double[0] : inside[hg.goal()];
+  }
+}
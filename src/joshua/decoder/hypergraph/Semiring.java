@@ -0,0 +1,110 @@
+package joshua.decoder.hypergraph;
+
+/**
+ * A semiring over scalar (log-domain) scores, used to run the inside and outside passes of
+ * {@link FlatInsideOutside}: the score of a derivation is the product ({@link #times}) of the scores
+ * of its edges, and the score of a node is the sum ({@link #plus}) over its derivations.
+ * <p>
+ * The implementations are shared singletons. Semirings whose values are not scalars are
+ * implemented by their own passes: see {@link ExpectationSemiring} and {@link KBestSemiring}.
+ */
+public abstract class Semiring {
+
+  /** Log-probabilities added with log-sum-exp: inside scores are log partition functions. */
+  public static final Semiring LOG = new Log();
+
+  /** Log-probabilities added with max: inside scores are the best derivation's. */
+  public static final Semiring VITERBI = new Viterbi();
+
+  /** Costs added with min: inside scores are the cheapest derivation's. */
+  public static final Semiring TROPICAL = new Tropical();
+
+  public abstract double zero();
+
+  public abstract double one();
+
+  public abstract double plus(double x, double y);
+
+  public abstract double times(double x, double y);
+
+  /**
+   * Returns the semiring selected by the old integer flags of
+   * {@link DefaultInsideOutside#runInsideOutside(HyperGraph, int, int, double)}: an add mode of 0
+   * (sum), 1 (viterbi-min) or 2 (viterbi-max), in the log semiring (1).
+   */
+  public static Semiring fromFlags(int semiring, int addMode) {
+    if (semiring != 1)
+      throw new RuntimeException("un-supported semiring");
+    switch (addMode) {
+    case 0:
+      return LOG;
+    case 1:
+      return TROPICAL;
+    case 2:
+      return VITERBI;
+    default:
+      throw new RuntimeException("invalid add mode");
+    }
+  }
+
+  private static final class Log extends Semiring {
+    public double zero() {
+      return Double.NEGATIVE_INFINITY;
+    }
+
+    public double one() {
+      return 0.0;
+    }
+
+    // prevent under-flow
+    public double plus(double x, double y) {
+      if (x == Double.NEGATIVE_INFINITY)
+        return y;
+      if (y == Double.NEGATIVE_INFINITY)
+        return x;
+      if (y <= x)
+        return x + Math.log(1 + Math.exp(y - x));
+      return y + Math.log(1 + Math.exp(x - y));
+    }
+
+    public double times(double x, double y) {
+      return x + y;
+    }
+  }
+
+  private static final class Viterbi extends Semiring {
+    public double zero() {
+      return Double.NEGATIVE_INFINITY;
+    }
+
+    public double one() {
+      return 0.0;
+    }
+
+    public double plus(double x, double y) {
+      return (x >= y) ? x : y;
+    }
+
+    public double times(double x, double y) {
+      return x + y;
+    }
+  }
+
+  private static final class Tropical extends Semiring {
+    public double zero() {
+      return Double.POSITIVE_INFINITY;
+    }
+
+    public double one() {
+      return 0.0;
+    }
+
+    public double plus(double x, double y) {
+      return (x <= y) ? x : y;
+    }
+
+    public double times(double x, double y) {
+      return x + y;
+    }
+  }
+}
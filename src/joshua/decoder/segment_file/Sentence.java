@@ -18,7 +18,9 @@ import joshua.util.Regex;
 /**
  * This class represents a basic input sentence. A sentence is a sequence of UTF-8 characters
  * denoting a string of source language words. The sequence can optionally be wrapped in <seg
- * id="N">...</seg> tags, which are then used to set the sentence number (a 0-indexed ID).
+ * id="N">...</seg> tags, which are then used to set the sentence number (a 0-indexed ID). The seg
+ * tag can also override the forest pruning threshold for this sentence, e.g. <seg id="N"
+ * forest-pruning-threshold="0.01">.
  * 
  * @author Matt Post <post@cs.jhu.edu>
  */
@@ -43,11 +45,16 @@ public class Sentence {
 
   private final List<ConstraintSpan> constraints;
 
+  /* The posterior threshold for forest pruning (0 for none); see "forest-pruning-threshold". */
+  private double forestPruningThreshold;
+
   // Matches the opening and closing <seg> tags, e.g.,
   // <seg id="72">this is a test input sentence</seg>.
   protected static final Pattern SEG_START = Pattern
       .compile("^\\s*<seg\\s+id=\"?(\\d+)\"?[^>]*>\\s*");
   protected static final Pattern SEG_END = Pattern.compile("\\s*</seg\\s*>\\s*$");
+  protected static final Pattern SEG_FOREST_PRUNING = Pattern
+      .compile("\\sforest-pruning-threshold=\"?([^\"\\s>]+)\"?");
 
   /**
    * Constructor. Receives a string representing the input sentence. This string may be a
@@ -61,6 +68,7 @@ public class Sentence {
     inputSentence = Regex.spaces.replaceAll(inputSentence, " ").trim();
 
     constraints = new LinkedList<ConstraintSpan>();
+    forestPruningThreshold = joshuaConfiguration.forest_pruning_threshold;
 
     // Check if the sentence has SGML markings denoting the
     // sentence ID; if so, override the id passed in to the
@@ -70,6 +78,9 @@ public class Sentence {
       sentence = SEG_END.matcher(start.replaceFirst("")).replaceFirst("");
       String idstr = start.group(1);
       this.id = Integer.parseInt(idstr);
+      Matcher pruning = SEG_FOREST_PRUNING.matcher(start.group());
+      if (pruning.find())
+        forestPruningThreshold = Double.parseDouble(pruning.group(1));
     } else {
       if (inputSentence.indexOf(" ||| ") != -1) {
         String[] pieces = inputSentence.split("\\s?\\|{3}\\s?");
@@ -183,6 +194,14 @@ public class Sentence {
     return sentence;
   }
 
+  /**
+   * Returns the posterior threshold below which hyperedges are pruned from this sentence's
+   * hypergraph: the one given in its seg tag, if any, and otherwise the configured one.
+   */
+  public double forestPruningThreshold() {
+    return forestPruningThreshold;
+  }
+
   public String annotatedSource() {
     return Vocabulary.START_SYM + " " + sentence + " " + Vocabulary.STOP_SYM;
   }
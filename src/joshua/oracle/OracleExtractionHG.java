@@ -1,27 +1,42 @@
 package joshua.oracle;
 
-import java.io.BufferedReader;
 import java.io.BufferedWriter;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.LinkedList;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import joshua.corpus.Vocabulary;
 import joshua.decoder.JoshuaConfiguration;
 import joshua.decoder.Support;
 import joshua.decoder.Decoder;
+import joshua.decoder.ff.FeatureVector;
+import joshua.decoder.segment_file.Sentence;
 import joshua.decoder.hypergraph.HGNode;
 import joshua.decoder.hypergraph.HyperEdge;
 import joshua.decoder.hypergraph.HyperGraph;
+import joshua.decoder.hypergraph.HyperGraphReader;
 import joshua.decoder.hypergraph.KBestExtractor;
 import joshua.decoder.hypergraph.ViterbiExtractor;
 import joshua.util.FileUtility;
+import joshua.util.io.LineReader;
 
 /**
  * approximated BLEU (1) do not consider clipping effect (2) in the dynamic programming, do not
  * maintain different states for different hyp length (3) brief penalty is calculated based on the
  * avg ref length (4) using sentence-level BLEU, instead of doc-level BLEU
+ * <p>
+ * N-grams are never built as strings: an n-gram is a 64-bit rolling hash of its word ids, with its
+ * order in the low bits, and n-gram counts are found by sorting and merging arrays of these hashes.
+ * The prefixes and suffixes of the reference n-grams, used for the equivalent LM states, are kept
+ * in primitive tries. An extractor keeps per-sentence state, so each thread needs its own.
  * 
  * @author Zhifei Li, <zhifei.work@gmail.com> (Johns Hopkins University)
  */
@@ -47,14 +62,19 @@ public class OracleExtractionHG extends SplitHg {
   static boolean using_left_equiv_state = true;
   static boolean using_right_equiv_state = true;
 
-  // TODO Add generics to hash tables in this class
-  HashMap<String, Boolean> tbl_suffix = new HashMap<String, Boolean>();
-  HashMap<String, Boolean> tbl_prefix = new HashMap<String, Boolean>();
-  static PrefixGrammar grammar_prefix = new PrefixGrammar();// TODO
-  static PrefixGrammar grammar_suffix = new PrefixGrammar();// TODO
+  private static final long HASH_BASE = 0x9E3779B97F4A7C15L;
+  private static final long ORDER_MASK = 7L; // the low bits of an n-gram hash hold its order
 
-  // key: item; value: best_deduction, best_bleu, best_len, # of n-gram match where n is in [1,4]
-  protected HashMap<String, Integer> tbl_ref_ngrams = new HashMap<String, Integer>();
+  PrefixGrammar grammar_prefix = new PrefixGrammar();
+  PrefixGrammar grammar_suffix = new PrefixGrammar();
+
+  // the distinct n-grams of the reference (sorted), and their counts
+  protected long[] ref_ngrams = new long[0];
+  protected int[] ref_ngram_counts = new int[0];
+
+  // scratch n-gram buffers for compute_state
+  private final NgramBuffer new_ngrams = new NgramBuffer();
+  private final NgramBuffer old_ngrams = new NgramBuffer();
 
   static boolean always_maintain_seperate_lm_state = true; // if true: the virtual item maintain its
                                                            // own lm state regardless whether
@@ -81,103 +101,138 @@ public class OracleExtractionHG extends SplitHg {
   /*
    * for 919 sent, time_on_reading: 148797 time_on_orc_extract: 580286
    */
-  @SuppressWarnings({ "deprecation", "unused" })
   public static void main(String[] args) throws IOException {
-    JoshuaConfiguration joshuaConfiguration = new JoshuaConfiguration();
-    /*
-     * String f_hypergraphs="C:\\Users\\zli\\Documents\\mt03.src.txt.ss.nbest.hg.items"; String
-     * f_rule_tbl="C:\\Users\\zli\\Documents\\mt03.src.txt.ss.nbest.hg.rules"; String
-     * f_ref_files="C:\\Users\\zli\\Documents\\mt03.ref.txt.1"; String f_orc_out
-     * ="C:\\Users\\zli\\Documents\\mt03.orc.txt";
-     */
-    if (6 != args.length) {
-      System.out
-          .println("Usage: java Decoder f_hypergraphs f_rule_tbl f_ref_files f_orc_out lm_order orc_extract_nbest");
+    if (args.length < 5 || args.length > 6) {
+      System.out.println("Usage: java OracleExtractionHG f_hypergraphs f_ref_files f_orc_out"
+          + " lm_order orc_extract_nbest [num_threads]");
       System.out.println("num of args is " + args.length);
       for (int i = 0; i < args.length; i++) {
         System.out.println("arg is: " + args[i]);
       }
       System.exit(1);
     }
-    // String f_hypergraphs = args[0].trim();
-    // String f_rule_tbl = args[1].trim();
-    String f_ref_files = args[2].trim();
-    String f_orc_out = args[3].trim();
-    int lm_order = Integer.parseInt(args[4].trim());
-    boolean orc_extract_nbest = Boolean.valueOf(args[5].trim()); // oracle extraction from nbest or
+    String f_hypergraphs = args[0].trim(); // written by HyperGraphWriter
+    String f_ref_files = args[1].trim();
+    String f_orc_out = args[2].trim();
+    int lm_order = Integer.parseInt(args[3].trim());
+    boolean orc_extract_nbest = Boolean.valueOf(args[4].trim()); // oracle extraction from nbest or
                                                                  // hg
+    int num_threads = (args.length > 5) ? Integer.parseInt(args[5].trim()) : 1;
 
-    // ??????????????????????????????????????
-    int baseline_lm_feat_id = 0;
-    // ??????????????????????????????????????
-
-    KBestExtractor kbest_extractor = null;
-    int topN = 300;// TODO
+    JoshuaConfiguration joshuaConfiguration = new JoshuaConfiguration();
     joshuaConfiguration.use_unique_nbest = true;
     joshuaConfiguration.include_align_index = false;
-    boolean do_ngram_clip_nbest = true; // TODO
+    joshuaConfiguration.outputFormat = "%s"; // the n-best hypotheses are compared to the reference
     if (orc_extract_nbest) {
       System.out.println("oracle extraction from nbest list");
-
-      kbest_extractor = new KBestExtractor(null, null, Decoder.weights, false, joshuaConfiguration);
     }
 
-    BufferedWriter orc_out = FileUtility.getWriteFileStream(f_orc_out);
+    long start_time = System.currentTimeMillis();
+    List<String> ref_sents = new ArrayList<String>();
+    LineReader t_reader_ref = new LineReader(f_ref_files);
+    for (String ref_sent : t_reader_ref) {
+      ref_sents.add(ref_sent);
+    }
+    t_reader_ref.close();
 
-    long start_time0 = System.currentTimeMillis();
-    long time_on_reading = 0;
-    long time_on_orc_extract = 0;
-    BufferedReader t_reader_ref = FileUtility.getReadFileStream(f_ref_files);
-    // DiskHyperGraph dhg_read = new DiskHyperGraph(baseline_lm_feat_id, true, null);
+    /*
+     * The hypergraphs are read in order and their oracles extracted in a thread pool. At most a few
+     * sentences per thread are read ahead, so the hypergraphs are streamed.
+     */
+    String[] orc_sents = new String[ref_sents.size()];
+    ExecutorService thread_pool = Executors.newFixedThreadPool(num_threads);
+    LinkedList<Future<Object[]>> pending = new LinkedList<Future<Object[]>>();
+    HyperGraphReader reader = new HyperGraphReader(f_hypergraphs);
+    try {
+      HyperGraph hg = null;
+      while ((hg = reader.next()) != null) {
+        if (hg.sentID < 0 || hg.sentID >= ref_sents.size()) {
+          System.out.println("no reference for sentence " + hg.sentID);
+          continue;
+        }
+        pending.add(thread_pool.submit(new OracleTask(hg, ref_sents.get(hg.sentID), lm_order,
+            orc_extract_nbest, joshuaConfiguration)));
+        while (pending.size() > 2 * num_threads)
+          collect_oracle(pending.removeFirst().get(), orc_sents);
+      }
+      while (!pending.isEmpty())
+        collect_oracle(pending.removeFirst().get(), orc_sents);
+    } catch (InterruptedException e) {
+      e.printStackTrace();
+    } catch (ExecutionException e) {
+      throw new RuntimeException(e.getCause());
+    } finally {
+      thread_pool.shutdown();
+      reader.close();
+    }
 
-    // dhg_read.initRead(f_hypergraphs, f_rule_tbl, null);
+    BufferedWriter orc_out = FileUtility.getWriteFileStream(f_orc_out);
+    for (String orc_sent : orc_sents) {
+      orc_out.write((orc_sent == null ? "" : orc_sent) + "\n");
+    }
+    orc_out.close();
 
-    OracleExtractionHG orc_extractor = new OracleExtractionHG(baseline_lm_feat_id);
-    String ref_sent = null;
-    long start_time = System.currentTimeMillis();
-    int sent_id = 0;
-    while ((ref_sent = FileUtility.read_line_lzf(t_reader_ref)) != null) {
-      System.out.println("############Process sentence " + sent_id);
-      start_time = System.currentTimeMillis();
-      sent_id++;
-      // if(sent_id>10)break;
-
-      // HyperGraph hg = dhg_read.readHyperGraph();
-      HyperGraph hg = null;
-      if (hg == null)
-        continue;
+    System.out.println("total running time: " + (System.currentTimeMillis() - start_time));
+  }
 
-      // System.out.println("read disk hyp: " + (System.currentTimeMillis()-start_time));
-      time_on_reading += System.currentTimeMillis() - start_time;
-      start_time = System.currentTimeMillis();
+  private static void collect_oracle(Object[] res, String[] orc_sents) {
+    int sent_id = (Integer) res[0];
+    System.out.println("############Process sentence " + sent_id);
+    if (res[1] == null)
+      return;
+    orc_sents[sent_id] = (String) res[1];
+    System.out.println("orc bleu is " + res[2]);
+  }
 
-      String orc_sent = null;
-      double orc_bleu = 0;
+  /*
+   * Extracts the oracle of one sentence with its own extractor: the sentence id, the oracle string
+   * (null if the hypergraph is empty) and its BLEU.
+   */
+  private static class OracleTask implements Callable<Object[]> {
+    final HyperGraph hg;
+    final String ref_sent;
+    final int lm_order;
+    final boolean orc_extract_nbest;
+    final JoshuaConfiguration joshuaConfiguration;
+
+    OracleTask(HyperGraph hg, String ref_sent, int lm_order, boolean orc_extract_nbest,
+        JoshuaConfiguration joshuaConfiguration) {
+      this.hg = hg;
+      this.ref_sent = ref_sent;
+      this.lm_order = lm_order;
+      this.orc_extract_nbest = orc_extract_nbest;
+      this.joshuaConfiguration = joshuaConfiguration;
+    }
+
+    public Object[] call() {
+      int baseline_lm_feat_id = 0;
+      int topN = 300;// TODO
+      boolean do_ngram_clip_nbest = true; // TODO
+
+      Object[] res = new Object[] { hg.sentID, null, null };
+      if (hg.goalNode == null)
+        return res;
+      OracleExtractionHG orc_extractor = new OracleExtractionHG(baseline_lm_feat_id);
       if (orc_extract_nbest) {
-        Object[] res = orc_extractor.oracle_extract_nbest(kbest_extractor, hg, topN,
+        // outside the decoder there are no weights: the forest is ranked by its stored scores
+        FeatureVector weights = Decoder.weights;
+        if (weights == null) {
+          weights = new FeatureVector();
+          weights.put("BLEU", 0);
+        }
+        KBestExtractor kbest_extractor = new KBestExtractor(new Sentence("", hg.sentID,
+            joshuaConfiguration), null, weights, false, joshuaConfiguration);
+        Object[] nbest_res = orc_extractor.oracle_extract_nbest(kbest_extractor, hg, topN,
             do_ngram_clip_nbest, ref_sent);
-        orc_sent = (String) res[0];
-        orc_bleu = (Double) res[1];
+        res[1] = nbest_res[0];
+        res[2] = nbest_res[1];
       } else {
         HyperGraph hg_oracle = orc_extractor.oracle_extract_hg(hg, hg.sentLen, lm_order, ref_sent);
-        orc_sent = ViterbiExtractor.extractViterbiString(hg_oracle.goalNode);
-        orc_bleu = orc_extractor.get_best_goal_cost(hg, orc_extractor.g_tbl_split_virtual_items);
-
-        time_on_orc_extract += System.currentTimeMillis() - start_time;
-        System.out.println("num_virtual_items: " + orc_extractor.g_num_virtual_items
-            + " num_virtual_dts: " + orc_extractor.g_num_virtual_deductions);
-        // System.out.println("oracle extract: " + (System.currentTimeMillis()-start_time));
+        res[1] = ViterbiExtractor.extractViterbiString(hg_oracle.goalNode);
+        res[2] = orc_extractor.get_best_goal_cost(hg, orc_extractor.g_tbl_split_virtual_items);
       }
-
-      orc_out.write(orc_sent + "\n");
-      System.out.println("orc bleu is " + orc_bleu);
+      return res;
     }
-    t_reader_ref.close();
-    orc_out.close();
-
-    System.out.println("time_on_reading: " + time_on_reading);
-    System.out.println("time_on_orc_extract: " + time_on_orc_extract);
-    System.out.println("total running time: " + (System.currentTimeMillis() - start_time0));
   }
 
   // find the oracle hypothesis in the nbest list
@@ -214,13 +269,21 @@ public class OracleExtractionHG extends SplitHg {
     src_sent_len = src_sent_len_in;
     ref_sent_len = ref_sent.length;
 
-    tbl_ref_ngrams.clear();
-    get_ngrams(tbl_ref_ngrams, g_bleu_order, ref_sent, false);
+    NgramBuffer ngrams = new NgramBuffer();
+    get_ngrams(ngrams, g_bleu_order, ref_sent, 0, ref_sent.length, false);
+    ngrams.sort();
+    ref_ngrams = new long[ngrams.size];
+    ref_ngram_counts = new int[ngrams.size];
+    int num_ref_ngrams = 0;
+    for (int i = 0; i < ngrams.size; i++) {
+      if (num_ref_ngrams == 0 || ngrams.keys[i] != ref_ngrams[num_ref_ngrams - 1])
+        ref_ngrams[num_ref_ngrams++] = ngrams.keys[i];
+      ref_ngram_counts[num_ref_ngrams - 1]++;
+    }
+    ref_ngrams = Arrays.copyOf(ref_ngrams, num_ref_ngrams);
+    ref_ngram_counts = Arrays.copyOf(ref_ngram_counts, num_ref_ngrams);
     if (using_left_equiv_state || using_right_equiv_state) {
-      tbl_prefix.clear();
-      tbl_suffix.clear();
-      setup_prefix_suffix_tbl(ref_sent, g_bleu_order, tbl_prefix, tbl_suffix);
-      setup_prefix_suffix_grammar(ref_sent, g_bleu_order, grammar_prefix, grammar_suffix);// TODO
+      setup_prefix_suffix_grammar(ref_sent, g_bleu_order);
     }
     split_hg(hg);
 
@@ -232,15 +295,15 @@ public class OracleExtractionHG extends SplitHg {
    * This procedure does (1) identify all possible match (2) add a new deduction for each matches
    */
   protected void process_one_combination_axiom(HGNode parent_item,
-      HashMap<String, VirtualItem> virtual_item_sigs, HyperEdge cur_dt) {
+      HashMap<DPState, VirtualItem> virtual_item_sigs, HyperEdge cur_dt) {
     if (null == cur_dt.getRule()) {
       throw new RuntimeException("error null rule in axiom");
     }
     double avg_ref_len = (parent_item.j - parent_item.i >= src_sent_len) ? ref_sent_len
         : (parent_item.j - parent_item.i) * ref_sent_len * 1.0 / src_sent_len;// avg len?
     double bleu_score[] = new double[1];
-    DPStateOracle dps = compute_state(parent_item, cur_dt, null, tbl_ref_ngrams,
-        do_local_ngram_clip, g_lm_order, avg_ref_len, bleu_score, tbl_suffix, tbl_prefix);
+    DPStateOracle dps = compute_state(parent_item, cur_dt, null, do_local_ngram_clip,
+        g_lm_order, avg_ref_len, bleu_score);
     VirtualDeduction t_dt = new VirtualDeduction(cur_dt, null, -bleu_score[0]);// cost: -best_bleu
     g_num_virtual_deductions++;
     add_deduction(parent_item, virtual_item_sigs, t_dt, dps, true);
@@ -253,7 +316,7 @@ public class OracleExtractionHG extends SplitHg {
    * new item (2.2.2) and add the item into virtual_item_sigs
    */
   protected void process_one_combination_nonaxiom(HGNode parent_item,
-      HashMap<String, VirtualItem> virtual_item_sigs, HyperEdge cur_dt,
+      HashMap<DPState, VirtualItem> virtual_item_sigs, HyperEdge cur_dt,
       ArrayList<VirtualItem> l_ant_virtual_item) {
     if (null == l_ant_virtual_item) {
       throw new RuntimeException("wrong call in process_one_combination_nonaxiom");
@@ -261,10 +324,10 @@ public class OracleExtractionHG extends SplitHg {
     double avg_ref_len = (parent_item.j - parent_item.i >= src_sent_len) ? ref_sent_len
         : (parent_item.j - parent_item.i) * ref_sent_len * 1.0 / src_sent_len;// avg len?
     double bleu_score[] = new double[1];
-    DPStateOracle dps = compute_state(parent_item, cur_dt, l_ant_virtual_item, tbl_ref_ngrams,
-        do_local_ngram_clip, g_lm_order, avg_ref_len, bleu_score, tbl_suffix, tbl_prefix);
-    VirtualDeduction t_dt = new VirtualDeduction(cur_dt, l_ant_virtual_item, -bleu_score[0]);// cost:
-                                                                                             // -best_bleu
+    DPStateOracle dps = compute_state(parent_item, cur_dt, l_ant_virtual_item,
+        do_local_ngram_clip, g_lm_order, avg_ref_len, bleu_score);
+    // cost: -best_bleu
+    VirtualDeduction t_dt = new VirtualDeduction(cur_dt, l_ant_virtual_item, -bleu_score[0]);
     g_num_virtual_deductions++;
     add_deduction(parent_item, virtual_item_sigs, t_dt, dps, true);
   }
@@ -276,37 +339,49 @@ public class OracleExtractionHG extends SplitHg {
     int[] ngram_matches;
     int[] left_lm_state;
     int[] right_lm_state;
+    private final long signature_hash;
 
     public DPStateOracle(int blen, int[] matches, int[] left, int[] right) {
       best_len = blen;
       ngram_matches = matches;
       left_lm_state = left;
       right_lm_state = right;
+      signature_hash = compute_signature_hash();
     }
 
-    protected String get_signature() {
-      StringBuffer res = new StringBuffer();
-      if (maitain_length_state) {
-        res.append(best_len);
-        res.append(' ');
-      }
-      if (null != left_lm_state) { // goal-item have null state
-        for (int i = 0; i < left_lm_state.length; i++) {
-          res.append(left_lm_state[i]);
-          res.append(' ');
+    // the signature: best_len (if maintained), then the left and right states with their lengths
+    private long compute_signature_hash() {
+      long hash = maitain_length_state ? best_len : 0;
+      for (int[] state : new int[][] { left_lm_state, right_lm_state }) {
+        if (null == state) { // goal-item have null state
+          hash = hash * HASH_BASE;
+          continue;
         }
-      }
-      res.append("lzf ");
-
-      if (null != right_lm_state) { // goal-item have null state
-        for (int i = 0; i < right_lm_state.length; i++) {
-          res.append(right_lm_state[i]);
-          res.append(' ');
+        hash = (hash + state.length) * HASH_BASE;
+        for (int i = 0; i < state.length; i++) {
+          hash = (hash + state[i]) * HASH_BASE;
         }
       }
-      // if(left_lm_state==null || right_lm_state==null)System.out.println("sig is: " +
-      // res.toString());
-      return res.toString();
+      return hash;
+    }
+
+    protected long signature_hash() {
+      return signature_hash;
+    }
+
+    protected boolean same_signature(DPState other) {
+      DPStateOracle state = (DPStateOracle) other;
+      if (maitain_length_state && best_len != state.best_len)
+        return false;
+      return same_lm_state(left_lm_state, state.left_lm_state)
+          && same_lm_state(right_lm_state, state.right_lm_state);
+    }
+
+    // a null state (goal item) has the same signature as an empty one
+    private static boolean same_lm_state(int[] a, int[] b) {
+      if (null == a || null == b)
+        return (null == a || a.length == 0) && (null == b || b.length == 0);
+      return Arrays.equals(a, b);
     }
 
     protected void print() {
@@ -322,12 +397,11 @@ public class OracleExtractionHG extends SplitHg {
   }
 
   // ########################## commmon funcions #####################
-  // based on tbl_oracle_states, tbl_ref_ngrams, and dt, get the state
+  // based on ref_ngrams, and dt, get the state
   // get the new state: STATE_BEST_DEDUCT STATE_BEST_BLEU STATE_BEST_LEN NGRAM_MATCH_COUNTS
   protected DPStateOracle compute_state(HGNode parent_item, HyperEdge dt,
-      ArrayList<VirtualItem> l_ant_virtual_item, HashMap<String, Integer> tbl_ref_ngrams,
-      boolean do_local_ngram_clip, int lm_order, double ref_len, double[] bleu_score,
-      HashMap<String, Boolean> tbl_suffix, HashMap<String, Boolean> tbl_prefix) {
+      ArrayList<VirtualItem> l_ant_virtual_item, boolean do_local_ngram_clip, int lm_order,
+      double ref_len, double[] bleu_score) {
     // ##### deductions under "goal item" does not have rule
     if (null == dt.getRule()) {
       if (l_ant_virtual_item.size() != 1) {
@@ -338,29 +412,27 @@ public class OracleExtractionHG extends SplitHg {
     }
 
     // ################## deductions *not* under "goal item"
-    HashMap<String, Integer> new_ngram_counts = new HashMap<String, Integer>();// new ngrams created
-                                                                               // due to the
-                                                                               // combination
-    HashMap<String, Integer> old_ngram_counts = new HashMap<String, Integer>();// the ngram that has
-                                                                               // already been
-                                                                               // computed
+    new_ngrams.clear(); // new ngrams created due to the combination
+    old_ngrams.clear(); // the ngram that has already been computed
     int total_hyp_len = 0;
     int[] num_ngram_match = new int[g_bleu_order];
     int[] en_words = dt.getRule().getEnglish();
 
     // ####calulate new and old ngram counts, and len
 
-    ArrayList<Integer> words = new ArrayList<Integer>();
+    // an antecedent contributes at most g_bleu_order-1 words on each side
+    int max_len = en_words.length * 2 * g_bleu_order;
+    int[] words = new int[max_len];
+    int num_words = 0;
 
     // used for compute left- and right- lm state
-    ArrayList<Integer> left_state_sequence = null;
-    // used for compute left- and right- lm state
-    ArrayList<Integer> right_state_sequence = null;
+    int[] left_state_sequence = new int[g_bleu_order - 1];
+    int left_len = 0;
+    int[] right_state_sequence = new int[max_len];
+    int right_len = 0;
 
     int correct_lm_order = lm_order;
     if (always_maintain_seperate_lm_state || lm_order < g_bleu_order) {
-      left_state_sequence = new ArrayList<Integer>();
-      right_state_sequence = new ArrayList<Integer>();
       correct_lm_order = g_bleu_order; // if lm_order is smaller than g_bleu_order, we will get the
                                        // lm state by ourself
     }
@@ -378,199 +450,145 @@ public class OracleExtractionHG extends SplitHg {
         int[] l_context = ant_state.left_lm_state;
         int[] r_context = ant_state.right_lm_state;
         for (int t : l_context) { // always have l_context
-          words.add(t);
-          if (null != left_state_sequence && left_state_sequence.size() < g_bleu_order - 1) {
-            left_state_sequence.add(t);
+          words[num_words++] = t;
+          if (left_len < g_bleu_order - 1) {
+            left_state_sequence[left_len++] = t;
           }
         }
-        get_ngrams(old_ngram_counts, g_bleu_order, l_context, true);
+        get_ngrams(old_ngrams, g_bleu_order, l_context, 0, l_context.length, true);
         if (r_context.length >= correct_lm_order - 1) { // the right and left are NOT overlapping
-          get_ngrams(new_ngram_counts, g_bleu_order, words, true);
-          get_ngrams(old_ngram_counts, g_bleu_order, r_context, true);
-          words.clear();// start a new chunk
-          if (null != right_state_sequence) {
-            right_state_sequence.clear();
-          }
+          get_ngrams(new_ngrams, g_bleu_order, words, 0, num_words, true);
+          get_ngrams(old_ngrams, g_bleu_order, r_context, 0, r_context.length, true);
+          num_words = 0;// start a new chunk
+          right_len = 0;
           for (int t : r_context) {
-            words.add(t);
+            words[num_words++] = t;
           }
         }
-        if (null != right_state_sequence) {
-          for (int t : r_context) {
-            right_state_sequence.add(t);
-          }
+        for (int t : r_context) {
+          right_state_sequence[right_len++] = t;
         }
       } else {
-        words.add(c_id);
+        words[num_words++] = c_id;
         total_hyp_len += 1;
-        if (null != left_state_sequence && left_state_sequence.size() < g_bleu_order - 1) {
-          left_state_sequence.add(c_id);
-        }
-        if (null != right_state_sequence) {
-          right_state_sequence.add(c_id);
+        if (left_len < g_bleu_order - 1) {
+          left_state_sequence[left_len++] = c_id;
         }
+        right_state_sequence[right_len++] = c_id;
       }
     }
-    get_ngrams(new_ngram_counts, g_bleu_order, words, true);
-
-    // ####now deduct ngram counts
-    for (String ngram : new_ngram_counts.keySet()) {
-      if (tbl_ref_ngrams.containsKey(ngram)) {
-        int final_count = (Integer) new_ngram_counts.get(ngram);
-        if (old_ngram_counts.containsKey(ngram)) {
-          final_count -= (Integer) old_ngram_counts.get(ngram);
-          // BUG: Whoa, is that an actual hard-coded ID in there? :)
-          if (final_count < 0) {
-            throw new RuntimeException("negative count for ngram: " + Vocabulary.word(11844)
-                + "; new: " + new_ngram_counts.get(ngram) + "; old: " + old_ngram_counts.get(ngram));
-          }
-        }
-        if (final_count > 0) { // TODO: not correct/global ngram clip
-          if (do_local_ngram_clip) {
-            // BUG: use joshua.util.Regex.spaces.split(...)
-            num_ngram_match[ngram.split("\\s+").length - 1] += Support.findMin(final_count,
-                (Integer) tbl_ref_ngrams.get(ngram));
-          } else {
-            // BUG: use joshua.util.Regex.spaces.split(...)
-            num_ngram_match[ngram.split("\\s+").length - 1] += final_count; // do not do any cliping
-          }
+    get_ngrams(new_ngrams, g_bleu_order, words, 0, num_words, true);
+
+    // ####now deduct ngram counts: both lists are sorted, and merged
+    new_ngrams.sort();
+    old_ngrams.sort();
+    int o = 0;
+    for (int n = 0; n < new_ngrams.size;) {
+      long ngram = new_ngrams.keys[n];
+      int new_count = 0;
+      for (; n < new_ngrams.size && new_ngrams.keys[n] == ngram; n++)
+        new_count++;
+      int ref_count = get_ref_count(ngram);
+      if (ref_count == 0)
+        continue;
+      for (; o < old_ngrams.size && old_ngrams.keys[o] < ngram; o++)
+        ;
+      int old_count = 0;
+      for (; o < old_ngrams.size && old_ngrams.keys[o] == ngram; o++)
+        old_count++;
+      int final_count = new_count - old_count;
+      if (final_count < 0) {
+        throw new RuntimeException("negative count for ngram of order " + (ngram & ORDER_MASK)
+            + "; new: " + new_count + "; old: " + old_count);
+      }
+      if (final_count > 0) { // TODO: not correct/global ngram clip
+        if (do_local_ngram_clip) {
+          num_ngram_match[(int) (ngram & ORDER_MASK) - 1] += Support.findMin(final_count,
+              ref_count);
+        } else {
+          num_ngram_match[(int) (ngram & ORDER_MASK) - 1] += final_count; // do not do any cliping
         }
       }
     }
 
     // ####now calculate the BLEU score and state
-    int[] left_lm_state = null;
-    int[] right_lm_state = null;
-    left_lm_state = get_left_equiv_state(left_state_sequence, tbl_suffix);
-    right_lm_state = get_right_equiv_state(right_state_sequence, tbl_prefix);
-
-    // debug
-    // System.out.println("lm_order is " + lm_order);
-    // compare_two_int_arrays(left_lm_state,
-    // (int[])parent_item.tbl_states.get(Symbol.LM_L_STATE_SYM_ID));
-    // compare_two_int_arrays(right_lm_state,
-    // (int[])parent_item.tbl_states.get(Symbol.LM_R_STATE_SYM_ID));
-    // end
+    int[] left_lm_state = get_left_equiv_state(left_state_sequence, left_len);
+    int[] right_lm_state = get_right_equiv_state(right_state_sequence, right_len);
 
     bleu_score[0] = compute_bleu(total_hyp_len, ref_len, num_ngram_match, g_bleu_order);
     // System.out.println("blue score is " + bleu_score[0]);
     return new DPStateOracle(total_hyp_len, num_ngram_match, left_lm_state, right_lm_state);
   }
 
-  private int[] intListToArray(List<Integer> words) {
-    int[] res = new int[words.size()];
-    int i = 0;
-    for (int wrd : words)
-      res[i++] = wrd;
-    return res;
+  private int get_ref_count(long ngram) {
+    int pos = Arrays.binarySearch(ref_ngrams, ngram);
+    return (pos < 0) ? 0 : ref_ngram_counts[pos];
   }
 
-  private int[] get_left_equiv_state(ArrayList<Integer> left_state_sequence,
-      HashMap<String, Boolean> tbl_suffix) {
-    int l_size = (left_state_sequence.size() < g_bleu_order - 1) ? left_state_sequence.size()
-        : (g_bleu_order - 1);
+  private int[] get_left_equiv_state(int[] left_state_sequence, int len) {
+    int l_size = (len < g_bleu_order - 1) ? len : (g_bleu_order - 1);
     int[] left_lm_state = new int[l_size];
     if (!using_left_equiv_state || l_size < g_bleu_order - 1) { // regular
       for (int i = 0; i < l_size; i++) {
-        left_lm_state[i] = left_state_sequence.get(i);
+        left_lm_state[i] = left_state_sequence[i];
       }
     } else {
       for (int i = l_size - 1; i >= 0; i--) { // right to left
-        if (is_a_suffix_in_tbl(left_state_sequence, 0, i, tbl_suffix)) {
-          // if(is_a_suffix_in_grammar(left_state_sequence, 0, i, grammar_suffix)){
+        if (is_a_suffix_in_grammar(left_state_sequence, 0, i)) {
           for (int j = i; j >= 0; j--) {
-            left_lm_state[j] = left_state_sequence.get(j);
+            left_lm_state[j] = left_state_sequence[j];
           }
           break;
         } else {
           left_lm_state[i] = this.NULL_LEFT_LM_STATE_SYM_ID;
         }
       }
-      // System.out.println("origi left:" + Symbol.get_string(left_state_sequence) + "; equiv left:"
-      // + Symbol.get_string(left_lm_state));
     }
     return left_lm_state;
   }
 
-  private boolean is_a_suffix_in_tbl(ArrayList<Integer> left_state_sequence, int start_pos,
-      int end_pos, HashMap<String, Boolean> tbl_suffix) {
-    if ((Integer) left_state_sequence.get(end_pos) == this.NULL_LEFT_LM_STATE_SYM_ID) {
-      return false;
-    }
-    StringBuffer suffix = new StringBuffer();
-    for (int i = end_pos; i >= start_pos; i--) { // right-most first
-      suffix.append(left_state_sequence.get(i));
-      if (i > start_pos)
-        suffix.append(' ');
-    }
-    return (Boolean) tbl_suffix.containsKey(suffix.toString());
-  }
-
-  // TODO: never called. remove?
-  private boolean is_a_suffix_in_grammar(ArrayList<Integer> left_state_sequence, int start_pos,
-      int end_pos, PrefixGrammar grammar_suffix) {
-    if ((Integer) left_state_sequence.get(end_pos) == this.NULL_LEFT_LM_STATE_SYM_ID) {
+  private boolean is_a_suffix_in_grammar(int[] left_state_sequence, int start_pos, int end_pos) {
+    if (left_state_sequence[end_pos] == this.NULL_LEFT_LM_STATE_SYM_ID) {
       return false;
     }
-    ArrayList<Integer> suffix = new ArrayList<Integer>();
-    for (int i = end_pos; i >= start_pos; i--) { // right-most first
-      suffix.add(left_state_sequence.get(i));
+    int node = PrefixGrammar.ROOT;
+    for (int i = end_pos; i >= start_pos && node >= 0; i--) { // right-most first
+      node = grammar_suffix.child(node, left_state_sequence[i]);
     }
-    return grammar_suffix.contain_ngram(suffix, 0, suffix.size() - 1);
+    return node >= 0;
   }
 
-  private int[] get_right_equiv_state(ArrayList<Integer> right_state_sequence,
-      HashMap<String, Boolean> tbl_prefix) {
-    int r_size = (right_state_sequence.size() < g_bleu_order - 1) ? right_state_sequence.size()
-        : (g_bleu_order - 1);
+  private int[] get_right_equiv_state(int[] right_state_sequence, int len) {
+    int r_size = (len < g_bleu_order - 1) ? len : (g_bleu_order - 1);
     int[] right_lm_state = new int[r_size];
     if (!using_right_equiv_state || r_size < g_bleu_order - 1) { // regular
       for (int i = 0; i < r_size; i++) {
-        right_lm_state[i] = (Integer) right_state_sequence.get(right_state_sequence.size() - r_size
-            + i);
+        right_lm_state[i] = right_state_sequence[len - r_size + i];
       }
     } else {
       for (int i = 0; i < r_size; i++) { // left to right
-        if (is_a_prefix_in_tbl(right_state_sequence, right_state_sequence.size() - r_size + i,
-            right_state_sequence.size() - 1, tbl_prefix)) {
-          // if(is_a_prefix_in_grammar(right_state_sequence, right_state_sequence.size()-r_size+i,
-          // right_state_sequence.size()-1, grammar_prefix)){
+        if (is_a_prefix_in_grammar(right_state_sequence, len - r_size + i, len - 1)) {
           for (int j = i; j < r_size; j++) {
-            right_lm_state[j] = (Integer) right_state_sequence.get(right_state_sequence.size()
-                - r_size + j);
+            right_lm_state[j] = right_state_sequence[len - r_size + j];
           }
           break;
         } else {
           right_lm_state[i] = this.NULL_RIGHT_LM_STATE_SYM_ID;
         }
       }
-      // System.out.println("origi right:" + Symbol.get_string(right_state_sequence)+
-      // "; equiv right:" + Symbol.get_string(right_lm_state));
     }
     return right_lm_state;
   }
 
-  private boolean is_a_prefix_in_tbl(ArrayList<Integer> right_state_sequence, int start_pos,
-      int end_pos, HashMap<String, Boolean> tbl_prefix) {
-    if (right_state_sequence.get(start_pos) == this.NULL_RIGHT_LM_STATE_SYM_ID) {
+  private boolean is_a_prefix_in_grammar(int[] right_state_sequence, int start_pos, int end_pos) {
+    if (right_state_sequence[start_pos] == this.NULL_RIGHT_LM_STATE_SYM_ID) {
       return false;
     }
-    StringBuffer prefix = new StringBuffer();
-    for (int i = start_pos; i <= end_pos; i++) {
-      prefix.append(right_state_sequence.get(i));
-      if (i < end_pos)
-        prefix.append(' ');
-    }
-    return (Boolean) tbl_prefix.containsKey(prefix.toString());
-  }
-
-  // TODO: never called. remove?
-  private boolean isAPrefixInGrammar(ArrayList<Integer> right_state_sequence, int start_pos,
-      int end_pos, PrefixGrammar gr_prefix) {
-    if (right_state_sequence.get(start_pos) == this.NULL_RIGHT_LM_STATE_SYM_ID) {
-      return false;
+    int node = PrefixGrammar.ROOT;
+    for (int i = start_pos; i <= end_pos && node >= 0; i++) {
+      node = grammar_prefix.child(node, right_state_sequence[i]);
     }
-    return gr_prefix.contain_ngram(right_state_sequence, start_pos, end_pos);
+    return node >= 0;
   }
 
   public static void compare_two_int_arrays(int[] a, int[] b) {
@@ -609,65 +627,18 @@ public class OracleExtractionHG extends SplitHg {
     return res;
   }
 
-  // accumulate ngram counts into tbl
-  public void get_ngrams(HashMap<String, Integer> tbl, int order, int[] wrds,
+  // accumulate the hashes of the ngrams of wrds[start_pos, end_pos) into ngrams
+  public void get_ngrams(NgramBuffer ngrams, int order, int[] wrds, int start_pos, int end_pos,
       boolean ignore_null_equiv_symbol) {
-    for (int i = 0; i < wrds.length; i++) {
-      for (int j = 0; j < order && j + i < wrds.length; j++) { // ngram: [i,i+j]
-        boolean contain_null = false;
-        StringBuffer ngram = new StringBuffer();
-        for (int k = i; k <= i + j; k++) {
-          if (wrds[k] == this.NULL_LEFT_LM_STATE_SYM_ID
-              || wrds[k] == this.NULL_RIGHT_LM_STATE_SYM_ID) {
-            contain_null = true;
-            if (ignore_null_equiv_symbol)
-              break;
-          }
-          ngram.append(wrds[k]);
-          if (k < i + j)
-            ngram.append(' ');
-        }
-        if (ignore_null_equiv_symbol && contain_null)
-          continue; // skip this ngram
-        String ngram_str = ngram.toString();
-        if (tbl.containsKey(ngram_str)) {
-          tbl.put(ngram_str, (Integer) tbl.get(ngram_str) + 1);
-        } else {
-          tbl.put(ngram_str, 1);
-        }
-      }
-    }
-  }
-
-  /** accumulate ngram counts into tbl. */
-  public void get_ngrams(HashMap<String, Integer> tbl, int order, ArrayList<Integer> wrds,
-      boolean ignore_null_equiv_symbol) {
-    for (int i = 0; i < wrds.size(); i++) {
-      // ngram: [i,i+j]
-      for (int j = 0; j < order && j + i < wrds.size(); j++) {
-        boolean contain_null = false;
-        StringBuffer ngram = new StringBuffer();
-        for (int k = i; k <= i + j; k++) {
-          int t_wrd = (Integer) wrds.get(k);
-          if (t_wrd == this.NULL_LEFT_LM_STATE_SYM_ID || t_wrd == this.NULL_RIGHT_LM_STATE_SYM_ID) {
-            contain_null = true;
-            if (ignore_null_equiv_symbol)
-              break;
-          }
-          ngram.append(t_wrd);
-          if (k < i + j)
-            ngram.append(' ');
-        }
-        // skip this ngram
-        if (ignore_null_equiv_symbol && contain_null)
-          continue;
-
-        String ngram_str = ngram.toString();
-        if (tbl.containsKey(ngram_str)) {
-          tbl.put(ngram_str, (Integer) tbl.get(ngram_str) + 1);
-        } else {
-          tbl.put(ngram_str, 1);
-        }
+    for (int i = start_pos; i < end_pos; i++) {
+      long hash = 0;
+      for (int j = 0; j < order && j + i < end_pos; j++) { // ngram: [i,i+j]
+        int wrd = wrds[i + j];
+        if (ignore_null_equiv_symbol
+            && (wrd == this.NULL_LEFT_LM_STATE_SYM_ID || wrd == this.NULL_RIGHT_LM_STATE_SYM_ID))
+          break; // skip this ngram, and the longer ones
+        hash = (hash + wrd) * HASH_BASE;
+        ngrams.add((hash & ~ORDER_MASK) | (j + 1));
       }
     }
   }
@@ -675,7 +646,6 @@ public class OracleExtractionHG extends SplitHg {
   // do_ngram_clip: consider global n-gram clip
   public double compute_sentence_bleu(String ref_sent, String hyp_sent, boolean do_ngram_clip,
       int bleu_order) {
-    // BUG: use joshua.util.Regex.spaces.split(...)
     int[] numeric_ref_sent = Vocabulary.addAll(ref_sent);
     int[] numeric_hyp_sent = Vocabulary.addAll(hyp_sent);
     return compute_sentence_bleu(numeric_ref_sent, numeric_hyp_sent, do_ngram_clip, bleu_order);
@@ -685,24 +655,33 @@ public class OracleExtractionHG extends SplitHg {
       int bleu_order) {
     double res_bleu = 0;
     int order = 4;
-    HashMap<String, Integer> ref_ngram_tbl = new HashMap<String, Integer>();
-    get_ngrams(ref_ngram_tbl, order, ref_sent, false);
-    HashMap<String, Integer> hyp_ngram_tbl = new HashMap<String, Integer>();
-    get_ngrams(hyp_ngram_tbl, order, hyp_sent, false);
+    NgramBuffer ref_ngrams = new NgramBuffer();
+    get_ngrams(ref_ngrams, order, ref_sent, 0, ref_sent.length, false);
+    ref_ngrams.sort();
+    NgramBuffer hyp_ngrams = new NgramBuffer();
+    get_ngrams(hyp_ngrams, order, hyp_sent, 0, hyp_sent.length, false);
+    hyp_ngrams.sort();
 
     int[] num_ngram_match = new int[order];
-    for (String ngram : hyp_ngram_tbl.keySet()) {
-      if (ref_ngram_tbl.containsKey(ngram)) {
+    int r = 0;
+    for (int h = 0; h < hyp_ngrams.size;) {
+      long ngram = hyp_ngrams.keys[h];
+      int hyp_count = 0;
+      for (; h < hyp_ngrams.size && hyp_ngrams.keys[h] == ngram; h++)
+        hyp_count++;
+      for (; r < ref_ngrams.size && ref_ngrams.keys[r] < ngram; r++)
+        ;
+      int ref_count = 0;
+      for (; r < ref_ngrams.size && ref_ngrams.keys[r] == ngram; r++)
+        ref_count++;
+      if (ref_count > 0) {
         if (do_ngram_clip) {
-          // BUG: use joshua.util.Regex.spaces.split(...)
-          num_ngram_match[ngram.split("\\s+").length - 1] += Support.findMin(
-              (Integer) ref_ngram_tbl.get(ngram), (Integer) hyp_ngram_tbl.get(ngram)); // ngram clip
+          // ngram clip
+          num_ngram_match[(int) (ngram & ORDER_MASK) - 1] += Support.findMin(ref_count,
+              hyp_count);
         } else {
-          // BUG: use joshua.util.Regex.spaces.split(...)
-          num_ngram_match[ngram.split("\\s+").length - 1] += (Integer) hyp_ngram_tbl.get(ngram);// without
-                                                                                                // ngram
-                                                                                                // count
-                                                                                                // clipping
+          num_ngram_match[(int) (ngram & ORDER_MASK) - 1] += hyp_count;// without ngram count
+                                                                       // clipping
         }
       }
     }
@@ -724,92 +703,102 @@ public class OracleExtractionHG extends SplitHg {
   }
 
   // #### equivalent lm stuff ############
-  public static void setup_prefix_suffix_tbl(int[] wrds, int order,
-      HashMap<String, Boolean> prefix_tbl, HashMap<String, Boolean> suffix_tbl) {
+  // the prefixes of the ref ngrams are [i,i+k] with k<=order-2, not reaching the last word; the
+  // suffixes are [k,i] with i-k<=order-2, not starting at the first word, stored in reverse order.
+  // Both sets are closed under prefixes, so each is a trie with one path per start word.
+  public void setup_prefix_suffix_grammar(int[] wrds, int order) {
+    grammar_prefix = new PrefixGrammar();
+    grammar_suffix = new PrefixGrammar();
     for (int i = 0; i < wrds.length; i++) {
-      for (int j = 0; j < order && j + i < wrds.length; j++) { // ngram: [i,i+j]
-        StringBuffer ngram = new StringBuffer();
-        // ### prefix
-        for (int k = i; k < i + j; k++) { // all ngrams [i,i+j-1]
-          ngram.append(wrds[k]);
-          prefix_tbl.put(ngram.toString(), true);
-          ngram.append(' ');
-        }
-        // ### suffix: right-most wrd first
-        ngram = new StringBuffer();
-        for (int k = i + j; k > i; k--) { // all ngrams [i+1,i+j]: reverse order
-          ngram.append(wrds[k]);
-          suffix_tbl.put(ngram.toString(), true);// stored in reverse order
-          ngram.append(' ');
-        }
+      // ### prefix
+      int node = PrefixGrammar.ROOT;
+      for (int k = i; k <= i + order - 2 && k <= wrds.length - 2; k++) {
+        node = grammar_prefix.add_child(node, wrds[k]);
       }
-    }
-  }
-
-  // #### equivalent lm stuff ############
-  public static void setup_prefix_suffix_grammar(int[] wrds, int order, PrefixGrammar prefix_gr,
-      PrefixGrammar suffix_gr) {
-    for (int i = 0; i < wrds.length; i++) {
-      for (int j = 0; j < order && j + i < wrds.length; j++) { // ngram: [i,i+j]
-        // ### prefix
-        prefix_gr.add_ngram(wrds, i, i + j - 1);// ngram: [i,i+j-1]
-
-        // ### suffix: right-most wrd first
-        int[] reverse_wrds = new int[j];
-        for (int k = i + j, t = 0; k > i; k--) { // all ngrams [i+1,i+j]: reverse order
-          reverse_wrds[t++] = wrds[k];
-        }
-        suffix_gr.add_ngram(reverse_wrds, 0, j - 1);
+      // ### suffix: right-most wrd first
+      node = PrefixGrammar.ROOT;
+      for (int k = i; k >= 1 && k >= i - (order - 2); k--) {
+        node = grammar_suffix.add_child(node, wrds[k]);
       }
     }
   }
 
   /*
-   * a backoff node is a hashtable, it may include: (1) probabilititis for next words (2) pointers
-   * to a next-layer backoff node (hashtable) (3) backoff weight for this node (4) suffix/prefix
-   * flag to indicate that there is ngrams start from this suffix
+   * A trie over word ids: the child of a node for a word is found in an open-addressing table keyed
+   * by (node, word), so there is no object per node.
    */
   private static class PrefixGrammar {
+    static final int ROOT = 0;
 
-    private static class PrefixGrammarNode extends HashMap<Integer, PrefixGrammarNode> {
-      private static final long serialVersionUID = 1L;
-    };
+    private long[] keys = new long[64];
+    private int[] children = new int[64]; // 0 for an empty slot: the root is no one's child
+    private int num_nodes = 1;
 
-    PrefixGrammarNode root = new PrefixGrammarNode();
+    private int slot(long key) {
+      int mask = keys.length - 1;
+      long hash = key * HASH_BASE;
+      int i = (int) (hash ^ (hash >>> 32)) & mask;
+      while (children[i] != 0 && keys[i] != key)
+        i = (i + 1) & mask;
+      return i;
+    }
 
-    // add prefix information
-    public void add_ngram(int[] wrds, int start_pos, int end_pos) {
-      // ######### identify the position, and insert the trinodes if necessary
-      PrefixGrammarNode pos = root;
-      for (int k = start_pos; k <= end_pos; k++) {
-        int cur_sym_id = wrds[k];
-        PrefixGrammarNode next_layer = pos.get(cur_sym_id);
+    private static long key(int node, int wrd) {
+      return ((long) node << 32) | (wrd & 0xffffffffL);
+    }
 
-        if (null != next_layer) {
-          pos = next_layer;
-        } else {
-          // next layer node
-          PrefixGrammarNode tmp = new PrefixGrammarNode();
-          pos.put(cur_sym_id, tmp);
-          pos = tmp;
-        }
-      }
+    // the child of a node for a word, or -1
+    public int child(int node, int wrd) {
+      int i = slot(key(node, wrd));
+      return (children[i] == 0) ? -1 : children[i];
     }
 
-    public boolean contain_ngram(ArrayList<Integer> wrds, int start_pos, int end_pos) {
-      if (end_pos < start_pos)
-        return false;
-      PrefixGrammarNode pos = root;
-      for (int k = start_pos; k <= end_pos; k++) {
-        int cur_sym_id = wrds.get(k);
-        PrefixGrammarNode next_layer = pos.get(cur_sym_id);
-        if (next_layer != null) {
-          pos = next_layer;
-        } else {
-          return false;
+    // the child of a node for a word, added if necessary
+    public int add_child(int node, int wrd) {
+      long key = key(node, wrd);
+      int i = slot(key);
+      if (children[i] == 0) {
+        if (2 * num_nodes > keys.length) {
+          grow();
+          i = slot(key);
         }
+        keys[i] = key;
+        children[i] = num_nodes++;
       }
-      return true;
+      return children[i];
+    }
+
+    private void grow() {
+      long[] old_keys = keys;
+      int[] old_children = children;
+      keys = new long[2 * old_keys.length];
+      children = new int[keys.length];
+      for (int i = 0; i < old_keys.length; i++)
+        if (old_children[i] != 0) {
+          int j = slot(old_keys[i]);
+          keys[j] = old_keys[i];
+          children[j] = old_children[i];
+        }
+    }
+  }
+
+  // a growable list of ngram hashes
+  public static class NgramBuffer {
+    long[] keys = new long[64];
+    int size = 0;
+
+    void add(long key) {
+      if (size == keys.length)
+        keys = Arrays.copyOf(keys, 2 * size);
+      keys[size++] = key;
+    }
+
+    void sort() {
+      Arrays.sort(keys, 0, size);
+    }
+
+    void clear() {
+      size = 0;
     }
   }
 }
@@ -24,10 +24,10 @@ public abstract class SplitHg {
 
   // Note: the implementation of the following two functions should call add_deduction
   protected abstract void process_one_combination_axiom(HGNode parent_item,
-      HashMap<String, VirtualItem> virtual_item_sigs, HyperEdge cur_dt);
+      HashMap<DPState, VirtualItem> virtual_item_sigs, HyperEdge cur_dt);
 
   protected abstract void process_one_combination_nonaxiom(HGNode parent_item,
-      HashMap<String, VirtualItem> virtual_item_sigs, HyperEdge cur_dt,
+      HashMap<DPState, VirtualItem> virtual_item_sigs, HyperEdge cur_dt,
       ArrayList<VirtualItem> l_ant_virtual_item);
 
   // #### all the functions should be called after running split_hg(), before clearing
@@ -110,7 +110,7 @@ public abstract class SplitHg {
   private void split_item(HGNode it) {
     if (g_tbl_split_virtual_items.containsKey(it))
       return;// already processed
-    HashMap<String, VirtualItem> virtual_item_sigs = new HashMap<String, VirtualItem>();
+    HashMap<DPState, VirtualItem> virtual_item_sigs = new HashMap<DPState, VirtualItem>();
     // ### recursive call on each deduction
     if (speed_up_item(it)) {
       for (HyperEdge dt : it.hyperedges) {
@@ -120,8 +120,7 @@ public abstract class SplitHg {
     // ### item-specific operation
     // a list of items result by splitting me
     ArrayList<VirtualItem> l_virtual_items = new ArrayList<VirtualItem>();
-    for (String signature : virtual_item_sigs.keySet())
-      l_virtual_items.add(virtual_item_sigs.get(signature));
+    l_virtual_items.addAll(virtual_item_sigs.values());
     g_tbl_split_virtual_items.put(it, l_virtual_items);
     g_num_virtual_items += l_virtual_items.size();
     // if(virtual_item_sigs.size()!=1)System.out.println("num of split items is " +
@@ -129,7 +128,7 @@ public abstract class SplitHg {
     // get_best_virtual_score(it);//debug
   }
 
-  private void split_deduction(HyperEdge cur_dt, HashMap<String, VirtualItem> virtual_item_sigs,
+  private void split_deduction(HyperEdge cur_dt, HashMap<DPState, VirtualItem> virtual_item_sigs,
       HGNode parent_item) {
     if (speed_up_deduction(cur_dt) == false)
       return;// no need to continue
@@ -143,7 +142,7 @@ public abstract class SplitHg {
     redo_combine(cur_dt, virtual_item_sigs, parent_item);
   }
 
-  private void redo_combine(HyperEdge cur_dt, HashMap<String, VirtualItem> virtual_item_sigs,
+  private void redo_combine(HyperEdge cur_dt, HashMap<DPState, VirtualItem> virtual_item_sigs,
       HGNode parent_item) {
     List<HGNode> l_ant_items = cur_dt.getTailNodes();
     if (l_ant_items != null) {
@@ -187,18 +186,17 @@ public abstract class SplitHg {
   // this function should be called by
   // process_one_combination_axiom/process_one_combination_nonaxiom
   // virtual_item_sigs is specific to parent_item
-  protected void add_deduction(HGNode parent_item, HashMap<String, VirtualItem> virtual_item_sigs,
+  protected void add_deduction(HGNode parent_item, HashMap<DPState, VirtualItem> virtual_item_sigs,
       VirtualDeduction t_ded, DPState dpstate, boolean maintain_onebest_only) {
     if (null == t_ded) {
       throw new RuntimeException("deduction is null");
     }
-    String sig = VirtualItem.get_signature(parent_item, dpstate);
-    VirtualItem t_virtual_item = (VirtualItem) virtual_item_sigs.get(sig);
+    VirtualItem t_virtual_item = virtual_item_sigs.get(dpstate);
     if (t_virtual_item != null) {
       t_virtual_item.add_deduction(t_ded, dpstate, maintain_onebest_only);
     } else {
       t_virtual_item = new VirtualItem(parent_item, dpstate, t_ded, maintain_onebest_only);
-      virtual_item_sigs.put(sig, t_virtual_item);
+      virtual_item_sigs.put(dpstate, t_virtual_item);
     }
   }
 
@@ -212,8 +210,29 @@ public abstract class SplitHg {
     return true;// if the rule state is not valid, then no need to continue
   }
 
+  /*
+   * The states of the virtual items of an item are the keys of a hash table, so two states with the
+   * same signature must be equal: a state hashes its signature into a long, and compares the
+   * signatures exactly only when the hashes agree.
+   */
   protected abstract static class DPState {
-    protected abstract String get_signature();
+    protected abstract long signature_hash();
+
+    protected abstract boolean same_signature(DPState other);
+
+    public final int hashCode() {
+      long hash = signature_hash();
+      return (int) (hash ^ (hash >>> 32));
+    }
+
+    public final boolean equals(Object other) {
+      if (this == other)
+        return true;
+      if (!(other instanceof DPState))
+        return false;
+      DPState state = (DPState) other;
+      return signature_hash() == state.signature_hash() && same_signature(state);
+    }
   };
 
   /*
@@ -246,19 +265,6 @@ public abstract class SplitHg {
         best_virtual_deduction = fdt;
       }
     }
-
-    // not all the variable in dp_state are in the signature
-    public String get_signature() {
-      return get_signature(p_item, dp_state);
-    }
-
-    public static String get_signature(HGNode item, DPState dstate) {
-      /*
-       * StringBuffer res = new StringBuffer(); //res.append(item); res.append(" ");//TODO:
-       * res.append(dstate.get_signature()); return res.toString();
-       */
-      return dstate.get_signature();
-    }
   }
 
   protected static class VirtualDeduction {
@@ -1,20 +1,34 @@
 package joshua.tools;
 
+import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.PrintWriter;
 import java.nio.ByteBuffer;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.PriorityQueue;
 import java.util.Queue;
 import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
 import java.util.logging.Logger;
 
+import joshua.corpus.MappedVocabulary;
 import joshua.corpus.Vocabulary;
 import joshua.util.FormatUtils;
 import joshua.util.encoding.EncoderConfiguration;
@@ -32,6 +46,10 @@ public class GrammarPacker {
   private static int DATA_SIZE_LIMIT;
   // Estimated average number of feature entries for one rule.
   private static int DATA_SIZE_ESTIMATE;
+  // Maximum number of parsed rules held in memory before they are sorted and spilled to disk.
+  private static int RUN_SIZE;
+  // Number of grammar lines handed to a parsing thread at once.
+  private static final int BATCH_SIZE = 10000;
 
   // Output directory name.
   private String output;
@@ -49,18 +67,33 @@ public class GrammarPacker {
 
   private String dump;
 
+  // Number of threads used for parsing and slice writing.
+  private int numThreads;
+
+  // Directory for the temporary sorted runs.
+  private File tempDir;
+
   static {
     SLICE_SIZE = 1000000;
     DATA_SIZE_LIMIT = (int) (Integer.MAX_VALUE * 0.8);
     DATA_SIZE_ESTIMATE = 20;
+    RUN_SIZE = 1000000;
   }
 
   public GrammarPacker(String grammar_filename, String config_filename, String output_filename,
       String alignments_filename, String featuredump_filename) throws IOException {
+    this(grammar_filename, config_filename, output_filename, alignments_filename,
+        featuredump_filename, Runtime.getRuntime().availableProcessors(), null);
+  }
+
+  public GrammarPacker(String grammar_filename, String config_filename, String output_filename,
+      String alignments_filename, String featuredump_filename, int num_threads,
+      String temp_dirname) throws IOException {
     this.labeled = true;
     this.grammar = grammar_filename;
     this.output = output_filename;
     this.dump = featuredump_filename;
+    this.numThreads = Math.max(1, num_threads);
 
     // TODO: Always open encoder config? This is debatable.
     this.types = new FeatureTypeAnalyzer(true);
@@ -87,6 +120,7 @@ public class GrammarPacker {
       logger.severe("Failed creating output directory.");
       System.exit(0);
     }
+    tempDir = (temp_dirname != null ? new File(temp_dirname) : working_dir);
   }
 
   private void readConfig(String config_filename) throws IOException {
@@ -107,6 +141,9 @@ public class GrammarPacker {
       if ("slice_size".equals(fields[0])) {
         // Number of records to concurrently load into memory for sorting.
         SLICE_SIZE = Integer.parseInt(fields[1]);
+      } else if ("run_size".equals(fields[0])) {
+        // Number of parsed rules to sort in memory before spilling them to disk.
+        RUN_SIZE = Integer.parseInt(fields[1]);
       }
     }
     reader.close();
@@ -115,126 +152,288 @@ public class GrammarPacker {
   /**
    * Executes the packing.
    * 
+   * Packing proceeds in two passes. The exploration pass parses the grammar with a pool of worker
+   * threads, learns the vocabulary and the feature value histograms, and spills the parsed rules to
+   * disk in runs sorted by their first source word. After the vocabulary is frozen, the packing
+   * pass merges the runs, cuts the merged rule stream into slices and writes the slices
+   * concurrently. Memory use is bounded by the run size and the number of runs and slices in
+   * flight, and the text grammar is only read once. The input grammar need not be sorted.
+   * 
    * @throws IOException
    */
   public void pack() throws IOException {
     logger.info("Beginning exploration pass.");
-    LineReader grammar_reader = null;
-    LineReader alignment_reader = null;
-
-    // Explore pass. Learn vocabulary and feature value histograms.
-    logger.info("Exploring: " + grammar);
-    grammar_reader = new LineReader(grammar);
-    explore(grammar_reader);
+    ExecutorService pool = Executors.newFixedThreadPool(numThreads);
+    try {
+      // Explore pass. Learn vocabulary and feature value histograms, spill sorted runs.
+      logger.info("Exploring: " + grammar);
+      List<File> runs = explore(pool);
+
+      logger.info("Exploration pass complete. Freezing vocabulary and finalizing encoders.");
+      if (dump != null) {
+        PrintWriter dump_writer = new PrintWriter(dump);
+        dump_writer.println(types.toString());
+        dump_writer.close();
+      }
 
-    logger.info("Exploration pass complete. Freezing vocabulary and finalizing encoders.");
-    if (dump != null) {
-      PrintWriter dump_writer = new PrintWriter(dump);
-      dump_writer.println(types.toString());
-      dump_writer.close();
+      types.inferTypes(this.labeled);
+      logger.info("Type inference complete.");
+
+      logger.info("Finalizing encoding.");
+
+      logger.info("Writing encoding.");
+      types.write(output + File.separator + "encoding");
+
+      // Remember the pre-freeze vocabulary, the spilled runs are encoded with it.
+      ArrayList<String> explored_words = new ArrayList<String>(Vocabulary.size());
+      Iterator<String> words = Vocabulary.wordIterator();
+      while (words.hasNext())
+        explored_words.add(words.next());
+
+      logger.info("Freezing vocab.");
+      Vocabulary.freeze();
+
+      int[] remap = new int[explored_words.size()];
+      for (int i = 1; i < remap.length; i++)
+        remap[i] = Math.abs(Vocabulary.id(explored_words.get(i)));
+
+      logger.info("Writing vocab.");
+      Vocabulary.write(output + File.separator + "vocabulary");
+      MappedVocabulary.write(output + File.separator + MappedVocabulary.FILE_NAME);
+
+      // Read previously written encoder configuration to match up to changed
+      // vocabulary id's.
+      logger.info("Reading encoding.");
+      encoderConfig = new EncoderConfiguration();
+      encoderConfig.load(output + File.separator + "encoding");
+
+      logger.info("Beginning packing pass.");
+      // Actual binarization pass. Slice and pack source, target and data.
+      binarize(runs, remap, pool);
+      for (File run : runs)
+        run.delete();
+      logger.info("Packing complete.");
+    } finally {
+      pool.shutdown();
     }
 
-    types.inferTypes(this.labeled);
-    logger.info("Type inference complete.");
-
-    logger.info("Finalizing encoding.");
-
-    logger.info("Writing encoding.");
-    types.write(output + File.separator + "encoding");
-
-    logger.info("Freezing vocab.");
-    Vocabulary.freeze();
-
-    logger.info("Writing vocab.");
-    Vocabulary.write(output + File.separator + "vocabulary");
-
-    // Read previously written encoder configuration to match up to changed
-    // vocabulary id's.
-    logger.info("Reading encoding.");
-    encoderConfig = new EncoderConfiguration();
-    encoderConfig.load(output + File.separator + "encoding");
-
-    logger.info("Beginning packing pass.");
-    Queue<PackingFileTuple> slices = new PriorityQueue<PackingFileTuple>();
-    // Actual binarization pass. Slice and pack source, target and data.
-    grammar_reader = new LineReader(grammar);
-
-    if (packAlignments)
-      alignment_reader = new LineReader(alignments);
-    binarize(grammar_reader, alignment_reader, slices);
-    logger.info("Packing complete.");
-
     logger.info("Packed grammar in: " + output);
     logger.info("Done.");
   }
 
-  private void explore(LineReader grammar) {
+  /**
+   * Exploration pass. Lines are read in batches and handed to the worker pool for parsing. The
+   * parsed batches are consumed in input order, so that feature observation is deterministic, and
+   * collected into runs that are sorted and spilled to disk, on the worker pool, once they reach
+   * the run size. At most one run per thread is held in memory waiting to be spilled.
+   * 
+   * @return the spilled runs, in input order
+   */
+  private List<File> explore(ExecutorService pool) throws IOException {
+    LineReader grammar_reader = new LineReader(grammar);
+    LineReader alignment_reader = (packAlignments ? new LineReader(alignments) : null);
+
+    // Limits the number of runs held in memory while waiting to be spilled.
+    Semaphore in_flight = new Semaphore(numThreads);
+    LinkedList<Future<List<ParsedRule>>> pending = new LinkedList<Future<List<ParsedRule>>>();
+    List<Future<File>> spills = new ArrayList<Future<File>>();
+    ArrayList<ParsedRule> run = new ArrayList<ParsedRule>();
+
     int counter = 0;
     boolean first_line = true;
-    while (grammar.hasNext()) {
-      String line = grammar.next().trim();
-      counter++;
+    try {
+      while (grammar_reader.hasNext()) {
+        final int first = counter + 1;
+        final List<String> lines = new ArrayList<String>(BATCH_SIZE);
+        final List<String> alignment_lines = (packAlignments ? new ArrayList<String>(BATCH_SIZE)
+            : null);
+        while (lines.size() < BATCH_SIZE && grammar_reader.hasNext()) {
+          lines.add(grammar_reader.next());
+          counter++;
+          if (packAlignments) {
+            if (!alignment_reader.hasNext()) {
+              logger.severe("No more alignments starting in line " + counter);
+              throw new RuntimeException("No more alignments starting in line " + counter);
+            }
+            alignment_lines.add(alignment_reader.next());
+          }
+        }
+        pending.add(pool.submit(new Callable<List<ParsedRule>>() {
+          public List<ParsedRule> call() {
+            return parse(lines, alignment_lines, first);
+          }
+        }));
+
+        // Consume finished batches in order, keeping a bounded number of batches in flight.
+        while (pending.size() > 2 * numThreads
+            || (!grammar_reader.hasNext() && !pending.isEmpty())) {
+          for (ParsedRule rule : get(pending.removeFirst())) {
+            // Test features for labeling.
+            if (rule.featureIds.length != 0) {
+              if (first_line) {
+                // We assume that if there is one unlabeled feature the entire grammar is unlabeled.
+                labeled = rule.labeled;
+                this.types.setLabeled(labeled);
+                first_line = false;
+              } else if (rule.labeled != labeled) {
+                throw new RuntimeException("Mixed labeled and unlabeled features in grammar.");
+              }
+            }
+            // Pass the feature values through the appropriate encoder.
+            for (int f = 0; f < rule.featureIds.length; f++)
+              types.observe(rule.featureIds[f], rule.featureValues[f]);
+
+            run.add(rule);
+            if (run.size() >= RUN_SIZE) {
+              spills.add(submitSpill(pool, in_flight, run, spills.size()));
+              run = new ArrayList<ParsedRule>();
+            }
+          }
+        }
+      }
+      if (!run.isEmpty())
+        spills.add(submitSpill(pool, in_flight, run, spills.size()));
+
+      List<File> runs = new ArrayList<File>(spills.size());
+      for (Future<File> spill : spills)
+        runs.add(get(spill));
+      return runs;
+    } finally {
+      grammar_reader.close();
+      if (alignment_reader != null)
+        alignment_reader.close();
+    }
+  }
+
+  /**
+   * Hands a completed run to the worker pool for sorting and spilling. Blocks if too many runs are
+   * already waiting to be spilled.
+   */
+  private Future<File> submitSpill(ExecutorService pool, final Semaphore in_flight,
+      List<ParsedRule> run, int index) {
+    in_flight.acquireUninterruptibly();
+    final RunSpiller spiller = new RunSpiller(run, index);
+    return pool.submit(new Callable<File>() {
+      public File call() throws IOException {
+        try {
+          return spiller.call();
+        } finally {
+          in_flight.release();
+        }
+      }
+    });
+  }
 
-      String[] fields = line.split("\\s\\|{3}\\s");
+  /**
+   * Parses a batch of grammar lines (and their alignments, if packing them). Symbols are added to
+   * the vocabulary as they are encountered. Called concurrently by the worker threads.
+   * 
+   * @param lines the grammar lines
+   * @param alignment_lines the corresponding alignment lines, or null
+   * @param first the line number of the first line in the batch
+   * @return the successfully parsed rules
+   */
+  private List<ParsedRule> parse(List<String> lines, List<String> alignment_lines, int first) {
+    List<ParsedRule> rules = new ArrayList<ParsedRule>(lines.size());
+    for (int l = 0; l < lines.size(); l++) {
+      String[] fields = FormatUtils.splitFields(lines.get(l).trim());
       if (fields.length < 4) {
-        logger.warning("Incomplete grammar line at line " + counter);
+        logger.warning("Incomplete grammar line at line " + (first + l));
         continue;
       }
+      ParsedRule rule = new ParsedRule();
+      rule.lhs = Vocabulary.id(fields[0]);
 
-      String lhs = fields[0];
-      String[] source = fields[1].split("\\s");
-      String[] target = fields[2].split("\\s");
-      String[] features = fields[3].split("\\s");
-
-      Vocabulary.id(lhs);
-      // Add symbols to vocabulary.
-      for (String source_word : source) {
-        if (FormatUtils.isNonterminal(source_word))
-          Vocabulary.id(FormatUtils.stripNt(source_word));
-        else
-          Vocabulary.id(source_word);
-      }
-      for (String target_word : target) {
-        if (FormatUtils.isNonterminal(target_word))
-          Vocabulary.id(FormatUtils.stripNt(target_word));
+      String[] source_words = FormatUtils.splitWhitespace(fields[1]);
+      rule.key = source_words[0];
+      rule.source = new int[source_words.length];
+      for (int i = 0; i < source_words.length; i++) {
+        if (FormatUtils.isNonterminal(source_words[i]))
+          rule.source[i] = Vocabulary.id(FormatUtils.stripNt(source_words[i]));
         else
-          Vocabulary.id(target_word);
+          rule.source[i] = Vocabulary.id(source_words[i]);
       }
 
-      // Test features for labeling.
-      if (first_line && features.length != 0) {
-        if (!features[0].contains("=")) {
-          // We assume that if there is one unlabeled feature the entire grammar is unlabeled.
-          labeled = false;
+      // Target side is stored reversed, nonterminals as negative indices into the source side.
+      String[] target_words = FormatUtils.splitWhitespace(fields[2]);
+      rule.target = new int[target_words.length];
+      for (int i = 0; i < target_words.length; i++) {
+        if (FormatUtils.isNonterminal(target_words[i])) {
+          Vocabulary.id(FormatUtils.stripNt(target_words[i]));
+          rule.target[target_words.length - (i + 1)] = -FormatUtils
+              .getNonterminalIndex(target_words[i]);
+        } else {
+          rule.target[target_words.length - (i + 1)] = Vocabulary.id(target_words[i]);
         }
-        this.types.setLabeled(labeled);
-        first_line = false;
       }
 
-      // Add feature names to vocabulary and pass the value through the
-      // appropriate encoder.
-      for (int f = 0; f < features.length; ++f) {
-        if (labeled) {
-          String[] fe = features[f].split("=");
-          if (fe[0].equals("Alignment"))
+      // Labeled features are keyed by the vocabulary id of their name, unlabeled ones by their
+      // position.
+      String[] feature_entries = FormatUtils.splitWhitespace(fields[3]);
+      int[] ids = new int[feature_entries.length];
+      float[] values = new float[feature_entries.length];
+      int num_features = 0;
+      rule.labeled = (feature_entries.length == 0 || feature_entries[0].indexOf('=') != -1);
+      for (int f = 0; f < feature_entries.length; f++) {
+        String feature_entry = feature_entries[f];
+        if (rule.labeled) {
+          int split = feature_entry.indexOf('=');
+          if (split == -1) {
+            logger.warning("Skipping unlabeled feature '" + feature_entry
+                + "' among labeled ones at line " + (first + l));
+            continue;
+          }
+          String name = feature_entry.substring(0, split);
+          if (name.equals("Alignment"))
             continue;
-          types.observe(Vocabulary.id(fe[0]), Float.parseFloat(fe[1]));
+          ids[num_features] = Vocabulary.id(name);
+          values[num_features++] = Float.parseFloat(feature_entry.substring(split + 1));
         } else {
-          types.observe(f, Float.parseFloat(features[f]));
+          ids[num_features] = f;
+          values[num_features++] = Float.parseFloat(feature_entry);
+        }
+      }
+      rule.featureIds = Arrays.copyOf(ids, num_features);
+      rule.featureValues = Arrays.copyOf(values, num_features);
+
+      if (alignment_lines != null) {
+        // Rules without any alignment points have empty lines.
+        String[] alignment_entries = FormatUtils.splitWhitespace(alignment_lines.get(l));
+        rule.alignments = new byte[alignment_entries.length * 2];
+        for (int i = 0; i < alignment_entries.length; i++) {
+          int split = alignment_entries[i].indexOf('-');
+          if (split == -1)
+            throw new RuntimeException("Malformed alignment point '" + alignment_entries[i]
+                + "' at line " + (first + l));
+          rule.alignments[2 * i] = Byte.parseByte(alignment_entries[i].substring(0, split));
+          rule.alignments[2 * i + 1] = Byte.parseByte(alignment_entries[i].substring(split + 1));
         }
       }
+      rules.add(rule);
     }
+    return rules;
   }
 
-  private void binarize(LineReader grammar_reader, LineReader alignment_reader,
-      Queue<PackingFileTuple> slices) throws IOException {
-    int counter = 0;
+  /**
+   * Packing pass. Merges the sorted runs, so that all rules sharing a first source word are
+   * adjacent, and cuts the merged stream into slices at first source word boundaries. Completed
+   * slices are handed to the worker pool for writing while the next slice is being built.
+   * 
+   * @param runs the runs spilled during exploration
+   * @param remap maps explored vocabulary ids to the frozen vocabulary
+   * @param pool the worker pool
+   */
+  private void binarize(List<File> runs, int[] remap, ExecutorService pool) throws IOException {
     int slice_counter = 0;
     int num_slices = 0;
 
     boolean ready_to_flush = false;
     String first_source_word = null;
 
+    // Limits the number of slices held in memory while waiting to be written.
+    final Semaphore in_flight = new Semaphore(numThreads);
+    List<Future<PackingFileTuple>> written = new ArrayList<Future<PackingFileTuple>>();
+
     PackingTrie<SourceValue> source_trie = new PackingTrie<SourceValue>();
     PackingTrie<TargetValue> target_trie = new PackingTrie<TargetValue>();
     FeatureBuffer feature_buffer = new FeatureBuffer();
@@ -243,117 +442,126 @@ public class GrammarPacker {
     if (packAlignments)
       alignment_buffer = new AlignmentBuffer();
 
+    RunMerger merger = new RunMerger(runs);
     TreeMap<Integer, Float> features = new TreeMap<Integer, Float>();
-    while (grammar_reader.hasNext()) {
-      String grammar_line = grammar_reader.next().trim();
-      counter++;
-      slice_counter++;
+    try {
+      ParsedRule rule;
+      while ((rule = merger.next()) != null) {
+        slice_counter++;
+
+        // Reached slice limit size, indicate that we're closing up.
+        if (!ready_to_flush
+            && (slice_counter > SLICE_SIZE || feature_buffer.overflowing()
+                || (packAlignments && alignment_buffer.overflowing()))) {
+          ready_to_flush = true;
+          first_source_word = rule.key;
+        }
+        // Finished closing up.
+        if (ready_to_flush && !first_source_word.equals(rule.key)) {
+          written.add(submitFlush(pool, in_flight, source_trie, target_trie, feature_buffer,
+              alignment_buffer, num_slices));
+          source_trie = new PackingTrie<SourceValue>();
+          target_trie = new PackingTrie<TargetValue>();
+          feature_buffer = new FeatureBuffer();
+          if (packAlignments)
+            alignment_buffer = new AlignmentBuffer();
+
+          num_slices++;
+          slice_counter = 0;
+          ready_to_flush = false;
+        }
 
-      String[] fields = grammar_line.split("\\s\\|{3}\\s");
-      if (fields.length < 4) {
-        logger.warning("Incomplete grammar line at line " + counter);
-        continue;
-      }
-      String lhs_word = fields[0];
-      String[] source_words = fields[1].split("\\s");
-      String[] target_words = fields[2].split("\\s");
-      String[] feature_entries = fields[3].split("\\s");
-
-      // Reached slice limit size, indicate that we're closing up.
-      if (!ready_to_flush
-          && (slice_counter > SLICE_SIZE || feature_buffer.overflowing() || (packAlignments && alignment_buffer
-              .overflowing()))) {
-        ready_to_flush = true;
-        first_source_word = source_words[0];
-      }
-      // Finished closing up.
-      if (ready_to_flush && !first_source_word.equals(source_words[0])) {
-        slices.add(flush(source_trie, target_trie, feature_buffer, alignment_buffer, num_slices));
-        source_trie.clear();
-        target_trie.clear();
-        feature_buffer.clear();
+        int alignment_index = -1;
+        // If present, process alignments.
         if (packAlignments)
-          alignment_buffer.clear();
-
-        num_slices++;
-        slice_counter = 0;
-        ready_to_flush = false;
-      }
-
-      int alignment_index = -1;
-      // If present, process alignments.
-      if (packAlignments) {
-        if (!alignment_reader.hasNext()) {
-          logger.severe("No more alignments starting in line " + counter);
-          throw new RuntimeException("No more alignments starting in line " + counter);
-        } else {
-          String alignment_line = alignment_reader.next().trim();
-          String[] alignment_entries = alignment_line.split("\\s");
-          byte[] alignments = new byte[alignment_entries.length * 2];
-          if (alignment_entries.length != 0) {
-            for (int i = 0; i < alignment_entries.length; i++) {
-              String[] parts = alignment_entries[i].split("-");
-              alignments[2 * i] = Byte.parseByte(parts[0]);
-              alignments[2 * i + 1] = Byte.parseByte(parts[1]);
-            }
-          }
-          alignment_index = alignment_buffer.add(alignments);
+          alignment_index = alignment_buffer.add(rule.alignments);
+
+        // Process features.
+        // Implicitly sort via TreeMap, write to data buffer, remember position
+        // to pass on to the source trie node.
+        features.clear();
+        for (int f = 0; f < rule.featureIds.length; f++) {
+          float feature_value = rule.featureValues[f];
+          if (feature_value == 0)
+            continue;
+          if (this.labeled)
+            features.put(encoderConfig.innerId(remap[rule.featureIds[f]]), feature_value);
+          else
+            features.put(rule.featureIds[f], feature_value);
         }
-      }
+        int features_index = feature_buffer.add(features);
 
-      // Process features.
-      // Implicitly sort via TreeMap, write to data buffer, remember position
-      // to pass on to the source trie node.
-      features.clear();
-      for (int f = 0; f < feature_entries.length; ++f) {
-        String feature_entry = feature_entries[f];
-        if (this.labeled) {
-          String[] parts = feature_entry.split("=");
-          if (parts[0].equals("Alignment"))
-            continue;
-          int feature_id = Vocabulary.id(parts[0]);
-          float feature_value = Float.parseFloat(parts[1]);
-          if (feature_value != 0)
-            features.put(encoderConfig.innerId(feature_id), feature_value);
-        } else {
-          float feature_value = Float.parseFloat(feature_entry);
-          if (feature_value != 0)
-            features.put(f, feature_value);
+        // Sanity check on the data block index.
+        if (packAlignments && features_index != alignment_index) {
+          logger.severe("Block index mismatch between features (" + features_index
+              + ") and alignments (" + alignment_index + ").");
+          throw new RuntimeException("Data block index mismatch.");
         }
-      }
-      int features_index = feature_buffer.add(features);
 
-      // Sanity check on the data block index.
-      if (packAlignments && features_index != alignment_index) {
-        logger.severe("Block index mismatch between features (" + features_index
-            + ") and alignments (" + alignment_index + ").");
-        throw new RuntimeException("Data block index mismatch.");
+        // Process source side.
+        SourceValue sv = new SourceValue(remap(rule.lhs, remap), features_index);
+        int[] source = new int[rule.source.length];
+        for (int i = 0; i < source.length; i++)
+          source[i] = remap(rule.source[i], remap);
+        source_trie.add(source, sv);
+
+        // Process target side. Nonterminals are indices, not vocabulary ids.
+        TargetValue tv = new TargetValue(sv);
+        int[] target = new int[rule.target.length];
+        for (int i = 0; i < target.length; i++)
+          target[i] = (rule.target[i] < 0 ? rule.target[i] : remap[rule.target[i]]);
+        target_trie.add(target, tv);
       }
+      written.add(submitFlush(pool, in_flight, source_trie, target_trie, feature_buffer,
+          alignment_buffer, num_slices));
 
-      // Process source side.
-      SourceValue sv = new SourceValue(Vocabulary.id(lhs_word), features_index);
-      int[] source = new int[source_words.length];
-      for (int i = 0; i < source_words.length; i++) {
-        if (FormatUtils.isNonterminal(source_words[i]))
-          source[i] = Vocabulary.id(FormatUtils.stripNt(source_words[i]));
-        else
-          source[i] = Vocabulary.id(source_words[i]);
-      }
-      source_trie.add(source, sv);
+      for (Future<PackingFileTuple> slice : written)
+        get(slice);
+    } finally {
+      merger.close();
+    }
+  }
 
-      // Process target side.
-      TargetValue tv = new TargetValue(sv);
-      int[] target = new int[target_words.length];
-      for (int i = 0; i < target_words.length; i++) {
-        if (FormatUtils.isNonterminal(target_words[i])) {
-          target[target_words.length - (i + 1)] = -FormatUtils.getNonterminalIndex(target_words[i]);
-        } else {
-          target[target_words.length - (i + 1)] = Vocabulary.id(target_words[i]);
+  private static int remap(int id, int[] remap) {
+    return (id < 0 ? -remap[-id] : remap[id]);
+  }
+
+  /**
+   * Hands a completed slice to the worker pool for writing. Blocks if too many slices are already
+   * waiting to be written.
+   */
+  private Future<PackingFileTuple> submitFlush(ExecutorService pool, final Semaphore in_flight,
+      final PackingTrie<SourceValue> source_trie, final PackingTrie<TargetValue> target_trie,
+      final FeatureBuffer feature_buffer, final AlignmentBuffer alignment_buffer, final int id) {
+    in_flight.acquireUninterruptibly();
+    return pool.submit(new Callable<PackingFileTuple>() {
+      public PackingFileTuple call() throws IOException {
+        try {
+          return flush(source_trie, target_trie, feature_buffer, alignment_buffer, id);
+        } finally {
+          in_flight.release();
         }
       }
-      target_trie.add(target, tv);
+    });
+  }
+
+  /**
+   * Waits for a task to complete, rethrowing its failure.
+   */
+  private static <T> T get(Future<T> future) throws IOException {
+    try {
+      return future.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException("Interrupted while packing.", e);
+    } catch (ExecutionException e) {
+      Throwable cause = e.getCause();
+      if (cause instanceof IOException)
+        throw (IOException) cause;
+      if (cause instanceof RuntimeException)
+        throw (RuntimeException) cause;
+      throw new RuntimeException(cause);
     }
-    slices.add(flush(source_trie, target_trie, feature_buffer, alignment_buffer, num_slices));
   }
 
   /**
@@ -505,6 +713,8 @@ public class GrammarPacker {
     String output_prefix = null;
     String alignments_filename = null;
     String featuredump_filename = null;
+    String temp_dirname = null;
+    int num_threads = Runtime.getRuntime().availableProcessors();
 
     if (args.length < 1 || args[0].equals("-h")) {
       System.err.println("Usage: " + GrammarPacker.class.toString());
@@ -513,6 +723,8 @@ public class GrammarPacker {
       System.err.println("   [-c config_file      packing configuration file]");
       System.err.println("   [-a alignment_file   alignment_file]");
       System.err.println("   [-d dump_file        dump feature stats]");
+      System.err.println("   [-t num_threads      number of threads (default: all cores)]");
+      System.err.println("   [-T temp_dir         directory for sort runs (default: output)]");
       System.err.println();
       System.exit(-1);
     }
@@ -528,6 +740,10 @@ public class GrammarPacker {
         alignments_filename = args[++i];
       } else if ("-d".equals(args[i]) && (i < args.length - 1)) {
         featuredump_filename = args[++i];
+      } else if ("-t".equals(args[i]) && (i < args.length - 1)) {
+        num_threads = Integer.parseInt(args[++i]);
+      } else if ("-T".equals(args[i]) && (i < args.length - 1)) {
+        temp_dirname = args[++i];
       }
     }
     if (grammar_filename == null) {
@@ -564,10 +780,176 @@ public class GrammarPacker {
     }
 
     GrammarPacker packer = new GrammarPacker(grammar_filename, config_filename, output_filename,
-        alignments_filename, featuredump_filename);
+        alignments_filename, featuredump_filename, num_threads, temp_dirname);
     packer.pack();
   }
 
+  /**
+   * A grammar rule as parsed during exploration. Symbols are ids in the explored (not yet frozen)
+   * vocabulary. The first source word is kept as the sort key for grouping rules into slices.
+   */
+  static class ParsedRule {
+    String key;
+    int lhs;
+    int[] source;
+    int[] target;
+    boolean labeled;
+    int[] featureIds;
+    float[] featureValues;
+    byte[] alignments;
+
+    void write(DataOutputStream out) throws IOException {
+      out.writeUTF(key);
+      out.writeInt(lhs);
+      writeInts(out, source);
+      writeInts(out, target);
+      out.writeInt(featureIds.length);
+      for (int f = 0; f < featureIds.length; f++) {
+        out.writeInt(featureIds[f]);
+        out.writeFloat(featureValues[f]);
+      }
+      out.writeBoolean(alignments != null);
+      if (alignments != null) {
+        out.writeInt(alignments.length);
+        out.write(alignments);
+      }
+    }
+
+    static ParsedRule read(DataInputStream in) throws IOException {
+      ParsedRule rule = new ParsedRule();
+      rule.key = in.readUTF();
+      rule.lhs = in.readInt();
+      rule.source = readInts(in);
+      rule.target = readInts(in);
+      int num_features = in.readInt();
+      rule.featureIds = new int[num_features];
+      rule.featureValues = new float[num_features];
+      for (int f = 0; f < num_features; f++) {
+        rule.featureIds[f] = in.readInt();
+        rule.featureValues[f] = in.readFloat();
+      }
+      if (in.readBoolean()) {
+        rule.alignments = new byte[in.readInt()];
+        in.readFully(rule.alignments);
+      }
+      return rule;
+    }
+
+    private static void writeInts(DataOutputStream out, int[] values) throws IOException {
+      out.writeInt(values.length);
+      for (int v : values)
+        out.writeInt(v);
+    }
+
+    private static int[] readInts(DataInputStream in) throws IOException {
+      int[] values = new int[in.readInt()];
+      for (int i = 0; i < values.length; i++)
+        values[i] = in.readInt();
+      return values;
+    }
+  }
+
+  /**
+   * Sorts a run of parsed rules by first source word and writes it to a temporary file. The sort
+   * is stable, so rules sharing a first source word keep their input order.
+   */
+  class RunSpiller implements Callable<File> {
+    private final List<ParsedRule> run;
+    private final int index;
+
+    RunSpiller(List<ParsedRule> run, int index) {
+      this.run = run;
+      this.index = index;
+    }
+
+    public File call() throws IOException {
+      Collections.sort(run, new Comparator<ParsedRule>() {
+        public int compare(ParsedRule a, ParsedRule b) {
+          return a.key.compareTo(b.key);
+        }
+      });
+      File file = File.createTempFile("run_" + String.format("%05d", index) + "_", ".tmp", tempDir);
+      file.deleteOnExit();
+      DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(
+          file), 1 << 16));
+      out.writeInt(run.size());
+      for (ParsedRule rule : run)
+        rule.write(out);
+      out.close();
+      logger.info("Spilled run of " + run.size() + " rules to " + file.getName());
+      return file;
+    }
+  }
+
+  /**
+   * K-way merge over sorted runs, returning rules ordered by first source word. Ties are broken by
+   * run order, so the merge is stable with respect to the input grammar.
+   */
+  static class RunMerger {
+    private final PriorityQueue<RunReader> readers;
+
+    RunMerger(List<File> runs) throws IOException {
+      readers = new PriorityQueue<RunReader>(Math.max(1, runs.size()));
+      for (int i = 0; i < runs.size(); i++) {
+        RunReader reader = new RunReader(runs.get(i), i);
+        if (reader.advance())
+          readers.add(reader);
+        else
+          reader.close();
+      }
+    }
+
+    ParsedRule next() throws IOException {
+      RunReader reader = readers.poll();
+      if (reader == null)
+        return null;
+      ParsedRule rule = reader.current;
+      if (reader.advance())
+        readers.add(reader);
+      else
+        reader.close();
+      return rule;
+    }
+
+    void close() throws IOException {
+      for (RunReader reader : readers)
+        reader.close();
+      readers.clear();
+    }
+  }
+
+  static class RunReader implements Comparable<RunReader> {
+    private final DataInputStream in;
+    private final int index;
+    private int remaining;
+    ParsedRule current;
+
+    RunReader(File file, int index) throws IOException {
+      this.in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 1 << 16));
+      this.index = index;
+      this.remaining = in.readInt();
+    }
+
+    boolean advance() throws IOException {
+      if (remaining == 0) {
+        current = null;
+        return false;
+      }
+      remaining--;
+      current = ParsedRule.read(in);
+      return true;
+    }
+
+    void close() throws IOException {
+      in.close();
+    }
+
+    public int compareTo(RunReader o) {
+      int c = current.key.compareTo(o.current.key);
+      return (c != 0 ? c : index - o.index);
+    }
+  }
+
   /**
    * Integer-labeled, doubly-linked trie with some provisions for packing.
    * 
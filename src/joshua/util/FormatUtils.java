@@ -17,8 +17,9 @@ package joshua.util;
 
 import java.io.PrintStream;
 import java.io.UnsupportedEncodingException;
-import java.util.HashMap;
+import java.util.ArrayList;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.regex.Pattern;
 
 /**
@@ -32,7 +33,7 @@ public class FormatUtils {
   private static Map<String, String> cache;
 
   static {
-    cache = new HashMap<String, String>();
+    cache = new ConcurrentHashMap<String, String>();
   }
 
   public static boolean isNonterminal(String token) {
@@ -56,6 +57,85 @@ public class FormatUtils {
     return stripped;
   }
 
+  /**
+   * Splits a grammar rule line into its fields, which are delimited by " ||| ". This is a
+   * regex-free equivalent of <code>line.split("\\s\\|{3}\\s")</code> for the (standard) case
+   * where the delimiter is surrounded by single spaces.
+   * 
+   * @param line a rule line, e.g. "[X] ||| source ||| target ||| features"
+   * @return the fields of the line
+   */
+  public static String[] splitFields(String line) {
+    ArrayList<String> fields = new ArrayList<String>(5);
+    int start = 0;
+    int delimiter;
+    while ((delimiter = line.indexOf(" ||| ", start)) != -1) {
+      fields.add(line.substring(start, delimiter));
+      start = delimiter + 5;
+    }
+    fields.add(line.substring(start));
+    return fields.toArray(new String[fields.size()]);
+  }
+
+  /**
+   * Splits a string on runs of spaces and tabs without using regular expressions. Leading and
+   * trailing whitespace is ignored, so an empty or blank string yields an empty array.
+   * 
+   * @param text the string to tokenize
+   * @return the tokens
+   */
+  public static String[] splitWhitespace(String text) {
+    ArrayList<String> tokens = new ArrayList<String>();
+    int length = text.length();
+    int i = 0;
+    while (i < length) {
+      while (i < length && isBlank(text.charAt(i)))
+        i++;
+      int start = i;
+      while (i < length && !isBlank(text.charAt(i)))
+        i++;
+      if (i > start)
+        tokens.add(text.substring(start, i));
+    }
+    return tokens.toArray(new String[tokens.size()]);
+  }
+
+  private static boolean isBlank(char c) {
+    return c == ' ' || c == '\t';
+  }
+
+  private static final long[] POWERS_OF_TEN = { 1L, 10L, 100L, 1000L, 10000L, 100000L, 1000000L };
+
+  /**
+   * Appends a float with a fixed number of decimals, as <code>String.format("%.3f", value)</code>
+   * does for 3 decimals, without going through a Formatter. A float has at most 24 significant
+   * bits, so its product with a power of ten up to 10^6 is exact in a double, and rounding that
+   * product half up gives the same digits as the Formatter. Values too large for that, and NaN and
+   * infinities, fall back to String.format.
+   * 
+   * @param sb the builder to append to
+   * @param value the value
+   * @param decimals the number of decimals, from 0 to 6
+   */
+  public static void appendFixedPoint(StringBuilder sb, float value, int decimals) {
+    double scaled = Math.abs((double) value) * POWERS_OF_TEN[decimals];
+    if (Double.isNaN(scaled) || scaled >= 1e15) {
+      sb.append(String.format("%." + decimals + "f", value));
+      return;
+    }
+    if (value < 0 || (value == 0 && Float.floatToIntBits(value) != 0))
+      sb.append('-');
+    long digits = (long) Math.floor(scaled + 0.5);
+    sb.append(digits / POWERS_OF_TEN[decimals]);
+    if (decimals > 0) {
+      sb.append('.');
+      String fraction = Long.toString(digits % POWERS_OF_TEN[decimals]);
+      for (int i = fraction.length(); i < decimals; i++)
+        sb.append('0');
+      sb.append(fraction);
+    }
+  }
+
   public static int getNonterminalIndex(String nt) {
     return Integer.parseInt(nt.substring(nt.length() - 2, nt.length() - 1));
   }
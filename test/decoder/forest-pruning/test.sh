@@ -0,0 +1,22 @@
+#!/bin/bash
+
+set -u
+
+# The first ten sentences set their own threshold in their seg tags; the rest use the configured one.
+cat input | $JOSHUA/bin/joshua-decoder -m 1g -threads 2 -c joshua.config > output 2> log
+
+# How much of each forest was kept
+grep -o "sentence [0-9]*: forest pruning kept .*" log | sort -n -k2 > pruning
+
+# The gold output is the 1-best of the unpruned forests, which pruning must not change.
+diff -u pruning pruning.gold > diff && diff -u output output.gold >> diff
+
+if [ $? -eq 0 ]; then
+	echo PASSED
+	rm -f diff log output pruning
+	exit 0
+else
+	echo FAILED
+	tail diff
+	exit 1
+fi
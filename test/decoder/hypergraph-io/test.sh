@@ -0,0 +1,24 @@
+#!/bin/bash
+
+set -u
+
+# decode, writing the hypergraphs with their edge features
+rm -f hypergraphs.bin
+cat ../left-state/input.bn | $JOSHUA/bin/joshua-decoder -m 1g -threads 2 -c joshua.config > output 2> log
+
+# read the hypergraphs back and extract the same k-best lists from them
+cat ../left-state/input.bn | java -Xmx1g -cp $JOSHUA/class -Dfile.encoding=utf8 \
+  joshua.decoder.hypergraph.HyperGraphReader joshua.config hypergraphs.bin > output.read 2>> log
+
+# Compare
+diff -u output output.gold > diff && diff -u output.read output.gold >> diff
+
+if [ $? -eq 0 ]; then
+	echo PASSED
+	rm -f diff log output output.read hypergraphs.bin
+	exit 0
+else
+	echo FAILED
+	tail diff
+	exit 1
+fi
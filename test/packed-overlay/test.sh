@@ -0,0 +1,29 @@
+#!/bin/bash
+
+set -u
+
+# split the grammar of ../packed-grammar into a base grammar and an overlay
+zcat ../packed-grammar/grammar.gz | awk 'NR % 2 == 1' | gzip > base.gz
+zcat ../packed-grammar/grammar.gz | awk 'NR % 2 == 0' | gzip > overlay.gz
+
+# pack them separately
+rm -rf base.packed overlay.packed
+$JOSHUA/scripts/support/grammar-packer.pl -T . base.gz base.packed 2> packer.log
+$JOSHUA/scripts/support/grammar-packer.pl -T . overlay.gz overlay.packed 2>> packer.log
+
+# decode with the overlay loaded on top of the base grammar
+cat ../packed-grammar/input.bn | $JOSHUA/bin/joshua-decoder -m 1g -threads 2 -c joshua.config > output 2> log
+
+# the gold output was produced with the whole grammar packed as one
+diff -u output output.gold > diff
+
+if [ $? -eq 0 ]; then
+	echo PASSED
+	rm -f packer.log diff log output base.gz overlay.gz
+	rm -rf base.packed overlay.packed
+	exit 0
+else
+	echo FAILED
+	tail diff
+	exit 1
+fi
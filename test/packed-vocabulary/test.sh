@@ -0,0 +1,28 @@
+#!/bin/bash
+
+set -u
+
+# pack the grammar; the packer writes both vocabulary.mapped and the old vocabulary file
+rm -rf grammar.packed
+$JOSHUA/scripts/support/grammar-packer.pl -T . ../packed-grammar/grammar.gz grammar.packed 2> packer.log
+
+# decode with the memory-mapped vocabulary
+head -20 ../packed-grammar/input.bn | $JOSHUA/bin/joshua-decoder -m 1g -threads 2 -c joshua.config > output.mapped 2> log.mapped
+
+# decode again after removing it, which falls back to reading the vocabulary file
+rm -f grammar.packed/vocabulary.mapped
+head -20 ../packed-grammar/input.bn | $JOSHUA/bin/joshua-decoder -m 1g -threads 2 -c joshua.config > output.read 2> log.read
+
+grep -q "Mapping vocabulary" log.mapped && grep -q "Reading vocabulary" log.read \
+  && diff -u output.mapped output.gold > diff && diff -u output.read output.gold >> diff
+
+if [ $? -eq 0 ]; then
+	echo PASSED
+	rm -f packer.log diff log.mapped log.read output.mapped output.read
+	rm -rf grammar.packed
+	exit 0
+else
+	echo FAILED
+	tail diff
+	exit 1
+fi